@@ -66,6 +66,15 @@ public interface AdminCommInterface {
      */
     public void copyData(String host, String port, Metadata metadataRangeInfo) throws Exception;
 
+    /**
+     * Reports the data transfers the Server is running. Ask over a connection other than the one waiting for a
+     * transfer to finish.
+     *
+     * @return id, command, destination, keys sent and elapsed milliseconds of every running transfer, as JSON
+     * @throws Exception failed to reach the server
+     */
+    public String getTransferStatus() throws Exception;
+
     /**
      * Update the metadata repository of this server.
      *
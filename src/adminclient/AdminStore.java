@@ -25,6 +25,9 @@ public class AdminStore implements AdminCommInterface {
     private Socket serverSocket;
     private OutputStream output;
     private InputStream input;
+    private String writeCertificateSecret;
+    // Epoch of the metadata the Server was last sent, updates from it are sent as deltas
+    private long sentEpoch;
 
     private static final int BUFFER_SIZE = 1024;
     private static final int DROP_SIZE = 1024 * BUFFER_SIZE;
@@ -49,7 +52,20 @@ public class AdminStore implements AdminCommInterface {
         }
         KVMessage message = new Message(KVMessage.StatusType.ADMIN_INIT_KVSERVER, String.valueOf(cacheSize), replacementStrategy, metadata.getSerializedForm());
         sendMessage(message);
+        sentEpoch = metadata.getEpoch();
         //KVMessage response = receiveMessage();
+        if (writeCertificateSecret != null) {
+            sendMessage(new Message(KVMessage.StatusType.ADMIN_WRITE_CERTIFICATE_SECRET, writeCertificateSecret, null, null));
+        }
+    }
+
+    /**
+     * Sets the secret the Server verifies client write certificates with, sent along when the Server is initialized.
+     *
+     * @param writeCertificateSecret secret shared with the Admin, null to leave writes uncertified
+     */
+    public void setWriteCertificateSecret(String writeCertificateSecret) {
+        this.writeCertificateSecret = writeCertificateSecret;
     }
 
     @Override
@@ -101,6 +117,14 @@ public class AdminStore implements AdminCommInterface {
         KVMessage response = receiveMessage();
     }
 
+    @Override
+    public String getTransferStatus() throws Exception {
+        KVMessage message = new Message(KVMessage.StatusType.ADMIN_TRANSFER_STATUS, null, null, null);
+        sendMessage(message);
+        KVMessage response = receiveMessage();
+        return response.getValue();
+    }
+
     @Override
     public void deleteData() throws Exception {
         KVMessage message = new Message(KVMessage.StatusType.ADMIN_DELETEDATA, null, null, null);
@@ -110,8 +134,11 @@ public class AdminStore implements AdminCommInterface {
 
     @Override
     public void update(Metadata metadata) throws Exception {
-        KVMessage message = new Message(KVMessage.StatusType.ADMIN_UPDATE, null, null, metadata.getSerializedForm());
+        String delta = metadata.getDelta(sentEpoch);
+        KVMessage message = new Message(KVMessage.StatusType.ADMIN_UPDATE, null, null,
+                delta != null ? delta : metadata.getSerializedForm());
         sendMessage(message);
+        sentEpoch = metadata.getEpoch();
     }
 
     @Override
@@ -95,6 +95,10 @@ public class AdminClient implements Runnable {
             handleAddNode(tokens);
         } else if (tokens[0].equals("removeNode")) {
             handleRemoveNode(tokens);
+        } else if (tokens[0].equals("weight")) {
+            handleWeight(tokens);
+        } else if (tokens[0].equals("clientKey")) {
+            handleClientKey(tokens);
         } else if (tokens[0].equals("help")) {
             printHelp();
         } else if (tokens[0].equals("quit")) {
@@ -197,6 +201,36 @@ public class AdminClient implements Runnable {
         }
     }
 
+    private void handleWeight(String[] tokens) {
+        if (tokens.length == 3) {
+            try {
+                store.setWeight(Integer.parseInt(tokens[1]), Double.parseDouble(tokens[2]));
+            } catch (NumberFormatException e) {
+                printError("Index of server and weight must be numbers.");
+                logger.error("Unable to parse index of server or weight.");
+            } catch (IllegalStateException | IllegalArgumentException e) {
+                printError(e.getMessage());
+            } catch (Exception e) {
+                printError("Operation was unsuccessful.");
+                logger.error("Changing weight failed", e);
+            }
+        } else {
+            printError("Invalid number of parameters. Need index of server and weight.");
+        }
+    }
+
+    private void handleClientKey(String[] tokens) {
+        if (tokens.length == 2) {
+            try {
+                System.out.println(PROMPT + store.getClientWriteKey(tokens[1]));
+            } catch (IllegalStateException | IllegalArgumentException e) {
+                printError(e.getMessage());
+            }
+        } else {
+            printError("Invalid number of parameters. Need clientId.");
+        }
+    }
+
     /**
      * Handles exit of client application command line shell.
      */
@@ -239,6 +273,12 @@ public class AdminClient implements Runnable {
         sb.append(PROMPT).append("removeNode");
         sb.append("\t\t\t Randomly removes a node\n");
 
+        sb.append(PROMPT).append("weight <serverIndex> <weight>");
+        sb.append("\t\t\t Changes the share of the ring of a server and rebalances\n");
+
+        sb.append(PROMPT).append("clientKey <clientId>");
+        sb.append("\t\t\t Prints the key the client signs its writes with\n");
+
         sb.append(PROMPT).append("logLevel <level>");
         sb.append("\t\t changes the logLevel to the specified log level \n");
 
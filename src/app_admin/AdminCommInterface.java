@@ -47,4 +47,20 @@ public interface AdminCommInterface {
     int getNodeIndex(String serverKey) throws IllegalArgumentException;
 
     void unsubscribeBroadcast(String keyToUnsub, String clientToUnsub) throws Exception;
+
+    /**
+     * Changes the weight of a server, running servers are rebalanced.
+     *
+     * @param indexOfServer position of the server in admin.config
+     * @param weight new weight, larger than 0
+     */
+    void setWeight(int indexOfServer, double weight) throws Exception;
+
+    /**
+     * Provisions the key a client signs its writes with, derived from the secret shared with the servers.
+     *
+     * @param clientId identifier of the client, without ':' or ','
+     * @return hex key to hand to {@link client.Store#setWriteCertificateKey}
+     */
+    String getClientWriteKey(String clientId) throws IllegalStateException;
 }
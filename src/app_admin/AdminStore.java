@@ -3,6 +3,7 @@ package app_admin;
 import adminclient.AdminCommInterface;
 import common.HashRange;
 import common.Metadata;
+import common.WriteCertificate;
 import org.apache.log4j.Logger;
 
 import java.io.BufferedReader;
@@ -21,6 +22,9 @@ public class AdminStore implements app_admin.AdminCommInterface {
 
     private static int SLEEP_TIME = 5000;
 
+    // Secret the servers verify client write certificates with, set with -Dkv.writeCertificateSecret
+    private static String writeCertificateSecret = System.getProperty("kv.writeCertificateSecret");
+
     private Metadata metadata; // initialized in initService
     private List<Node> allNodes;
     private List<Node> runningNodes;
@@ -71,7 +75,6 @@ public class AdminStore implements app_admin.AdminCommInterface {
         }
 
         // Randomly pick nodes to  start up
-        List<String> runningNodeKeys = new ArrayList<>();
         int nodesToPick = Math.min(numberOfNodes, allNodes.size());
         for (int j = 0; j < nodesToPick; j++) {
             int index = new Random().nextInt(range.size());
@@ -86,10 +89,8 @@ public class AdminStore implements app_admin.AdminCommInterface {
 //                int indexIntoAllNodesList = range.remove(index);
 //                nodeToSsh = allNodes.get(indexIntoAllNodesList);
 //            }
-            runningNodeKeys.add(nodeToSsh.getKey());
             runningNodes.add(nodeToSsh);
             idleNodes.remove(nodeToSsh);
-            runningNodeKeys.add(nodeToSsh.getKey());
             Runtime.getRuntime().exec("ssh -n " + nodeToSsh.getAddress() + " nohup java -jar " + System.getProperty("user.dir") + "/server.jar " + nodeToSsh.getAddress() + " " + nodeToSsh.getPort() + " &");
         }
 
@@ -101,7 +102,7 @@ public class AdminStore implements app_admin.AdminCommInterface {
         }
 
         // Assign metadata
-        metadata = new Metadata(runningNodeKeys);
+        metadata = createMetadata(runningNodes);
 
         // Initialize servers with metadata
         for (int i = 0; i < runningNodes.size(); i++) {
@@ -137,7 +138,20 @@ public class AdminStore implements app_admin.AdminCommInterface {
             String name = tokens[0];
             String address = tokens[1];
             String port = tokens[2];
-            Node node = new Node(name, address, port);
+            // Optional weight column, nodes without one weigh 1
+            double weight = 1;
+            if (tokens.length > 3) {
+                try {
+                    weight = Double.parseDouble(tokens[3]);
+                } catch (NumberFormatException e) {
+                    weight = -1;
+                }
+                if (!(weight > 0)) {
+                    logger.error("Invalid weight " + tokens[3] + " for " + name + " in admin.config, using 1.");
+                    weight = 1;
+                }
+            }
+            Node node = new Node(name, address, port, weight);
             allNodes.add(node);
             idleNodes.add(node);
         }
@@ -164,7 +178,7 @@ public class AdminStore implements app_admin.AdminCommInterface {
                 lastRemovedNodeWithData.getKey(), replica1.getKey(), replica2.getKey()));
 
         // Create start metadata
-        metadata = new Metadata(Arrays.asList(lastRemovedNodeWithData.getKey(), replica1.getKey(), replica2.getKey()));
+        metadata = createMetadata(Arrays.asList(lastRemovedNodeWithData, replica1, replica2));
         HashRange copiedHashRange = new HashRange(lastRemovedNodeWithData.getMD5Key(), lastRemovedNodeWithData.getMD5Key());
 
         // Initialize starter servers
@@ -361,7 +375,8 @@ public class AdminStore implements app_admin.AdminCommInterface {
             store.connect();
 
             // Update metadata hash
-            Map<String, HashRange> serversNeededToCopyFrom = metadata.addNewServer(newNode.getKey(), newNode.getMD5Key());
+            Map<String, HashRange> serversNeededToCopyFrom = metadata.addNewServer(newNode.getKey(), newNode.getMD5Key(),
+                    getVirtualNodes(newNode));
             store.initKVServer(cacheSize, replacementStrategy, metadata);
             store.deleteData();
 
@@ -379,7 +394,7 @@ public class AdminStore implements app_admin.AdminCommInterface {
                 } catch (SocketException e) {
                     // Copying the same hash range from somewhere else
                     logger.debug("Cannot move data from dead server. Attempting to copy data from other replicas.");
-                    copyingHashRangeToServer(newNode, movingHashRange);
+                    copyingHashRangeToServer(newNode, movingHashRange, metadata);
                 }
             }
 
@@ -393,8 +408,30 @@ public class AdminStore implements app_admin.AdminCommInterface {
         logger.debug("Metadata: " + metadata.getSerializedForm());
     }
 
-    private void copyingHashRangeToServer(Node receivingNode, HashRange neededHashRange) {
-        List<String> readableServers = metadata.getReadableServers(neededHashRange.getEndHash());
+    /**
+     * Copies a range the receiving node needs from the servers holding it.
+     *
+     * @param holdersMetadata metadata that tells which servers hold the range
+     */
+    private void copyingHashRangeToServer(Node receivingNode, HashRange neededHashRange, Metadata holdersMetadata) {
+        // With virtual nodes the pieces of the range are held by different servers, copy each from its holders
+        Map<List<String>, HashRange> rangesByHolders = new LinkedHashMap<>();
+        for (HashRange piece : neededHashRange.getRanges()) {
+            List<String> holders = new ArrayList<>(holdersMetadata.getReadableServers(piece.getEndHash()));
+            holders.remove(receivingNode.getKey());
+            HashRange held = rangesByHolders.get(holders);
+            if (held == null) {
+                rangesByHolders.put(holders, new HashRange(piece.getStartHash(), piece.getEndHash()));
+            } else {
+                held.addVirtualRange(new HashRange(piece.getStartHash(), piece.getEndHash()));
+            }
+        }
+        for (Map.Entry<List<String>, HashRange> entry : rangesByHolders.entrySet()) {
+            copyFromHolders(receivingNode, entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void copyFromHolders(Node receivingNode, List<String> readableServers, HashRange neededHashRange) {
         Boolean movedSucceed = false;
 
         // Attempt to move data from these servers until one succeed
@@ -416,7 +453,7 @@ public class AdminStore implements app_admin.AdminCommInterface {
                     copyingFromStore.unLockWrite();
                 } catch (Exception e1) {}
                 logger.error(String.format("Failed to move HashRange %s from %s to %s. Trying a different one.",
-                        neededHashRange.toString(), copyingFromServer, receivingNode.getKey(), e));
+                        neededHashRange.getBounds(), copyingFromServer, receivingNode.getKey()), e);
             }
 
         }
@@ -519,32 +556,7 @@ public class AdminStore implements app_admin.AdminCommInterface {
                 continue;
             }
 
-            List<String> readableServers = metadata.getReadableServers(neededHashRange.getEndHash());
-            Boolean movedSucceed = false;
-
-            // Attempt to move data from these servers until one succeed
-            for (int i = 0; i < readableServers.size() && !movedSucceed; i++) {
-                String copyingFromServer = readableServers.get(i);
-                Node copyingFromServerNode = getNode(copyingFromServer);
-                AdminCommInterface copyingFromStore = copyingFromServerNode.getStore();
-
-                try {
-                    // Send metadata update to successor
-                    // Move files from to be removed store to successor
-                    copyingFromStore.lockWrite();
-                    copyingFromStore.update(metadata);
-                    copyingFromStore.copyData(receivingNode.getAddress(), receivingNode.getPort(), new Metadata(receivingServerKey, neededHashRange));
-                    copyingFromStore.unLockWrite();
-                    movedSucceed = true;
-                } catch (Exception e) {
-                    try {
-                        copyingFromStore.unLockWrite();
-                    } catch (Exception e1) {}
-                    logger.error(String.format("Failed to move HashRange %s from %s to %s.",
-                            neededHashRange.toString(), copyingFromServer, receivingServerKey, e));
-                }
-
-            }
+            copyingHashRangeToServer(receivingNode, neededHashRange, metadata);
         }
 
         // Clean up
@@ -596,4 +608,67 @@ public class AdminStore implements app_admin.AdminCommInterface {
         }
         return ret;
     }
+
+    public static String getWriteCertificateSecret() {
+        return writeCertificateSecret;
+    }
+
+    /**
+     * Changes the weight of a server. A running server's share of the ring is rebalanced, the servers that take
+     * over pieces of the ring copy them from their previous holders.
+     *
+     * @param indexOfServer position of the server in admin.config
+     * @param weight        new weight, larger than 0
+     */
+    @Override
+    public void setWeight(int indexOfServer, double weight) throws Exception {
+        checkInitializations();
+        if (indexOfServer < 0 || indexOfServer >= allNodes.size()) {
+            throw new IllegalArgumentException("Received invalid indexOfServer to reweigh.");
+        }
+        if (!(weight > 0)) {
+            throw new IllegalArgumentException("Weight must be larger than 0.");
+        }
+
+        Node node = allNodes.get(indexOfServer);
+        node.setWeight(weight);
+        if (!runningNodes.contains(node) || metadata == null) {
+            return;
+        }
+
+        Metadata previous = Metadata.deserialize(metadata.getSerializedForm());
+        Map<String, HashRange> serversNeedUpdate = metadata.setVirtualNodes(node.getKey(), getVirtualNodes(node));
+        for (Map.Entry<String, HashRange> entry : serversNeedUpdate.entrySet()) {
+            copyingHashRangeToServer(getNode(entry.getKey()), entry.getValue(), previous);
+        }
+        broadcastMetadataUpdate();
+        logger.debug("Metadata: " + metadata.getSerializedForm());
+    }
+
+    /**
+     * Number of virtual nodes for a node, in proportion to its weight. A weight of 1 gets the nodes set with
+     * -Dkv.virtualNodes.
+     */
+    private static int getVirtualNodes(Node node) {
+        return Math.max(1, (int) Math.round(node.getWeight() * Metadata.DEFAULT_VIRTUAL_NODES));
+    }
+
+    private static Metadata createMetadata(List<Node> nodes) {
+        Metadata created = new Metadata();
+        for (Node node : nodes) {
+            created.addNewServer(node.getKey(), node.getMD5Key(), getVirtualNodes(node));
+        }
+        return created;
+    }
+
+    @Override
+    public String getClientWriteKey(String clientId) throws IllegalStateException {
+        if (writeCertificateSecret == null) {
+            throw new IllegalStateException("No write certificate secret configured, start the admin with -Dkv.writeCertificateSecret");
+        }
+        if (clientId.contains(":") || clientId.contains(",")) {
+            throw new IllegalArgumentException("Client id must not contain ':' or ','");
+        }
+        return WriteCertificate.deriveClientKey(writeCertificateSecret, clientId);
+    }
 }
@@ -11,13 +11,22 @@ public class Node {
     private String port;
     private AdminCommInterface store;
     private String md5Hash;
+    // Share of the ring relative to other nodes, see AdminStore#getVirtualNodes
+    private double weight;
 
     public Node(String name, String address, String port) {
+        this(name, address, port, 1);
+    }
+
+    public Node(String name, String address, String port, double weight) {
         this.name = name;
+        this.weight = weight;
         this.address = address;
         this.port = port;
         this.md5Hash = HashRange.getMd5Hash(String.format("%s:%s", address, port));
-        this.store = new AdminStore(this.address, Integer.parseInt(this.port));
+        AdminStore adminStore = new AdminStore(this.address, Integer.parseInt(this.port));
+        adminStore.setWriteCertificateSecret(app_admin.AdminStore.getWriteCertificateSecret());
+        this.store = adminStore;
     }
 
     public String getName() {
@@ -40,6 +49,14 @@ public class Node {
         return md5Hash;
     }
 
+    public double getWeight() {
+        return weight;
+    }
+
+    public void setWeight(double weight) {
+        this.weight = weight;
+    }
+
     public AdminCommInterface getStore() {
         return store;
     }
@@ -1,12 +1,20 @@
 package app_server;
 
+import common.HashRange;
+import common.Hashing;
+import common.messages.KVMessage;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVRecord;
-import org.apache.commons.lang3.StringEscapeUtils;
 import org.apache.log4j.Logger;
 
 import java.io.*;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Base CacheStorage that handles common persist, load and delete methods to handle disk I/Os.
@@ -16,10 +24,131 @@ public abstract class AbstractCachedStorage implements CachedStorage {
     private static Logger logger = Logger.getRootLogger();
     private String filename;
 
+    protected ReentrantLock lock = new ReentrantLock(true);
+
     public AbstractCachedStorage(String hostname, int port) {
         this.filename = hostname + String.valueOf(port);
     }
 
+    /**
+     * Looks up a key in cache only, counting it as an access. Storages without a cache never hit.
+     *
+     * @param key key that identifies a value
+     * @return the cached value or null if the key is not cached
+     */
+    protected String getFromCache(String key) {
+        return null;
+    }
+
+    /**
+     * Inserts, updates or removes (null value) a key in cache only. Storages without a cache ignore it.
+     *
+     * @param key   key that identifies a value
+     * @param value new value, or null to drop the key from cache
+     */
+    protected void updateCache(String key, String value) {
+    }
+
+    @Override
+    public Map<String, KVMessage.StatusType> putAll(Map<String, String> entries) {
+        Map<String, KVMessage.StatusType> rtn = new HashMap<>();
+        lock.lock();
+        try {
+            Map<String, String> previousValuesOnDisk = persistAllToDisk(entries);
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                String key = entry.getKey();
+                boolean existed = previousValuesOnDisk.containsKey(key);
+                if (entry.getValue() == null) {
+                    rtn.put(key, existed ? KVMessage.StatusType.DELETE_SUCCESS : KVMessage.StatusType.DELETE_ERROR);
+                } else {
+                    rtn.put(key, existed ? KVMessage.StatusType.PUT_UPDATE : KVMessage.StatusType.PUT_SUCCESS);
+                }
+                updateCache(key, entry.getValue());
+            }
+        } catch (IOException e) {
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                rtn.put(entry.getKey(), entry.getValue() == null ?
+                        KVMessage.StatusType.DELETE_ERROR : KVMessage.StatusType.PUT_ERROR);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return rtn;
+    }
+
+    @Override
+    public Map<String, String> getAll(Collection<String> keys) {
+        Map<String, String> rtn = new HashMap<>();
+        lock.lock();
+        try {
+            Set<String> missing = new HashSet<>();
+            for (String key : keys) {
+                String valueInCache = getFromCache(key);
+                if (valueInCache != null) {
+                    rtn.put(key, valueInCache);
+                } else {
+                    missing.add(key);
+                }
+            }
+            if (!missing.isEmpty()) {
+                Map<String, String> valuesOnDisk = loadAllFromDisk(missing);
+                for (Map.Entry<String, String> entry : valuesOnDisk.entrySet()) {
+                    updateCache(entry.getKey(), entry.getValue());
+                }
+                rtn.putAll(valuesOnDisk);
+            }
+        } catch (IOException e) {
+            logger.error("Error reading data file for batch get.");
+        } finally {
+            lock.unlock();
+        }
+        return rtn;
+    }
+
+    @Override
+    public Map<String, String> getRange(HashRange range) {
+        lock.lock();
+        try {
+            return loadRangeFromDisk(range);
+        } catch (IOException e) {
+            logger.error("Error reading data file for range scan.");
+            return new HashMap<>();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String getDigest(String key) {
+        String valueInCache;
+        lock.lock();
+        try {
+            valueInCache = getFromCache(key);
+        } finally {
+            lock.unlock();
+        }
+        if (valueInCache != null) {
+            return Hashing.md5Hex(valueInCache);
+        }
+        // The data file is only ever replaced by a rename, a read without the lock sees one version of it
+        try {
+            return loadDigestFromDisk(key);
+        } catch (IOException e) {
+            logger.error("Error reading data file for digest.");
+            return null;
+        }
+    }
+
+    /**
+     * Logs a record that failed its checksum and has it repaired from a replica.
+     *
+     * @param key key of the corrupt record
+     */
+    protected void reportCorruptRecord(String key) {
+        logger.error("Record of key " + key + " in the data file failed its checksum.");
+        WelcomeThread.repairCorruptRecord(key);
+    }
+
     /**
      * Persists the given key value pair to disk file.
      *
@@ -55,7 +184,7 @@ public abstract class AbstractCachedStorage implements CachedStorage {
             throw e;
         }
 
-        File tempFile = new File(absoluteDirPath + File.pathSeparator + "temp");
+        File tempFile = new File(absoluteDirPath + File.separator + "temp");
         BufferedWriter writer;
         try {
             writer = new BufferedWriter(new FileWriter(tempFile));
@@ -77,10 +206,7 @@ public abstract class AbstractCachedStorage implements CachedStorage {
                 }
                 writer.write(currentLine + System.getProperty("line.separator"));
             }
-            String escapedKey = StringEscapeUtils.escapeCsv(key);
-            String escapedValue = StringEscapeUtils.escapeCsv(value);
-            String newLine = escapedKey + "," + escapedValue;
-            writer.write(newLine + System.getProperty("line.separator"));
+            writer.write(RecordChecksum.toLine(key, value) + System.getProperty("line.separator"));
             writer.close();
             reader.close();
         } catch (IOException e) {
@@ -96,6 +222,196 @@ public abstract class AbstractCachedStorage implements CachedStorage {
         return rtn;
     }
 
+    /**
+     * Persists a batch of key value pairs to disk file with a single rewrite of the file.
+     *
+     * @param entries key value pairs to be written, a null value deletes the key
+     * @return the previous values on disk of the keys that existed
+     * @throws IOException errors in disk read/writes
+     */
+    public Map<String, String> persistAllToDisk(Map<String, String> entries) throws IOException {
+
+        String workingDirectory = System.getProperty("user.dir");
+
+        String absoluteDirPath = workingDirectory + File.separator +filename;
+        File dir = new File(absoluteDirPath);
+
+        dir.mkdir();
+
+        String absoluteFilePath = absoluteDirPath + File.separator + "Data";
+        File inputFile = new File(absoluteFilePath);
+        try {
+            inputFile.createNewFile();
+        } catch (IOException e) {
+            logger.error("Cannot create or read data file.");
+            throw e;
+        }
+
+        BufferedReader reader;
+        try {
+            reader = new BufferedReader(new FileReader(inputFile));
+        } catch (IOException e) {
+            logger.error("Cannot create reader for data file");
+            throw e;
+        }
+
+        File tempFile = new File(absoluteDirPath + File.separator + "temp");
+        BufferedWriter writer;
+        try {
+            writer = new BufferedWriter(new FileWriter(tempFile));
+        } catch (IOException e) {
+            reader.close();
+            logger.error("Cannot create writer for temporary file.");
+            throw e;
+        }
+
+        Map<String, String> rtn = new HashMap<>();
+        try {
+            String currentLine;
+            while ((currentLine = reader.readLine()) != null) {
+                String trimmedLine = currentLine.trim();
+                CSVParser parser = CSVParser.parse(trimmedLine, CSVFormat.RFC4180);
+                CSVRecord csvRecord = parser.getRecords().get(0);
+                if (entries.containsKey(csvRecord.get(0))) {
+                    rtn.put(csvRecord.get(0), csvRecord.get(1));
+                    continue;
+                }
+                writer.write(currentLine + System.getProperty("line.separator"));
+            }
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                if (entry.getValue() == null) {
+                    continue;
+                }
+                writer.write(RecordChecksum.toLine(entry.getKey(), entry.getValue()) + System.getProperty("line.separator"));
+            }
+            writer.close();
+            reader.close();
+        } catch (IOException e) {
+            logger.error("Error while copying data to temporary file.");
+            tempFile.delete();
+            throw e;
+        }
+
+        if (!tempFile.renameTo(inputFile)) {
+            tempFile.delete();
+            throw new IOException("Cannot replace data file.");
+        }
+        return rtn;
+    }
+
+    @Override
+    public int putRecords(File records) throws IOException {
+        // Keys first, the values are streamed from the file rather than held in memory
+        Set<String> keys = new HashSet<>();
+        BufferedReader recordReader = new BufferedReader(new FileReader(records));
+        try {
+            String line;
+            while ((line = recordReader.readLine()) != null) {
+                CSVRecord record = parseRecord(line);
+                if (RecordChecksum.isValid(record)) {
+                    keys.add(record.get(0));
+                } else {
+                    logger.error("Received record of key " + record.get(0) + " failed its checksum, not stored.");
+                }
+            }
+        } finally {
+            recordReader.close();
+        }
+
+        String absoluteDirPath = System.getProperty("user.dir") + File.separator + filename;
+        new File(absoluteDirPath).mkdir();
+        File dataFile = new File(absoluteDirPath + File.separator + "Data");
+        dataFile.createNewFile();
+        File tempFile = new File(absoluteDirPath + File.separator + "temp");
+        lock.lock();
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(dataFile));
+            BufferedWriter writer = new BufferedWriter(new FileWriter(tempFile));
+            recordReader = new BufferedReader(new FileReader(records));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!keys.contains(parseRecord(line).get(0))) {
+                        writer.write(line + System.getProperty("line.separator"));
+                    }
+                }
+                while ((line = recordReader.readLine()) != null) {
+                    if (RecordChecksum.isValid(parseRecord(line))) {
+                        writer.write(line.trim() + System.getProperty("line.separator"));
+                    }
+                }
+            } catch (IOException e) {
+                logger.error("Error while merging received records into temporary file.");
+                tempFile.delete();
+                throw e;
+            } finally {
+                writer.close();
+                reader.close();
+                recordReader.close();
+            }
+            if (!tempFile.renameTo(dataFile)) {
+                tempFile.delete();
+                throw new IOException("Cannot replace data file.");
+            }
+            for (String key : keys) {
+                // Read from disk again when asked for
+                updateCache(key, null);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return keys.size();
+    }
+
+    @Override
+    public int removeRecords(Map<String, String> checksums) throws IOException {
+        String absoluteDirPath = System.getProperty("user.dir") + File.separator + filename;
+        File dataFile = new File(absoluteDirPath + File.separator + "Data");
+        Set<String> removed = new HashSet<>();
+        lock.lock();
+        try {
+            if (!dataFile.exists()) {
+                return 0;
+            }
+            File tempFile = File.createTempFile("temp", null, new File(absoluteDirPath));
+            BufferedReader reader = new BufferedReader(new FileReader(dataFile));
+            BufferedWriter writer = new BufferedWriter(new FileWriter(tempFile));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    CSVRecord record = parseRecord(line);
+                    String checksum = checksums.get(record.get(0));
+                    if (checksum != null && checksum.equals(RecordChecksum.compute(record.get(0), record.get(1)))) {
+                        removed.add(record.get(0));
+                        continue;
+                    }
+                    writer.write(line + System.getProperty("line.separator"));
+                }
+            } catch (IOException e) {
+                logger.error("Error while removing records into temporary file.");
+                tempFile.delete();
+                throw e;
+            } finally {
+                writer.close();
+                reader.close();
+            }
+            if (!tempFile.renameTo(dataFile)) {
+                tempFile.delete();
+                throw new IOException("Cannot replace data file.");
+            }
+            for (String key : removed) {
+                updateCache(key, null);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return removed.size();
+    }
+
+    private static CSVRecord parseRecord(String line) throws IOException {
+        return CSVParser.parse(line.trim(), CSVFormat.RFC4180).getRecords().get(0);
+    }
+
     public void persistWithoutUniqueCheck(String key, String value) {
         String workingDirectory = System.getProperty("user.dir");
 
@@ -119,11 +435,8 @@ public abstract class AbstractCachedStorage implements CachedStorage {
             logger.error("Cannot create writer for temporary file.");
         }
 
-        String escapedKey = StringEscapeUtils.escapeCsv(key);
-        String escapedValue = StringEscapeUtils.escapeCsv(value);
-        String newLine = escapedKey + "," + escapedValue;
         try {
-            writer.write(newLine + System.getProperty("line.separator"));
+            writer.write(RecordChecksum.toLine(key, value) + System.getProperty("line.separator"));
             writer.close();
         } catch (IOException e) {
             logger.error("Error writing to data file.");
@@ -170,11 +483,18 @@ public abstract class AbstractCachedStorage implements CachedStorage {
                 CSVParser parser = CSVParser.parse(trimmedLine, CSVFormat.RFC4180);
                 CSVRecord csvRecord = parser.getRecords().get(0);
                 if (csvRecord.get(0).equals(key)) {
+                    if (!RecordChecksum.isValid(csvRecord)) {
+                        reader.close();
+                        reportCorruptRecord(key);
+                        throw new CorruptRecordException(key);
+                    }
                     value = csvRecord.get(1);
                     break;
                 }
             }
             reader.close();
+        } catch (CorruptRecordException e) {
+            throw e;
         } catch (IOException e) {
             logger.error("Error reading date file.");
             throw e;
@@ -182,6 +502,141 @@ public abstract class AbstractCachedStorage implements CachedStorage {
         return value;
     }
 
+    /**
+     * Loads the digest kept beside the record of the given key from disk file.
+     *
+     * @param key key of the record
+     * @return MD5 digest of the value on disk, null if the key does not exist or its record is corrupt
+     * @throws IOException errors in disk reads
+     */
+    public String loadDigestFromDisk(String key) throws IOException {
+        File inputFile = new File(System.getProperty("user.dir") + File.separator + filename + File.separator + "Data");
+        if (!inputFile.exists()) {
+            return null;
+        }
+
+        BufferedReader reader = new BufferedReader(new FileReader(inputFile));
+        try {
+            String currentLine;
+            while ((currentLine = reader.readLine()) != null) {
+                CSVRecord csvRecord = parseRecord(currentLine);
+                if (csvRecord.get(0).equals(key)) {
+                    if (!RecordChecksum.isValid(csvRecord)) {
+                        reportCorruptRecord(key);
+                        return null;
+                    }
+                    return RecordChecksum.getDigest(csvRecord);
+                }
+            }
+            return null;
+        } catch (IOException e) {
+            logger.error("Error reading date file.");
+            throw e;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Loads the values associated with the given keys from disk file in a single pass.
+     *
+     * @param keys keys of the key-value pairs in which the values are to be retrieved
+     * @return values currently on disk of the keys that exist
+     * @throws IOException errors in disk read/writes
+     */
+    public Map<String, String> loadAllFromDisk(Set<String> keys) throws IOException {
+
+        String workingDirectory = System.getProperty("user.dir");
+
+        String absoluteFilePath = workingDirectory + File.separator + filename + File.separator + "Data";
+
+        Map<String, String> values = new HashMap<>();
+        File inputFile = new File(absoluteFilePath);
+        if (!inputFile.exists()) {
+            return values;
+        }
+
+        BufferedReader reader;
+        try {
+            reader = new BufferedReader(new FileReader(inputFile));
+        } catch (IOException e) {
+            logger.error("Cannot create reader for data file");
+            throw e;
+        }
+
+        try {
+            String currentLine;
+            while (values.size() < keys.size() && (currentLine = reader.readLine()) != null) {
+                String trimmedLine = currentLine.trim();
+                CSVParser parser = CSVParser.parse(trimmedLine, CSVFormat.RFC4180);
+                CSVRecord csvRecord = parser.getRecords().get(0);
+                String key = csvRecord.get(0);
+                if (keys.contains(key) && !values.containsKey(key)) {
+                    if (!RecordChecksum.isValid(csvRecord)) {
+                        reportCorruptRecord(key);
+                        continue;
+                    }
+                    values.put(key, csvRecord.get(1));
+                }
+            }
+            reader.close();
+        } catch (IOException e) {
+            logger.error("Error reading date file.");
+            throw e;
+        }
+        return values;
+    }
+
+    /**
+     * Loads every key value pair whose key hash lies in the given range from disk file in a single pass.
+     *
+     * @param range hash range of the keys
+     * @return key value pairs on disk in the range
+     * @throws IOException errors in disk read/writes
+     */
+    public Map<String, String> loadRangeFromDisk(HashRange range) throws IOException {
+
+        String workingDirectory = System.getProperty("user.dir");
+
+        String absoluteFilePath = workingDirectory + File.separator + filename + File.separator + "Data";
+
+        Map<String, String> values = new HashMap<>();
+        File inputFile = new File(absoluteFilePath);
+        if (!inputFile.exists()) {
+            return values;
+        }
+
+        BufferedReader reader;
+        try {
+            reader = new BufferedReader(new FileReader(inputFile));
+        } catch (IOException e) {
+            logger.error("Cannot create reader for data file");
+            throw e;
+        }
+
+        try {
+            String currentLine;
+            while ((currentLine = reader.readLine()) != null) {
+                String trimmedLine = currentLine.trim();
+                CSVParser parser = CSVParser.parse(trimmedLine, CSVFormat.RFC4180);
+                CSVRecord csvRecord = parser.getRecords().get(0);
+                String key = csvRecord.get(0);
+                if (range.isKeyInRange(key) && !values.containsKey(key)) {
+                    if (!RecordChecksum.isValid(csvRecord)) {
+                        reportCorruptRecord(key);
+                        continue;
+                    }
+                    values.put(key, csvRecord.get(1));
+                }
+            }
+            reader.close();
+        } catch (IOException e) {
+            logger.error("Error reading date file.");
+            throw e;
+        }
+        return values;
+    }
+
     /**
      * Deletes the key value pair referenced by the input key from disk file.
      *
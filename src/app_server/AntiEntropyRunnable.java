@@ -0,0 +1,335 @@
+package app_server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
+import common.HashRange;
+import common.messages.KVMessage;
+import common.messages.Message;
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Periodically repairs the replicas of this server's ranges. Instead of copying the whole range, this server and each
+ * replica build a {@link MerkleTree} over the range and compare it from the root down, so only the buckets that
+ * differ are exchanged and only the keys that differ are rewritten on the replica.
+ * <p>
+ * Keys whose writes are still in flight on the replication channel are left alone, the channel delivers them.
+ * Repairs carry the client certificates of their values and the position of the replication log when they were
+ * read, so the replica verifies them like replicated writes and does not undo writes applied meanwhile.
+ */
+public class AntiEntropyRunnable implements Runnable {
+    private static Logger logger = Logger.getRootLogger();
+
+    private static final int BUFFER_SIZE = 1024;
+    // Bucket digests of a large range can exceed what client connections read
+    private static final int DROP_SIZE = 16 * 1024 * BUFFER_SIZE;
+    private static final int CONNECT_TIMEOUT = 5 * 1000;
+    private static final int READ_TIMEOUT = 30 * 1000;
+    // Replicas drop messages beyond 128 KB
+    private static final int MAX_REPAIR_BYTES = 96 * BUFFER_SIZE;
+    // Number of tree nodes requested per round trip
+    private static final int MAX_NODES_PER_REQUEST = 1024;
+
+    private static final Gson gson = new Gson();
+    private static final Type stringMapType = new TypeToken<Map<String, String>>(){}.getType();
+
+    private final long intervalMillis;
+    private volatile boolean isOpen;
+    private Thread thread;
+
+    /**
+     * @param intervalMillis time between two repair rounds
+     */
+    public AntiEntropyRunnable(long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+        this.isOpen = true;
+    }
+
+    public void start() {
+        thread = ServerExecutors.newThread(this, "anti-entropy", true);
+        thread.start();
+    }
+
+    public void close() {
+        isOpen = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    public void run() {
+        while (isOpen) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (WelcomeThread.isServerInitialized && WelcomeThread.isOpenToClientRequests) {
+                repairReplicas();
+            }
+        }
+    }
+
+    /**
+     * Runs one repair round against every replica of this server's range.
+     */
+    public void repairReplicas() {
+        String ownKey = WelcomeThread.getIPAddress() + ":" + WelcomeThread.getPortNumber();
+        HashRange range = WelcomeThread.metadata.getHashRange(ownKey);
+        if (range == null) {
+            return;
+        }
+        Set<String> replicas = new LinkedHashSet<>();
+        for (HashRange node : range.getRanges()) {
+            replicas.addAll(WelcomeThread.metadata.getBackups(node.getEndHash()));
+        }
+        replicas.remove(ownKey);
+
+        // With virtual nodes every replica holds its own share of the ranges, replicas sharing one share a tree
+        Map<String, MerkleTree> trees = new HashMap<>();
+        for (String replica : replicas) {
+            HashRange replicated = WelcomeThread.metadata.getReplicatedRange(ownKey, replica);
+            if (replicated == null) {
+                continue;
+            }
+            MerkleTree tree = trees.get(replicated.getBounds());
+            if (tree == null) {
+                tree = new MerkleTree(WelcomeThread.getCachedStorage().getRange(replicated));
+                trees.put(replicated.getBounds(), tree);
+            }
+            try {
+                int repaired = repairReplica(replica, replicated, tree);
+                if (repaired > 0) {
+                    logger.info("Anti-entropy repaired " + repaired + " keys on replica " + replica);
+                }
+            } catch (IOException e) {
+                logger.warn("Anti-entropy with replica " + replica + " failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Compares the tree of this server with the replica's tree and rewrites the keys that differ.
+     *
+     * @return number of keys repaired on the replica
+     * @throws IOException if the replica cannot be reached
+     */
+    private int repairReplica(String replica, HashRange range, MerkleTree tree) throws IOException {
+        String[] splits = replica.split(":");
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(splits[0], Integer.parseInt(splits[1])), CONNECT_TIMEOUT);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(READ_TIMEOUT);
+            OutputStream output = socket.getOutputStream();
+            InputStream input = socket.getInputStream();
+            String rangeKey = range.getBounds();
+
+            // Descend only into subtrees whose hashes differ
+            List<Integer> differingLeaves = new ArrayList<>();
+            List<Integer> level = new ArrayList<>();
+            level.add(MerkleTree.ROOT);
+            while (!level.isEmpty()) {
+                Map<String, String> replicaHashes = new HashMap<>();
+                for (int from = 0; from < level.size(); from += MAX_NODES_PER_REQUEST) {
+                    List<Integer> nodes = level.subList(from, Math.min(level.size(), from + MAX_NODES_PER_REQUEST));
+                    KVMessage reply = exchange(socket, input, output, new Message(KVMessage.StatusType.ADMIN_MERKLE_NODES,
+                            rangeKey, gson.toJson(nodes), null));
+                    replicaHashes.putAll(gson.<Map<String, String>>fromJson(reply.getValue(), stringMapType));
+                }
+                List<Integer> nextLevel = new ArrayList<>();
+                for (int node : level) {
+                    if (tree.getNodeHash(node).equals(replicaHashes.get(String.valueOf(node)))) {
+                        continue;
+                    }
+                    if (MerkleTree.isLeaf(node)) {
+                        differingLeaves.add(node);
+                    } else {
+                        nextLevel.add(2 * node);
+                        nextLevel.add(2 * node + 1);
+                    }
+                }
+                level = nextLevel;
+            }
+            if (differingLeaves.isEmpty()) {
+                return 0;
+            }
+
+            Set<String> staleKeys = new LinkedHashSet<>();
+            Set<String> extraKeys = new LinkedHashSet<>();
+            for (int leaf : differingLeaves) {
+                int bucket = leaf - MerkleTree.LEAVES;
+                KVMessage reply = exchange(socket, input, output, new Message(KVMessage.StatusType.ADMIN_MERKLE_BUCKET,
+                        rangeKey, String.valueOf(bucket), null));
+                Map<String, String> replicaDigests = gson.fromJson(reply.getValue(), stringMapType);
+                Map<String, String> ownDigests = tree.getBucketDigests(bucket);
+                for (Map.Entry<String, String> entry : ownDigests.entrySet()) {
+                    if (!entry.getValue().equals(replicaDigests.get(entry.getKey()))) {
+                        staleKeys.add(entry.getKey());
+                    }
+                }
+                for (String key : replicaDigests.keySet()) {
+                    if (!ownDigests.containsKey(key)) {
+                        extraKeys.add(key);
+                    }
+                }
+            }
+            // Writes logged up to here are stored and either pending or applied on the replica, the replica skips
+            // keys it applied later writes of
+            WriteReplicationRunnable channel = WelcomeThread.getReplicationChannel(replica);
+            long loggedSequence = channel.getLoggedSequence();
+            Set<String> pendingKeys = channel.getPendingKeys();
+            staleKeys.removeAll(pendingKeys);
+            extraKeys.removeAll(pendingKeys);
+            // A corrupt record missing from this server's tree must not be deleted on the replica it is repaired from
+            extraKeys.removeAll(WelcomeThread.getRepairingKeys());
+
+            // Re-read the values, they may have changed since the tree was built
+            List<ReplicatedWrite> repairs = new ArrayList<>();
+            Map<String, String> currentValues = WelcomeThread.getCachedStorage().getAll(staleKeys);
+            for (String key : staleKeys) {
+                String value = currentValues.get(key) == null ? "null" : currentValues.get(key);
+                repairs.add(new ReplicatedWrite(loggedSequence, key, value, null, WelcomeThread.getWriteCertificate(key, value)));
+            }
+            for (String key : extraKeys) {
+                repairs.add(new ReplicatedWrite(loggedSequence, key, "null", null, WelcomeThread.getWriteCertificate(key, "null")));
+            }
+            sendRepairs(socket, input, output, rangeKey, channel.getLogKey(), repairs);
+            return repairs.size();
+        }
+    }
+
+    /**
+     * Sends the repairs in chunks the replica reads completely, waiting for each to be applied.
+     */
+    private void sendRepairs(Socket socket, InputStream input, OutputStream output, String rangeKey, String logKey,
+                             List<ReplicatedWrite> repairs) throws IOException {
+        List<ReplicatedWrite> chunk = new ArrayList<>();
+        int chunkBytes = 0;
+        for (ReplicatedWrite repair : repairs) {
+            int repairBytes = StringEscapeUtils.escapeJson(gson.toJson(repair)).length() + 1;
+            if (!chunk.isEmpty() && chunkBytes + repairBytes > MAX_REPAIR_BYTES) {
+                exchange(socket, input, output, new Message(KVMessage.StatusType.ADMIN_MERKLE_REPAIR,
+                        rangeKey, gson.toJson(chunk), logKey));
+                chunk = new ArrayList<>();
+                chunkBytes = 0;
+            }
+            chunk.add(repair);
+            chunkBytes += repairBytes;
+        }
+        if (!chunk.isEmpty()) {
+            exchange(socket, input, output, new Message(KVMessage.StatusType.ADMIN_MERKLE_REPAIR,
+                    rangeKey, gson.toJson(chunk), logKey));
+        }
+    }
+
+    /**
+     * Sends a request and expects a reply of the same status.
+     */
+    private KVMessage exchange(Socket socket, InputStream input, OutputStream output, KVMessage msg)
+            throws IOException {
+        KVMessage reply = request(socket, input, output, msg);
+        if (reply.getStatus() != msg.getStatus()) {
+            throw new IOException("Unexpected reply to " + msg.getStatus() + ": " + reply.getStatus());
+        }
+        return reply;
+    }
+
+    /**
+     * Sends a request to another server and reads its reply.
+     *
+     * @throws IOException if the server cannot be reached
+     */
+    static KVMessage request(Socket socket, InputStream input, OutputStream output, KVMessage msg)
+            throws IOException {
+        byte[] msgBytes = msg.getBytes();
+        output.write(msgBytes, 0, msgBytes.length);
+        output.flush();
+        logger.debug("SEND \t<" + socket.getInetAddress().getHostAddress() + ":" + socket.getPort() + ">: '"
+                + msg.getStatus() + "'");
+        return receiveMessage(socket, input);
+    }
+
+    private static KVMessage receiveMessage(Socket socket, InputStream input) throws IOException {
+        int index = 0;
+        byte[] msgBytes = null, tmp = null;
+        byte[] bufferBytes = new byte[BUFFER_SIZE];
+
+        /* read first char from stream */
+        int readInt = input.read();
+        if (readInt == -1) {
+            throw new IOException("Connection dead");
+        }
+        byte read = (byte) readInt;
+
+        boolean reading = true;
+
+        while(read != 10 && reading) {/* CR, LF, error */
+            /* if buffer filled, copy to msg array */
+            if(index == BUFFER_SIZE) {
+                if(msgBytes == null){
+                    tmp = new byte[BUFFER_SIZE];
+                    System.arraycopy(bufferBytes, 0, tmp, 0, BUFFER_SIZE);
+                } else {
+                    tmp = new byte[msgBytes.length + BUFFER_SIZE];
+                    System.arraycopy(msgBytes, 0, tmp, 0, msgBytes.length);
+                    System.arraycopy(bufferBytes, 0, tmp, msgBytes.length,
+                            BUFFER_SIZE);
+                }
+
+                msgBytes = tmp;
+                bufferBytes = new byte[BUFFER_SIZE];
+                index = 0;
+            }
+
+            bufferBytes[index] = read;
+            index++;
+
+            /* stop reading is DROP_SIZE is reached */
+            if(msgBytes != null && msgBytes.length + index >= DROP_SIZE) {
+                reading = false;
+            }
+
+            /* read next char from stream */
+            readInt = input.read();
+            if (readInt == -1) {
+                throw new IOException("Connection dead");
+            }
+            read = (byte) readInt;
+        }
+
+        if(msgBytes == null){
+            tmp = new byte[index];
+            System.arraycopy(bufferBytes, 0, tmp, 0, index);
+        } else {
+            tmp = new byte[msgBytes.length + index];
+            System.arraycopy(msgBytes, 0, tmp, 0, msgBytes.length);
+            System.arraycopy(bufferBytes, 0, tmp, msgBytes.length, index);
+        }
+
+        // Deserialize
+        msgBytes = tmp;
+        String rawMessage = new String(msgBytes, "US-ASCII");
+
+        JsonObject jsonObject = new JsonParser().parse(rawMessage).getAsJsonObject();
+        String arg1= jsonObject.get("arg1").getAsString();
+        String arg2 = jsonObject.get("arg2").getAsString();
+        KVMessage.StatusType statusType = KVMessage.StatusType.valueOf(jsonObject.get("statusType").getAsString());
+        String arg3 = jsonObject.get("arg3").getAsString();
+        return new Message(statusType, arg1, arg2, arg3);
+    }
+}
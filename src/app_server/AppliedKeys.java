@@ -0,0 +1,45 @@
+package app_server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Log sequence of the keys a replica last applied from one coordinator's replication log, so an anti-entropy repair
+ * read before such a write does not undo it. Only the most recent keys are kept, set with -Dkv.appliedKeys. A repair
+ * older than the keys dropped cannot be told apart and counts as overtaken.
+ */
+class AppliedKeys {
+
+    private static final int MAX_KEYS = Integer.getInteger("kv.appliedKeys", 100000);
+
+    // In the order the keys were last applied, so the eldest holds the lowest sequence
+    private final LinkedHashMap<String, Long> sequences = new LinkedHashMap<String, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            if (size() > MAX_KEYS) {
+                droppedSequence = eldest.getValue();
+                return true;
+            }
+            return false;
+        }
+    };
+    private long droppedSequence = 0;
+
+    void applied(String key, long sequence) {
+        sequences.remove(key);
+        sequences.put(key, sequence);
+    }
+
+    /**
+     * @param key      key repaired
+     * @param sequence log sequence the repair reflects
+     * @return true if the key may have been applied from the log after the sequence
+     */
+    boolean isWrittenAfter(String key, long sequence) {
+        if (sequence < droppedSequence) {
+            return true;
+        }
+        Long applied = sequences.get(key);
+        return applied != null && applied > sequence;
+    }
+}
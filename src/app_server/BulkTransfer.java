@@ -0,0 +1,88 @@
+package app_server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Sends a range as one file of data file records instead of one message per key. The donor collects the records of
+ * the range into a file and streams it with {@link FileChannel#transferTo}, which lets the kernel copy the file to
+ * the socket. The receiver writes the bytes to a file and merges it into its data file in a single rewrite.
+ * <p>
+ * Wire format: an ADMIN_BULK_TRANSFER message with the byte length of the records as key and their number as value,
+ * followed by exactly that many bytes of data file lines.
+ */
+public final class BulkTransfer {
+
+    // Set with -Dkv.bulkTransfer=false to send ranges one message per key
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("kv.bulkTransfer", "true"));
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private BulkTransfer() {
+    }
+
+    /**
+     * Connects to the server a range is sent to. The socket is backed by a channel, so records can be transferred
+     * to it without passing through the heap.
+     */
+    public static Socket connect(String host, int port) throws IOException {
+        return SocketChannel.open(new InetSocketAddress(host, port)).socket();
+    }
+
+    /**
+     * Streams a file of records to a socket.
+     *
+     * @param socket socket of the receiving server
+     * @param output output stream of the socket, used if the socket has no channel
+     * @param file   records to send
+     */
+    public static void sendFile(Socket socket, OutputStream output, File file) throws IOException {
+        WritableByteChannel target = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(output);
+        FileInputStream input = new FileInputStream(file);
+        try {
+            FileChannel channel = input.getChannel();
+            long position = 0;
+            long size = channel.size();
+            while (position < size) {
+                position += channel.transferTo(position, size - position, target);
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Reads the records following an ADMIN_BULK_TRANSFER message into a file.
+     *
+     * @param input  input stream of the socket, positioned after the message
+     * @param length number of bytes of records
+     * @param file   file the records are written to
+     */
+    public static void receiveFile(InputStream input, long length, File file) throws IOException {
+        OutputStream output = new FileOutputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long remaining = length;
+            while (remaining > 0) {
+                int read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) {
+                    throw new IOException("Connection closed after " + (length - remaining) + " of " + length + " bytes");
+                }
+                output.write(buffer, 0, read);
+                remaining -= read;
+            }
+        } finally {
+            output.close();
+        }
+    }
+}
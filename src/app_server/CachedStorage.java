@@ -1,7 +1,13 @@
 package app_server;
 
+import common.HashRange;
 import common.messages.KVMessage;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+
 /**
  * Storage mechanism to support quick lookup and access of a subset of key-value pairs.
  */
@@ -32,4 +38,58 @@ public interface CachedStorage {
      * @return message that confirms removal of an error
      */
     KVMessage delete(String key);
+
+    /**
+     * Applies a batch of writes with a single lock acquisition and a single rewrite of the data file.
+     * A null value deletes the key.
+     *
+     * @param entries key value pairs to be written, null values for deletions
+     * @return status of each key, PUT_SUCCESS/PUT_UPDATE/DELETE_SUCCESS or the respective error
+     */
+    Map<String, KVMessage.StatusType> putAll(Map<String, String> entries);
+
+    /**
+     * Retrieves the values for a batch of keys. Keys missing in cache are loaded in a single pass over the data file.
+     *
+     * @param keys keys that identify the values
+     * @return values of the keys found, keys that do not exist are left out
+     */
+    Map<String, String> getAll(Collection<String> keys);
+
+    /**
+     * Retrieves every key value pair whose key hash lies in the given range, in a single pass over the data file.
+     *
+     * @param range hash range of the keys
+     * @return key value pairs in the range
+     */
+    Map<String, String> getRange(HashRange range);
+
+    /**
+     * Returns the digest of a key's value, computed from the cached value or read from the digest kept beside the
+     * record on a cache miss.
+     *
+     * @param key the key that identifies a value
+     * @return MD5 hex digest of the value, or null if the key does not exist
+     */
+    String getDigest(String key);
+
+    /**
+     * Merges a file of data file records, e.g. a range sent by another server, into the data file with a single
+     * rewrite. Records of the file replace records of the same keys, records failing their checksum are skipped.
+     *
+     * @param records file of data file lines
+     * @return number of records merged
+     * @throws IOException errors in disk read/writes
+     */
+    int putRecords(File records) throws IOException;
+
+    /**
+     * Drops records from the data file with a single rewrite, e.g. those of a range moved to another server. A
+     * record is only dropped if it still holds the value it had when it was sent, writes arriving meanwhile are kept.
+     *
+     * @param checksums {@link RecordChecksum} of the value sent per key
+     * @return number of records dropped
+     * @throws IOException errors in disk read/writes
+     */
+    int removeRecords(Map<String, String> checksums) throws IOException;
 }
@@ -0,0 +1,126 @@
+package app_server;
+
+import common.WriteCertificate;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Highest verified write certificate (clientId, sequence) of every key, kept in a file beside the data file. A
+ * coordinator replaying an older certified write of a key, e.g. to roll its value back, is caught by its certificate
+ * not being newer than the one stored, also after a restart. A write without certificate removes the key's.
+ */
+public class CertifiedSequences {
+
+    /**
+     * How a certificate relates to the one stored for its key.
+     */
+    public enum Freshness {
+        // Nothing stored for the key, or a higher sequence than stored
+        NEWER,
+        // The stored certificate itself
+        CURRENT,
+        // Issued by the client of the stored certificate below its sequence, a replay
+        REPLAYED,
+        // Issued by another client at or below the stored sequence, sequences of clients cannot be compared
+        UNORDERED
+    }
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private final File file;
+    private final Map<String, WriteCertificate> latest = new HashMap<>();
+
+    public CertifiedSequences(String hostname, int port) {
+        String absoluteDirPath = System.getProperty("user.dir") + File.separator + hostname + port;
+        new File(absoluteDirPath).mkdir();
+        this.file = new File(absoluteDirPath + File.separator + "Certificates");
+        load();
+    }
+
+    /**
+     * Compares a certificate with the one stored for its key and keeps it in memory if it is newer.
+     *
+     * @param key         key written
+     * @param certificate verified certificate of the write
+     * @return how the certificate relates to the one stored before
+     */
+    public synchronized Freshness record(String key, WriteCertificate certificate) {
+        WriteCertificate stored = latest.get(key);
+        if (stored == null || certificate.getSequence() > stored.getSequence()) {
+            latest.put(key, certificate);
+            return Freshness.NEWER;
+        }
+        if (!stored.getClientId().equals(certificate.getClientId())) {
+            return Freshness.UNORDERED;
+        }
+        return certificate.getSequence() == stored.getSequence() ? Freshness.CURRENT : Freshness.REPLAYED;
+    }
+
+    /**
+     * Forgets the certificate of a key once a write without certificate replaced its value.
+     *
+     * @param key key written
+     * @return true if a certificate was stored for the key
+     */
+    public synchronized boolean remove(String key) {
+        return latest.remove(key) != null;
+    }
+
+    /**
+     * @param key key written
+     * @return newest certificate stored for the key, null if none
+     */
+    public synchronized WriteCertificate get(String key) {
+        return latest.get(key);
+    }
+
+    /**
+     * Writes the certificates recorded so far to the file with a single rewrite.
+     *
+     * @throws IOException errors in disk writes, the certificates are kept in memory anyway
+     */
+    public synchronized void persist() throws IOException {
+        File tempFile = File.createTempFile("certificates", null, file.getParentFile());
+        BufferedWriter writer = new BufferedWriter(new FileWriter(tempFile));
+        try {
+            for (Map.Entry<String, WriteCertificate> entry : latest.entrySet()) {
+                writer.write(StringEscapeUtils.escapeCsv(entry.getKey()) + ","
+                        + StringEscapeUtils.escapeCsv(entry.getValue().toString()) + System.getProperty("line.separator"));
+            }
+        } catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        } finally {
+            writer.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Cannot replace certificate file.");
+        }
+    }
+
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                CSVRecord record = CSVParser.parse(line.trim(), CSVFormat.RFC4180).getRecords().get(0);
+                WriteCertificate certificate = WriteCertificate.parse(record.get(1));
+                if (certificate != null) {
+                    latest.put(record.get(0), certificate);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.error("Cannot read stored write certificates, replays of older writes are not detected.", e);
+        }
+    }
+}
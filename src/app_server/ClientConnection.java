@@ -4,10 +4,13 @@ import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.reflect.TypeToken;
+import common.GetIntegrityCheck;
 import common.HashRange;
 import common.Metadata;
+import common.WriteConsistency;
 import common.messages.KVMessage;
 import common.messages.Message;
+import org.apache.commons.lang3.StringEscapeUtils;
 import org.apache.log4j.Logger;
 
 import java.io.*;
@@ -15,6 +18,9 @@ import java.lang.reflect.Type;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -25,6 +31,9 @@ public class ClientConnection implements Runnable {
     private boolean isOpen;
     private static final int BUFFER_SIZE = 1024;
     private static final int DROP_SIZE = 128 * BUFFER_SIZE;
+    private static final long REPLICATION_TIMEOUT_MILLIS = 5 * 1000;
+    // Clients drop replies beyond 1 MB
+    private static final int MAX_REPLY_BYTES = 512 * BUFFER_SIZE;
 
     private Socket clientSocket;
     private ServerSocket listeningSocket;
@@ -34,6 +43,19 @@ public class ClientConnection implements Runnable {
     private int getCompromisedServerPortNumber = 60008;
     private int putCompromisedServerPortNumber = 60009;
 
+    private static final Type stringMapType = new TypeToken<Map<String, String>>(){}.getType();
+    private static final Type stringListType = new TypeToken<List<String>>(){}.getType();
+    private static final Type replicatedWriteListType = new TypeToken<List<ReplicatedWrite>>(){}.getType();
+    private static final Type integrityCheckListType = new TypeToken<List<GetIntegrityCheck>>(){}.getType();
+    private static final Type integerListType = new TypeToken<List<Integer>>(){}.getType();
+
+    // Whether a record of the range being transferred over this connection could not be stored
+    private boolean transferFailed;
+
+    // Tree of the range an anti-entropy coordinator is comparing over this connection
+    private MerkleTree merkleTree;
+    private String merkleTreeRange;
+
     /**
      * Constructs a new CientConnection object for a given TCP socket.
      *
@@ -62,73 +84,78 @@ public class ClientConnection implements Runnable {
                         logger.info("Connection lost due to input stream closed. Shutting down socket gracefully...");
                         isOpen = false;
                     }
-                    else if (latestMsg.getStatus() == KVMessage.StatusType.PUT || latestMsg.getStatus() == KVMessage.StatusType.GET) {
+                    else if (latestMsg.getStatus() == KVMessage.StatusType.PUT || latestMsg.getStatus() == KVMessage.StatusType.GET
+                            || latestMsg.getStatus() == KVMessage.StatusType.MULTI_PUT || latestMsg.getStatus() == KVMessage.StatusType.MULTI_GET
+                            || latestMsg.getStatus() == KVMessage.StatusType.GET_DIGEST || latestMsg.getStatus() == KVMessage.StatusType.GET_METADATA) {
                         KVMessage replyMsg;
                         if (WelcomeThread.isOpenToClientRequests) { //isOpenToClientRequests
                             if (!WelcomeThread.metadata.hasServer(WelcomeThread.getIPAddress(), WelcomeThread.getPortNumber())) {
-                                replyMsg = new Message(KVMessage.StatusType.SERVER_NOT_RESPONSIBLE, null, null, WelcomeThread.metadata.getSerializedForm());
+                                replyMsg = new Message(KVMessage.StatusType.SERVER_NOT_RESPONSIBLE, null, null,
+                                        WelcomeThread.metadata.getSerializedUpdate(latestMsg.getEpoch()));
                                 sendMessage(replyMsg);
                                 continue;
                             }
                             switch (latestMsg.getStatus()) {
                                 case PUT:
                                     if (!WelcomeThread.isWriteLocked &&
-                                            WelcomeThread.metadata.getHashRange(WelcomeThread.getIPAddress(), WelcomeThread.getPortNumber()).isInRange(WelcomeThread.getMd5Hash(latestMsg.getKey())))
+                                            WelcomeThread.metadata.getHashRange(WelcomeThread.getIPAddress(), WelcomeThread.getPortNumber()).isKeyInRange(latestMsg.getKey()))
                                     {
-                                        WelcomeThread.isOpenToClientLock.lock();
-                                        if (latestMsg.getValue().equals("null") || latestMsg.getValue().equals("")) {
-                                            replyMsg = WelcomeThread.getCachedStorage().delete(latestMsg.getKey());
-                                        } else {
-                                            replyMsg = WelcomeThread.getCachedStorage().put(latestMsg.getKey(), latestMsg.getValue());
+                                        // metadata is clientKey[,writeConsistency[,writeCertificate]]
+                                        String[] putFields = latestMsg.getMetadata().split(",");
+                                        WriteConsistency consistency = getWriteConsistency(putFields);
+                                        if (consistency == null) {
+                                            sendMessage(new Message(KVMessage.StatusType.FAILED, latestMsg.getKey(), null, null));
+                                            break;
                                         }
-                                        sendMessage(replyMsg);
-                                        WelcomeThread.isOpenToClientLock.unlock();
-
-
-
-                                        // M4: Replication of write operations to its 2 replicas with serverKey,clientKey
-                                        List<String> replicas = WelcomeThread.metadata.getBackups(WelcomeThread.getMd5Hash(latestMsg.getKey()));
-                                        String serverKey = WelcomeThread.getIPAddress() + ":" + String.valueOf(WelcomeThread.getPortNumber());
-                                        String key = latestMsg.getKey();
-                                        String value = latestMsg.getValue();
-                                        if (WelcomeThread.getPortNumber() == putCompromisedServerPortNumber) {
-                                            // M4: This is a compromised server, will change the key,value pair in the replication process to change data
-                                            // on the two Replicas
-                                            value = "COMPROMISED!";
+                                        String certificate = putFields.length > 2 ? putFields[2] : null;
+                                        if (!WelcomeThread.isValidWriteCertificate(latestMsg.getKey(), latestMsg.getValue(), certificate)) {
+                                            logger.warn("Write certificate of key " + latestMsg.getKey() + " does not match the write");
+                                            sendMessage(new Message(KVMessage.StatusType.FAILED, latestMsg.getKey(), null, null));
+                                            break;
                                         }
-
-                                        String[] replicaServerAndPort1 = replicas.get(0).split(":");
-                                        Socket destinationReplica1Socket = new Socket(replicaServerAndPort1[0], Integer.parseInt(replicaServerAndPort1[1]));
-                                        WriteReplicationRunnable writeReplicationRunnable1 = new WriteReplicationRunnable(destinationReplica1Socket, key, value, serverKey, latestMsg.getMetadata());
-                                        new Thread(writeReplicationRunnable1).start();
-
-                                        String[] replicaServerAndPort2 = replicas.get(1).split(":");
-                                        Socket destinationReplica2Socket = new Socket(replicaServerAndPort2[0], Integer.parseInt(replicaServerAndPort2[1]));
-                                        WriteReplicationRunnable writeReplicationRunnable2 = new WriteReplicationRunnable(destinationReplica2Socket, key, value, serverKey, latestMsg.getMetadata());
-                                        new Thread(writeReplicationRunnable2).start();
-
-                                        // M4: Notify subscription
-                                        List<String> clientServerSocketKey = WelcomeThread.subscriptions.get(replyMsg.getKey());
-                                        if (clientServerSocketKey != null) {
-                                            for (String c : clientServerSocketKey) {
-                                                NotificationRunnable notify = new NotificationRunnable(c, replyMsg.getKey(), replyMsg.getValue());
-                                                new Thread(notify).start();
-                                                logger.debug("Sending client socket " + c + " about " + replyMsg.getKey() + replyMsg.getValue());
+                                        Map<WriteReplicationRunnable, Long> sequences;
+                                        boolean superseded = false;
+                                        WelcomeThread.isOpenToClientLock.lock();
+                                        try {
+                                            if (!WelcomeThread.recordWriteCertificate(latestMsg.getKey(), latestMsg.getValue(), certificate)) {
+                                                // The client's later write of the key got here first and stays
+                                                superseded = true;
+                                                replyMsg = new Message(isDeleteValue(latestMsg.getValue()) ? KVMessage.StatusType.DELETE_SUCCESS
+                                                        : KVMessage.StatusType.PUT_UPDATE, latestMsg.getKey(), latestMsg.getValue(), null);
+                                                sequences = new HashMap<>();
+                                            } else {
+                                                if (latestMsg.getValue().equals("null") || latestMsg.getValue().equals("")) {
+                                                    replyMsg = WelcomeThread.getCachedStorage().delete(latestMsg.getKey());
+                                                } else {
+                                                    replyMsg = WelcomeThread.getCachedStorage().put(latestMsg.getKey(), latestMsg.getValue());
+                                                }
+                                                // Logged in the order stored, so replicas apply writes of a key in the same order
+                                                sequences = replicateWrite(latestMsg.getKey(), latestMsg.getValue(), putFields[0], certificate);
                                             }
+                                        } finally {
+                                            WelcomeThread.isOpenToClientLock.unlock();
+                                        }
+                                        KVMessage storageReply = replyMsg;
+                                        if (isWriteSuccess(storageReply.getStatus()) && !awaitReplication(sequences, consistency)) {
+                                            replyMsg = new Message(KVMessage.StatusType.REPLICATION_TIMEOUT, storageReply.getKey(), storageReply.getValue(), null);
+                                        }
+                                        sendMessage(replyMsg);
+                                        if (!superseded) {
+                                            notifySubscribers(storageReply.getKey(), storageReply.getValue());
                                         }
-
                                     }
                                     else if (WelcomeThread.isWriteLocked) {
                                         replyMsg = new Message(KVMessage.StatusType.SERVER_WRITE_LOCK, null, null, null);
                                         sendMessage(replyMsg);
                                     }
                                     else {
-                                        replyMsg = new Message(KVMessage.StatusType.SERVER_NOT_RESPONSIBLE, null, null, WelcomeThread.metadata.getSerializedForm());
+                                        replyMsg = new Message(KVMessage.StatusType.SERVER_NOT_RESPONSIBLE, null, null,
+                                                WelcomeThread.metadata.getSerializedUpdate(latestMsg.getEpoch()));
                                         sendMessage(replyMsg);
                                     }
                                     break;
                                 case GET:
-                                    if (WelcomeThread.metadata.getHashRange(WelcomeThread.getIPAddress(), WelcomeThread.getPortNumber()).isInReadRange(WelcomeThread.getMd5Hash(latestMsg.getKey()))) {
+                                    if (WelcomeThread.metadata.getHashRange(WelcomeThread.getIPAddress(), WelcomeThread.getPortNumber()).isKeyInReadRange(latestMsg.getKey())) {
                                         // GET doesn't need this lock really.
                                         //WelcomeThread.isOpenToClientLock.lock();
                                         if (WelcomeThread.getPortNumber() == getCompromisedServerPortNumber) {
@@ -143,10 +170,162 @@ public class ClientConnection implements Runnable {
                                         }
                                         //WelcomeThread.isOpenToClientLock.unlock();
                                     } else {
-                                        replyMsg = new Message(KVMessage.StatusType.SERVER_NOT_RESPONSIBLE, null, null, WelcomeThread.metadata.getSerializedForm());
+                                        replyMsg = new Message(KVMessage.StatusType.SERVER_NOT_RESPONSIBLE, null, null,
+                                                WelcomeThread.metadata.getSerializedUpdate(latestMsg.getEpoch()));
                                         sendMessage(replyMsg);
                                     }
                                     break;
+                                case GET_DIGEST:
+                                    if (WelcomeThread.metadata.getHashRange(WelcomeThread.getIPAddress(), WelcomeThread.getPortNumber()).isKeyInReadRange(latestMsg.getKey())) {
+                                        String digest;
+                                        if (WelcomeThread.getPortNumber() == getCompromisedServerPortNumber) {
+                                            // M4: A compromised server lies about digests the same way it lies about values
+                                            digest = WelcomeThread.getMd5Hash("COMPROMISED!");
+                                        } else {
+                                            digest = String.valueOf(WelcomeThread.getCachedStorage().getDigest(latestMsg.getKey()));
+                                        }
+                                        replyMsg = new Message(KVMessage.StatusType.GET_DIGEST, latestMsg.getKey(), digest, null);
+                                    } else {
+                                        replyMsg = new Message(KVMessage.StatusType.SERVER_NOT_RESPONSIBLE, null, null,
+                                                WelcomeThread.metadata.getSerializedUpdate(latestMsg.getEpoch()));
+                                    }
+                                    sendMessage(replyMsg);
+                                    break;
+                                case MULTI_PUT:
+                                    Map<String, String> entries = new Gson().fromJson(latestMsg.getValue(), stringMapType);
+                                    // metadata is clientKey[,writeConsistency[,writeCertificates]], the certificates
+                                    // being a JSON map from key to certificate
+                                    String[] multiPutFields = latestMsg.getMetadata().split(",", 3);
+                                    WriteConsistency batchConsistency = getWriteConsistency(multiPutFields);
+                                    if (batchConsistency == null) {
+                                        replyMsg = new Message(KVMessage.StatusType.FAILED, null, null, null);
+                                        sendMessage(replyMsg);
+                                    }
+                                    else if (WelcomeThread.isWriteLocked) {
+                                        replyMsg = new Message(KVMessage.StatusType.SERVER_WRITE_LOCK, null, null, null);
+                                        sendMessage(replyMsg);
+                                    }
+                                    else if (!isInWriteRange(entries.keySet())) {
+                                        replyMsg = new Message(KVMessage.StatusType.SERVER_NOT_RESPONSIBLE, null, null,
+                                                WelcomeThread.metadata.getSerializedUpdate(latestMsg.getEpoch()));
+                                        sendMessage(replyMsg);
+                                    }
+                                    else {
+                                        // One lock acquisition and one data file rewrite for the whole batch
+                                        Map<String, String> certificates = multiPutFields.length > 2
+                                                ? new Gson().<Map<String, String>>fromJson(multiPutFields[2], stringMapType)
+                                                : new HashMap<String, String>();
+                                        Map<String, String> writes = new HashMap<>();
+                                        // Entries not stored, with the status they are answered with
+                                        Map<String, KVMessage.StatusType> skipped = new HashMap<>();
+                                        for (Map.Entry<String, String> entry : entries.entrySet()) {
+                                            if (WelcomeThread.isValidWriteCertificate(entry.getKey(), entry.getValue(),
+                                                    certificates.get(entry.getKey()))) {
+                                                writes.put(entry.getKey(), isDeleteValue(entry.getValue()) ? null : entry.getValue());
+                                            } else {
+                                                logger.warn("Write certificate of key " + entry.getKey() + " does not match the write");
+                                                skipped.put(entry.getKey(), isDeleteValue(entry.getValue())
+                                                        ? KVMessage.StatusType.DELETE_ERROR : KVMessage.StatusType.PUT_ERROR);
+                                            }
+                                        }
+                                        Map<String, KVMessage.StatusType> statuses = new HashMap<>();
+                                        Map<WriteReplicationRunnable, Long> batchSequences = new HashMap<>();
+                                        WelcomeThread.isOpenToClientLock.lock();
+                                        try {
+                                            Iterator<Map.Entry<String, String>> iterator = writes.entrySet().iterator();
+                                            while (iterator.hasNext()) {
+                                                String key = iterator.next().getKey();
+                                                if (!WelcomeThread.recordWriteCertificate(key, entries.get(key), certificates.get(key))) {
+                                                    // The client's later write of the key got here first and stays
+                                                    iterator.remove();
+                                                    skipped.put(key, isDeleteValue(entries.get(key))
+                                                            ? KVMessage.StatusType.DELETE_SUCCESS : KVMessage.StatusType.PUT_UPDATE);
+                                                }
+                                            }
+                                            if (!writes.isEmpty()) {
+                                                statuses = WelcomeThread.getCachedStorage().putAll(writes);
+                                            }
+                                            // Logged in the order stored, so replicas apply writes of a key in the same order
+                                            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                                                if (isWriteSuccess(statuses.get(entry.getKey()))) {
+                                                    // Acknowledgements are cumulative, waiting for the last write per replica covers the batch
+                                                    batchSequences.putAll(replicateWrite(entry.getKey(), entry.getValue(), multiPutFields[0],
+                                                            certificates.get(entry.getKey())));
+                                                }
+                                            }
+                                        } finally {
+                                            WelcomeThread.isOpenToClientLock.unlock();
+                                        }
+                                        if (!awaitReplication(batchSequences, batchConsistency)) {
+                                            for (Map.Entry<String, KVMessage.StatusType> status : statuses.entrySet()) {
+                                                if (isWriteSuccess(status.getValue())) {
+                                                    status.setValue(KVMessage.StatusType.REPLICATION_TIMEOUT);
+                                                }
+                                            }
+                                        }
+                                        Map<String, KVMessage.StatusType> replyStatuses = new HashMap<>(statuses);
+                                        replyStatuses.putAll(skipped);
+                                        replyMsg = new Message(KVMessage.StatusType.MULTI_PUT, null, new Gson().toJson(replyStatuses), null);
+                                        sendMessage(replyMsg);
+
+                                        for (Map.Entry<String, String> entry : entries.entrySet()) {
+                                            if (statuses.containsKey(entry.getKey())
+                                                    && statuses.get(entry.getKey()) != KVMessage.StatusType.PUT_ERROR
+                                                    && statuses.get(entry.getKey()) != KVMessage.StatusType.DELETE_ERROR) {
+                                                notifySubscribers(entry.getKey(), writes.get(entry.getKey()));
+                                            }
+                                        }
+                                    }
+                                    break;
+                                case MULTI_GET:
+                                    List<String> keys = new Gson().fromJson(latestMsg.getKey(), stringListType);
+                                    if (!isInReadRange(keys)) {
+                                        replyMsg = new Message(KVMessage.StatusType.SERVER_NOT_RESPONSIBLE, null, null,
+                                                WelcomeThread.metadata.getSerializedUpdate(latestMsg.getEpoch()));
+                                        sendMessage(replyMsg);
+                                    }
+                                    else {
+                                        Map<String, String> values;
+                                        if (WelcomeThread.getPortNumber() == getCompromisedServerPortNumber) {
+                                            // M4: This is a compromised server, it is going to return Compromised no matter what the actual value is
+                                            values = new HashMap<>();
+                                            for (String key : keys) {
+                                                values.put(key, "COMPROMISED!");
+                                            }
+                                        }
+                                        else {
+                                            values = WelcomeThread.getCachedStorage().getAll(keys);
+                                        }
+                                        // Keep the reply within what clients read, the remaining keys are sent back to be requested again
+                                        Gson gson = new Gson();
+                                        Map<String, String> replyValues = new HashMap<>();
+                                        List<String> deferredKeys = new ArrayList<>();
+                                        int replyBytes = 0;
+                                        for (String key : keys) {
+                                            String value = values.get(key);
+                                            if (value == null) {
+                                                continue;
+                                            }
+                                            int entryBytes = StringEscapeUtils.escapeJson(gson.toJson(key)).length()
+                                                    + StringEscapeUtils.escapeJson(gson.toJson(value)).length() + 2;
+                                            if (!replyValues.isEmpty() && replyBytes + entryBytes > MAX_REPLY_BYTES) {
+                                                deferredKeys.add(key);
+                                                continue;
+                                            }
+                                            replyValues.put(key, value);
+                                            replyBytes += entryBytes;
+                                        }
+                                        replyMsg = new Message(KVMessage.StatusType.MULTI_GET, deferredKeys.isEmpty() ? null : gson.toJson(deferredKeys),
+                                                gson.toJson(replyValues), null);
+                                        sendMessage(replyMsg);
+                                    }
+                                    break;
+                                case GET_METADATA:
+                                    // Nothing if the client is current
+                                    replyMsg = new Message(KVMessage.StatusType.GET_METADATA, null, null,
+                                            WelcomeThread.metadata.getSerializedUpdate(latestMsg.getEpoch()));
+                                    sendMessage(replyMsg);
+                                    break;
                                 default:
                                     replyMsg = new Message(KVMessage.StatusType.FAILED, null, null, null);
                                     sendMessage(replyMsg);
@@ -166,6 +345,9 @@ public class ClientConnection implements Runnable {
                                 WelcomeThread.startHeartbeatThread(clientSocket.getInetAddress().getHostAddress());
                                 //WelcomeThread.isServerInitialized = true;
                                 break;
+                            case ADMIN_WRITE_CERTIFICATE_SECRET:
+                                WelcomeThread.setWriteCertificateSecret(latestMsg.getKey());
+                                break;
                             case ADMIN_START:
                                 if (WelcomeThread.isServerInitialized) {
                                     try {
@@ -210,14 +392,11 @@ public class ClientConnection implements Runnable {
                                 break;
                             case ADMIN_MOVEDATA:
                                 try {
-                                    Socket destinationSocket = new Socket(latestMsg.getKey(), Integer.parseInt(latestMsg.getValue()));
+                                    Socket destinationSocket = BulkTransfer.connect(latestMsg.getKey(), Integer.parseInt(latestMsg.getValue()));
                                     HashRange range = Metadata.deserialize(latestMsg.getMetadata()).getHashRange(latestMsg.getKey(), Integer.parseInt(latestMsg.getValue()));
-                                    FileTransferRunnable fileTransferRunnable = new FileTransferRunnable(destinationSocket, range);
-                                    Thread fileTransfer = new Thread(fileTransferRunnable);
-                                    fileTransfer.start();
-                                    while (fileTransfer.getState()!=Thread.State.TERMINATED) {}
-                                    replyMsg = new Message(KVMessage.StatusType.ADMIN_MOVEDATA, null, null, null);
-                                    sendMessage(replyMsg);
+                                    // Answered once the range was sent
+                                    startRangeTransfer(KVMessage.StatusType.ADMIN_MOVEDATA, latestMsg.getKey() + ":" + latestMsg.getValue(),
+                                            new FileTransferRunnable(destinationSocket, range));
                                 } catch (IOException e) {
                                     replyMsg = new Message(KVMessage.StatusType.FAILED, null, null, null);
                                     sendMessage(replyMsg);
@@ -226,21 +405,21 @@ public class ClientConnection implements Runnable {
                                 break;
                             case ADMIN_COPYDATA:
                                 try {
-                                    Socket destinationSocket = new Socket(latestMsg.getKey(), Integer.parseInt(latestMsg.getValue()));
+                                    Socket destinationSocket = BulkTransfer.connect(latestMsg.getKey(), Integer.parseInt(latestMsg.getValue()));
                                     HashRange range = Metadata.deserialize(latestMsg.getMetadata()).getHashRange(latestMsg.getKey(), Integer.parseInt(latestMsg.getValue()));
-                                    FileCopyRunnable fileCopyRunnable = new FileCopyRunnable(destinationSocket, range);
-                                    Thread newFileTransfer = new Thread(fileCopyRunnable);
-                                    newFileTransfer.start();
-                                    while (newFileTransfer.getState() != Thread.State.TERMINATED) {
-                                    }
-                                    replyMsg = new Message(KVMessage.StatusType.ADMIN_COPYDATA, null, null, null);
-                                    sendMessage(replyMsg);
+                                    // Answered once the range was sent
+                                    startRangeTransfer(KVMessage.StatusType.ADMIN_COPYDATA, latestMsg.getKey() + ":" + latestMsg.getValue(),
+                                            new FileCopyRunnable(destinationSocket, range));
                                 } catch (IOException e) {
                                     replyMsg = new Message(KVMessage.StatusType.FAILED, null, null, null);
                                     sendMessage(replyMsg);
                                     logger.debug("COPYDATA FAILED, Destination server socket not alive.");
                                 }
                                 break;
+                            case ADMIN_TRANSFER_STATUS:
+                                replyMsg = new Message(KVMessage.StatusType.ADMIN_TRANSFER_STATUS, null, RangeTransfer.getStatus(), null);
+                                sendMessage(replyMsg);
+                                break;
                             case ADMIN_UPDATE:
                                 WelcomeThread.updateMetadata(latestMsg.getMetadata());
                                 WelcomeThread.startHeartbeatThread(clientSocket.getInetAddress().getHostAddress());
@@ -252,12 +431,34 @@ public class ClientConnection implements Runnable {
 //                                }
 //                                else {
 //                                WelcomeThread.writeToDisk(latestMsg.getKey(), latestMsg.getValue());
-                                WelcomeThread.getCachedStorage().put(latestMsg.getKey(), latestMsg.getValue());
+                                if (WelcomeThread.getCachedStorage().put(latestMsg.getKey(), latestMsg.getValue()).getStatus()
+                                        == KVMessage.StatusType.PUT_ERROR) {
+                                    transferFailed = true;
+                                }
 //                                }
                                 break;
+                            case ADMIN_BULK_TRANSFER:
+                                File records = File.createTempFile("bulk", null, new File(System.getProperty("user.dir")));
+                                try {
+                                    BulkTransfer.receiveFile(input, Long.parseLong(latestMsg.getKey()), records);
+                                    int stored = WelcomeThread.getCachedStorage().putRecords(records);
+                                    logger.info("Stored " + stored + " of " + latestMsg.getValue() + " transferred records");
+                                } catch (IOException e) {
+                                    // Answered with FAILED on completion, the sender keeps the range
+                                    logger.error("Cannot store transferred records", e);
+                                    transferFailed = true;
+                                } finally {
+                                    records.delete();
+                                }
+                                break;
                             case ADMIN_FILETRANSFER_COMPLETE:
                                 // send back the message got from the other server as an ack to indicate that file transfer is complete
-                                sendMessage(latestMsg);
+                                if (transferFailed) {
+                                    transferFailed = false;
+                                    sendMessage(new Message(KVMessage.StatusType.FAILED, null, null, null));
+                                } else {
+                                    sendMessage(latestMsg);
+                                }
                                 break;
                             case SERVER_HEART_BEAT:
                                 if (!latestMsg.getMetadata().equals("null")) {
@@ -299,7 +500,53 @@ public class ClientConnection implements Runnable {
                             case ADMIN_PIN:
                                 sendMessage(latestMsg);
                                 break;
+                            case ADMIN_MERKLE_NODES:
+                                // Node hashes of this replica's tree over the coordinator's range (start,end)
+                                MerkleTree nodesTree = getMerkleTree(latestMsg.getKey());
+                                List<Integer> nodes = new Gson().fromJson(latestMsg.getValue(), integerListType);
+                                Map<String, String> nodeHashes = new HashMap<>();
+                                for (int node : nodes) {
+                                    nodeHashes.put(String.valueOf(node), nodesTree.getNodeHash(node));
+                                }
+                                sendMessage(new Message(KVMessage.StatusType.ADMIN_MERKLE_NODES,
+                                        latestMsg.getKey(), new Gson().toJson(nodeHashes), null));
+                                break;
+                            case ADMIN_MERKLE_BUCKET:
+                                MerkleTree bucketTree = getMerkleTree(latestMsg.getKey());
+                                Map<String, String> digests = bucketTree.getBucketDigests(Integer.parseInt(latestMsg.getValue()));
+                                sendMessage(new Message(KVMessage.StatusType.ADMIN_MERKLE_BUCKET,
+                                        latestMsg.getKey(), new Gson().toJson(digests), null));
+                                break;
+                            case ADMIN_MERKLE_REPAIR:
+                                // Values of the coordinator with their certificates, numbered by the sequence of its
+                                // replication log (serverKey,logId) to this replica when they were read
+                                List<ReplicatedWrite> repairs = new Gson().fromJson(latestMsg.getValue(), replicatedWriteListType);
+                                int repaired = WelcomeThread.applyRepairs(latestMsg.getMetadata(), repairs);
+                                merkleTree = null;
+                                sendMessage(new Message(KVMessage.StatusType.ADMIN_MERKLE_REPAIR,
+                                        latestMsg.getKey(), String.valueOf(repaired), null));
+                                break;
+                            case ADMIN_REPLICATION_SYNC:
+                                replyMsg = new Message(KVMessage.StatusType.ADMIN_REPLICATION_ACK,
+                                        String.valueOf(WelcomeThread.getAppliedSequence(latestMsg.getMetadata())), null, null);
+                                sendMessage(replyMsg);
+                                break;
                             case ADMIN_REPLICATION:
+                                if (latestMsg.getMetadata().split(",").length >= 4) {
+                                    // serverKey,clientKey,logId,sequence[,writeCertificate] of a write from a replication log
+                                    String[] logFields = latestMsg.getMetadata().split(",");
+                                    String logKey = logFields[0] + "," + logFields[2];
+                                    long sequence = Long.parseLong(logFields[3]);
+                                    List<ReplicatedWrite> unverified = WelcomeThread.applyReplicatedWrites(logKey,
+                                            Arrays.asList(new ReplicatedWrite(sequence, latestMsg.getKey(), latestMsg.getValue(), logFields[1],
+                                                    logFields.length > 4 ? logFields[4] : null)));
+                                    replyMsg = new Message(KVMessage.StatusType.ADMIN_REPLICATION_ACK, String.valueOf(sequence), null, null);
+                                    sendMessage(replyMsg);
+                                    for (ReplicatedWrite write : unverified) {
+                                        checkReplicatedPut(write.getKey(), write.getValue(), logFields[0], write.getClientKey());
+                                    }
+                                    break;
+                                }
                                 if (latestMsg.getValue().equals("null") || latestMsg.getValue().equals("")) {
                                     // this case needed for handling replication deletes
 //                                    WelcomeThread.deleteFromDisk(latestMsg.getKey());
@@ -321,36 +568,21 @@ public class ClientConnection implements Runnable {
 
                                 String ownIPandPort = WelcomeThread.getIPAddress() + ":" + WelcomeThread.getPortNumber();
 
-                                if (!client_port.equals("1")) {
-                                    try {
-                                        Socket destinationClientSocket = new Socket(client_ip_address, Integer.parseInt(client_port));
-                                        ClientIntegrityCheckRunnable clientIntegrityCheckRunnable =
-                                                new ClientIntegrityCheckRunnable(
-                                                        destinationClientSocket,
-                                                        latestMsg.getKey(),
-                                                        latestMsg.getValue(),
-                                                        serverKey,
-                                                        false,
-                                                        KVMessage.StatusType.PUT,
-                                                        "138.68.229.113",
-                                                        ownIPandPort);
-                                        new Thread(clientIntegrityCheckRunnable).start();
-                                    } catch (Exception e) {
-                                        ClientIntegrityCheckRunnable clientIntegrityCheckRunnable =
-                                                new ClientIntegrityCheckRunnable(
-                                                        null,
-                                                        null,
-                                                        null,
-                                                        serverKey,
-                                                        true,
-                                                        null,
-                                                        "138.68.229.113",
-                                                        ownIPandPort);
-                                        new Thread(clientIntegrityCheckRunnable).start();
-                                        // Remove the key from compromised server
-//                                        WelcomeThread.deleteFromDisk(latestMsg.getKey());
-                                        WelcomeThread.getCachedStorage().delete(latestMsg.getKey());
-                                    }
+                                checkReplicatedPut(latestMsg.getKey(), latestMsg.getValue(), serverKey, clientKey);
+                                break;
+                            case ADMIN_REPLICATION_BATCH:
+                                // Coalesced writes from a coordinator's replication log (serverKey,logId), applied with a
+                                // single storage flush and acknowledged with the last sequence of the batch
+                                List<ReplicatedWrite> writes = new Gson().fromJson(latestMsg.getValue(), replicatedWriteListType);
+                                List<ReplicatedWrite> unverifiedWrites = WelcomeThread.applyReplicatedWrites(latestMsg.getMetadata(), writes);
+                                replyMsg = new Message(KVMessage.StatusType.ADMIN_REPLICATION_ACK,
+                                        String.valueOf(WelcomeThread.getAppliedSequence(latestMsg.getMetadata())), null, null);
+                                sendMessage(replyMsg);
+
+                                String coordinatorKey = latestMsg.getMetadata().split(",")[0];
+                                for (ReplicatedWrite write : unverifiedWrites) {
+                                    // Writes with a newer certificate were verified when applied, the others are checked with the client
+                                    checkReplicatedPut(write.getKey(), write.getValue(), coordinatorKey, write.getClientKey());
                                 }
                                 break;
                             case CLIENT_SERVER_COMPROMISED:
@@ -366,7 +598,7 @@ public class ClientConnection implements Runnable {
                                                 null,
                                                 "138.68.229.113",
                                                 ownIPandPort);
-                                new Thread(clientIntegrityCheckRunnable).start();
+                                ServerExecutors.runIntegrityCheck(clientIntegrityCheckRunnable);
                                 // Redo the client request.
                                 if (latestMsg.getValue().equals("null") || latestMsg.getValue().equals("")) {
                                     // Delete op
@@ -380,87 +612,25 @@ public class ClientConnection implements Runnable {
                                 }
                                 break;
                             case CLIENT_GET_INTEGRITY_CHECK:
-                                server_client_key = latestMsg.getMetadata();
-                                server_client_key_array = server_client_key.split(",");
-                                serverKey = server_client_key_array[0];
-                                clientKey = server_client_key_array[1];
-                                client_ip_port_array = clientKey.split(":");
-                                client_ip_address = client_ip_port_array[0];
-                                client_port = client_ip_port_array[1];
-
-                                ownIPandPort = WelcomeThread.getIPAddress() + ":" + WelcomeThread.getPortNumber();
-
-                                KVMessage value = WelcomeThread.getCachedStorage().get(latestMsg.getKey());
-                                logger.debug("value is " + value.getSerializedMsg());
-                                logger.debug("latestMsg is " + latestMsg.getSerializedMsg());
-                                if (value.getValue() == null && (latestMsg.getValue() == null || latestMsg.getValue().equals("null"))) {
-                                    break;
-                                }
-
-                                if (value != null && value.getStatus()== KVMessage.StatusType.GET_SUCCESS) {
-                                    if (!value.getValue().equals(latestMsg.getValue())) {
-
-                                        // The get failed, no value for this key, integrity check failed
-                                        // Inform Admin to recovery the compromised server
-                                        ClientIntegrityCheckRunnable informAdminServerCompromisedRunnable =
-                                                new ClientIntegrityCheckRunnable(
-                                                        null,
-                                                        null,
-                                                        null,
-                                                        serverKey,
-                                                        true,
-                                                        null,
-                                                        "138.68.229.113" ,
-                                                        ownIPandPort);
-                                        new Thread(informAdminServerCompromisedRunnable).start();
-                                        // Inform Client that the read value was wrong
-
-                                        Socket destinationClientSocket = new Socket(client_ip_address, Integer.parseInt(client_port));
-                                        ClientIntegrityCheckRunnable clientGetIntegrityCheckRunnable =
-                                                new ClientIntegrityCheckRunnable(
-                                                        destinationClientSocket,
-                                                        latestMsg.getKey(),
-                                                        value.getValue(),
-                                                        serverKey,
-                                                        false,
-                                                        KVMessage.StatusType.GET,
-                                                        "138.68.229.113" ,
-                                                        ownIPandPort);
-                                        new Thread(clientGetIntegrityCheckRunnable).start();
+                                server_client_key_array = latestMsg.getMetadata().split(",");
+                                checkGetIntegrity(latestMsg.getKey(), latestMsg.getValue(),
+                                        server_client_key_array[0], server_client_key_array[1]);
+                                break;
+                            case CLIENT_GET_INTEGRITY_CHECK_BATCH:
+                                // Sampled checks of one client for this replica, metadata is the client's listen address
+                                List<GetIntegrityCheck> checks = new Gson().fromJson(latestMsg.getValue(), integrityCheckListType);
+                                for (GetIntegrityCheck check : checks) {
+                                    try {
+                                        checkGetIntegrity(check.getKey(), check.getDigest(), check.getServerKey(),
+                                                latestMsg.getMetadata());
+                                    } catch (IOException e) {
+                                        logger.warn("Cannot report get integrity check of key " + check.getKey()
+                                                + " to client " + latestMsg.getMetadata());
                                     }
                                 }
-                                else {
-                                    // The get failed, no value for this key, integrity check failed
-                                    // Inform Admin to recovery the compromised server
-                                    ClientIntegrityCheckRunnable informAdminServerCompromisedRunnable =
-                                            new ClientIntegrityCheckRunnable(
-                                                    null,
-                                                    null,
-                                                    null,
-                                                    serverKey,
-                                                    true,
-                                                    null,
-                                                    "138.68.229.113",
-                                                    ownIPandPort);
-                                    new Thread(informAdminServerCompromisedRunnable).start();
-                                    // Inform Client that the read value was wrong
-
-                                    Socket destinationClientSocket = new Socket(client_ip_address, Integer.parseInt(client_port));
-                                    ClientIntegrityCheckRunnable clientGetIntegrityCheckRunnable =
-                                            new ClientIntegrityCheckRunnable(
-                                                    destinationClientSocket,
-                                                    latestMsg.getKey(),
-                                                    value.getValue(),
-                                                    serverKey,
-                                                    false,
-                                                    KVMessage.StatusType.GET,
-                                                    "138.68.229.113",
-                                                    ownIPandPort);
-                                    new Thread(clientGetIntegrityCheckRunnable).start();
-                                }
                                 break;
                             case SUBSCRIBE:
-                                if (WelcomeThread.metadata.getHashRange(WelcomeThread.getIPAddress(), WelcomeThread.getPortNumber()).isInReadRange(WelcomeThread.getMd5Hash(latestMsg.getKey()))) {
+                                if (WelcomeThread.metadata.getHashRange(WelcomeThread.getIPAddress(), WelcomeThread.getPortNumber()).isKeyInReadRange(latestMsg.getKey())) {
                                     List<String> notifyThese = WelcomeThread.subscriptions.get(latestMsg.getKey());
                                     if (notifyThese == null) {
                                         List<String> clients = new ArrayList<>();
@@ -474,7 +644,8 @@ public class ClientConnection implements Runnable {
                                     sendMessage(replyMsg);
                                 }
                                 else {
-                                    replyMsg = new Message(KVMessage.StatusType.SERVER_NOT_RESPONSIBLE, null, null, WelcomeThread.metadata.getSerializedForm());
+                                    replyMsg = new Message(KVMessage.StatusType.SERVER_NOT_RESPONSIBLE, null, null,
+                                            WelcomeThread.metadata.getSerializedUpdate(latestMsg.getEpoch()));
                                     sendMessage(replyMsg);
                                 }
                                 break;
@@ -488,7 +659,7 @@ public class ClientConnection implements Runnable {
                                                 KVMessage.StatusType.UNSUBSCRIBE,
                                                 "138.68.229.113",
                                                 null);
-                                new Thread(adminUnsubscribeRequestRunnable).start();
+                                ServerExecutors.runNotification(adminUnsubscribeRequestRunnable);
 //                                List<String> these = WelcomeThread.subscriptions.get(latestMsg.getKey());
 //                                if (these != null) {
 //                                    these.remove(latestMsg.getMetadata());
@@ -539,12 +710,301 @@ public class ClientConnection implements Runnable {
         }
     }
 
+    /**
+     * M4: Verifies a value a client read from another server against this replica. Only the digest of the value
+     * is compared unless it differs. On a mismatch the server is reported as compromised and the client is sent the
+     * value stored here.
+     *
+     * @param key       key that was read
+     * @param digest    digest of the value the client read, "null" if it read none
+     * @param serverKey server key of the server the client read from
+     * @param clientKey address:port the client listens on
+     * @throws IOException if the client cannot be reached
+     */
+    private void checkGetIntegrity(String key, String digest, String serverKey, String clientKey) throws IOException {
+        String [] client_ip_port_array = clientKey.split(":");
+        String client_ip_address = client_ip_port_array[0];
+        String client_port = client_ip_port_array[1];
+
+        String ownIPandPort = WelcomeThread.getIPAddress() + ":" + WelcomeThread.getPortNumber();
+
+        // Compared against the digest kept beside the record so the value is not re-read
+        if (String.valueOf(WelcomeThread.getCachedStorage().getDigest(key)).equals(digest)) {
+            return;
+        }
+
+        // Confirm the mismatch against the stored value before reporting the server
+        KVMessage value = WelcomeThread.getCachedStorage().get(key);
+        logger.debug("value is " + value.getSerializedMsg());
+        logger.debug("read digest is " + digest);
+        if (value.getStatus() == KVMessage.StatusType.DATA_CORRUPTED) {
+            // This replica's own record is corrupt and being repaired, it cannot judge the other server
+            return;
+        }
+        if (value.getValue() == null && (digest == null || digest.equals("null"))) {
+            return;
+        }
+
+        if (value != null && value.getStatus()== KVMessage.StatusType.GET_SUCCESS) {
+            if (!WelcomeThread.getMd5Hash(value.getValue()).equals(digest)) {
+
+                // The get failed, no value for this key, integrity check failed
+                // Inform Admin to recovery the compromised server
+                ClientIntegrityCheckRunnable informAdminServerCompromisedRunnable =
+                        new ClientIntegrityCheckRunnable(
+                                null,
+                                null,
+                                null,
+                                serverKey,
+                                true,
+                                null,
+                                "138.68.229.113" ,
+                                ownIPandPort);
+                ServerExecutors.runIntegrityCheck(informAdminServerCompromisedRunnable);
+                // Inform Client that the read value was wrong
+
+                Socket destinationClientSocket = new Socket(client_ip_address, Integer.parseInt(client_port));
+                ClientIntegrityCheckRunnable clientGetIntegrityCheckRunnable =
+                        new ClientIntegrityCheckRunnable(
+                                destinationClientSocket,
+                                key,
+                                value.getValue(),
+                                serverKey,
+                                false,
+                                KVMessage.StatusType.GET,
+                                "138.68.229.113" ,
+                                ownIPandPort);
+                ServerExecutors.runIntegrityCheck(clientGetIntegrityCheckRunnable);
+            }
+        }
+        else {
+            // The get failed, no value for this key, integrity check failed
+            // Inform Admin to recovery the compromised server
+            ClientIntegrityCheckRunnable informAdminServerCompromisedRunnable =
+                    new ClientIntegrityCheckRunnable(
+                            null,
+                            null,
+                            null,
+                            serverKey,
+                            true,
+                            null,
+                            "138.68.229.113",
+                            ownIPandPort);
+            ServerExecutors.runIntegrityCheck(informAdminServerCompromisedRunnable);
+            // Inform Client that the read value was wrong
+
+            Socket destinationClientSocket = new Socket(client_ip_address, Integer.parseInt(client_port));
+            ClientIntegrityCheckRunnable clientGetIntegrityCheckRunnable =
+                    new ClientIntegrityCheckRunnable(
+                            destinationClientSocket,
+                            key,
+                            value.getValue(),
+                            serverKey,
+                            false,
+                            KVMessage.StatusType.GET,
+                            "138.68.229.113",
+                            ownIPandPort);
+            ServerExecutors.runIntegrityCheck(clientGetIntegrityCheckRunnable);
+        }
+    }
+
+    /**
+     * M4: Verifies a replicated write with the client that issued it. If the client cannot be reached, the
+     * coordinator is reported as compromised and the key is removed from this replica.
+     *
+     * @param key       key that was replicated
+     * @param value     value that was replicated
+     * @param serverKey server key of the coordinator that sent the write
+     * @param clientKey address:port the client listens on, port 1 if it does not take integrity checks
+     */
+    private void checkReplicatedPut(String key, String value, String serverKey, String clientKey) {
+        String [] client_ip_port_array = clientKey.split(":");
+        String client_ip_address = client_ip_port_array[0];
+        String client_port = client_ip_port_array[1];
+
+        String ownIPandPort = WelcomeThread.getIPAddress() + ":" + WelcomeThread.getPortNumber();
+
+        if (!client_port.equals("1")) {
+            try {
+                Socket destinationClientSocket = new Socket(client_ip_address, Integer.parseInt(client_port));
+                ClientIntegrityCheckRunnable clientIntegrityCheckRunnable =
+                        new ClientIntegrityCheckRunnable(
+                                destinationClientSocket,
+                                key,
+                                value,
+                                serverKey,
+                                false,
+                                KVMessage.StatusType.PUT,
+                                "138.68.229.113",
+                                ownIPandPort);
+                ServerExecutors.runIntegrityCheck(clientIntegrityCheckRunnable);
+            } catch (Exception e) {
+                ClientIntegrityCheckRunnable clientIntegrityCheckRunnable =
+                        new ClientIntegrityCheckRunnable(
+                                null,
+                                null,
+                                null,
+                                serverKey,
+                                true,
+                                null,
+                                "138.68.229.113",
+                                ownIPandPort);
+                ServerExecutors.runIntegrityCheck(clientIntegrityCheckRunnable);
+                // Remove the key from compromised server
+                WelcomeThread.getCachedStorage().delete(key);
+            }
+        }
+    }
+
+    /**
+     * Sends a range to another server without holding up this connection, the admin is answered with the command,
+     * or FAILED, once the range was sent.
+     *
+     * @param command     ADMIN_MOVEDATA or ADMIN_COPYDATA
+     * @param destination server key of the server the range is sent to
+     * @param task        task sending the range
+     */
+    private void startRangeTransfer(final KVMessage.StatusType command, final String destination, RangeTransfer.Task task) {
+        RangeTransfer.start(command, destination, task, new RangeTransfer.Listener() {
+            @Override
+            public void transferDone(RangeTransfer transfer) {
+                try {
+                    sendMessage(new Message(transfer.isFailed() ? KVMessage.StatusType.FAILED : command, null, null, null));
+                } catch (IOException e) {
+                    logger.warn("Cannot tell the admin that " + command + " to " + destination + " finished", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * M4: Replicates a write operation to the 2 replicas of the key. The write is queued on the persistent
+     * replication channel of each replica and sent asynchronously, batched with other writes.
+     *
+     * @param key         key that was written
+     * @param value       value written, "null" or empty for deletions
+     * @param clientKey   address:port the client listens on for put integrity checks
+     * @param certificate certificate the client signed the write with, null if it did not
+     * @return sequence of the write per replication channel
+     */
+    private Map<WriteReplicationRunnable, Long> replicateWrite(String key, String value, String clientKey, String certificate) {
+        List<String> replicas = WelcomeThread.metadata.getBackupsForKey(key);
+        if (WelcomeThread.getPortNumber() == putCompromisedServerPortNumber) {
+            // M4: This is a compromised server, will change the key,value pair in the replication process to change data
+            // on the two Replicas
+            value = "COMPROMISED!";
+        }
+
+        Map<WriteReplicationRunnable, Long> sequences = new HashMap<>();
+        for (String replica : replicas) {
+            WriteReplicationRunnable channel = WelcomeThread.getReplicationChannel(replica);
+            sequences.put(channel, channel.replicate(key, value, clientKey, certificate));
+        }
+        return sequences;
+    }
+
+    /**
+     * Waits until enough replicas acknowledged a write for the requested consistency.
+     *
+     * @param sequences   sequence of the write per replication channel
+     * @param consistency write consistency requested by the client
+     * @return false if too few replicas acknowledged in time
+     */
+    private boolean awaitReplication(Map<WriteReplicationRunnable, Long> sequences, WriteConsistency consistency) {
+        int required = consistency.getRequiredReplicaAcks(sequences.size());
+        if (required == 0) {
+            return true;
+        }
+        long start = System.currentTimeMillis();
+        boolean replicated = WriteReplicationRunnable.awaitAcks(sequences, required, REPLICATION_TIMEOUT_MILLIS);
+        logger.info(String.format("Waited %d ms for %d of %d replicas (%s), average wait %.2f ms",
+                System.currentTimeMillis() - start, required, sequences.size(), consistency,
+                WriteReplicationRunnable.getAverageAckWaitMillis()));
+        return replicated;
+    }
+
+    /**
+     * @return the write consistency the client asked for, the server's default if it did not ask for one, null if
+     * it asked for one that does not exist
+     */
+    private WriteConsistency getWriteConsistency(String[] putFields) {
+        if (putFields.length > 1 && !putFields[1].isEmpty()) {
+            try {
+                return WriteConsistency.valueOf(putFields[1]);
+            } catch (IllegalArgumentException e) {
+                logger.warn("Unknown write consistency " + putFields[1] + " requested");
+                return null;
+            }
+        }
+        return WelcomeThread.getWriteConsistency();
+    }
+
+    private static boolean isWriteSuccess(KVMessage.StatusType status) {
+        return status == KVMessage.StatusType.PUT_SUCCESS || status == KVMessage.StatusType.PUT_UPDATE
+                || status == KVMessage.StatusType.DELETE_SUCCESS;
+    }
+
+    /**
+     * M4: Notifies the clients subscribed to the given key about its new value.
+     *
+     * @param key   key that was written
+     * @param value new value of the key
+     */
+    private void notifySubscribers(String key, String value) {
+        List<String> clientServerSocketKey = WelcomeThread.subscriptions.get(key);
+        if (clientServerSocketKey != null) {
+            for (String c : clientServerSocketKey) {
+                NotificationRunnable notify = new NotificationRunnable(c, key, value);
+                ServerExecutors.runNotification(notify);
+                logger.debug("Sending client socket " + c + " about " + key + value);
+            }
+        }
+    }
+
+    private boolean isInWriteRange(Iterable<String> keys) {
+        HashRange range = WelcomeThread.metadata.getHashRange(WelcomeThread.getIPAddress(), WelcomeThread.getPortNumber());
+        for (String key : keys) {
+            if (!range.isKeyInRange(key)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isInReadRange(Iterable<String> keys) {
+        HashRange range = WelcomeThread.metadata.getHashRange(WelcomeThread.getIPAddress(), WelcomeThread.getPortNumber());
+        for (String key : keys) {
+            if (!range.isKeyInReadRange(key)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the Merkle tree of this server's pairs in the given range, built once per anti-entropy round.
+     *
+     * @param rangeKey start,end hashes of the ranges, see {@link HashRange#getBounds}
+     * @return tree over the pairs in the range
+     */
+    private MerkleTree getMerkleTree(String rangeKey) {
+        if (merkleTree == null || !rangeKey.equals(merkleTreeRange)) {
+            merkleTree = new MerkleTree(WelcomeThread.getCachedStorage().getRange(HashRange.fromBounds(rangeKey)));
+            merkleTreeRange = rangeKey;
+        }
+        return merkleTree;
+    }
+
+    static boolean isDeleteValue(String value) {
+        return value == null || value.equals("null") || value.equals("");
+    }
+
     /**
      * Method sends a KVMessage using this socket.
      * @param msg the message that is to be sent.
      * @throws IOException some I/O error regarding the output stream
      */
-    public void sendMessage(KVMessage msg) throws IOException {
+    public synchronized void sendMessage(KVMessage msg) throws IOException {
         byte[] msgBytes = msg.getBytes();
         output.write(msgBytes, 0, msgBytes.length);
         output.flush();
@@ -624,7 +1084,8 @@ public class ClientConnection implements Runnable {
         String arg2 = jsonObject.get("arg2").getAsString();
         KVMessage.StatusType statusType = KVMessage.StatusType.valueOf(jsonObject.get("statusType").getAsString());
         String arg3 = jsonObject.get("arg3").getAsString();
-        KVMessage message = new Message(statusType, arg1, arg2, arg3);
+        long epoch = jsonObject.has("epoch") ? jsonObject.get("epoch").getAsLong() : 0;
+        KVMessage message = new Message(statusType, arg1, arg2, arg3, epoch);
 
         logger.info("RECEIVE <"
                 + clientSocket.getInetAddress().getHostAddress() + ":"
@@ -0,0 +1,22 @@
+package app_server;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a record read from the data file does not match its checksum.
+ */
+public class CorruptRecordException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String key;
+
+    public CorruptRecordException(String key) {
+        super("Record of key " + key + " failed its checksum");
+        this.key = key;
+    }
+
+    public String getKey() {
+        return key;
+    }
+}
@@ -6,7 +6,6 @@ import common.messages.Message;
 import java.io.IOException;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A cache to store string based key value pairs with a first in first out eviction strategy.
@@ -25,8 +24,6 @@ public class FifoCachedStorage extends AbstractCachedStorage {
     private final LinkedHashMap<String, String> cacheMap;
     private final int cacheSize;
 
-    private ReentrantLock lock = new ReentrantLock(true);
-
     /**
      * Constructs a FifoCachedStorage with a maximum size.
      *
@@ -54,7 +51,7 @@ public class FifoCachedStorage extends AbstractCachedStorage {
     @Override
     public KVMessage put(String key, String value) {
         KVMessage rtn;
-        //lock.lock();
+        lock.lock();
         try {
             String previousValueOnDisk = persistToDisk(key, value);
             if (previousValueOnDisk == null) {
@@ -68,7 +65,7 @@ public class FifoCachedStorage extends AbstractCachedStorage {
         } catch (IOException e) {
             rtn = new Message(KVMessage.StatusType.PUT_ERROR, key, value, null);
         } finally {
-            //lock.unlock();
+            lock.unlock();
         }
         return rtn;
     }
@@ -101,6 +98,8 @@ public class FifoCachedStorage extends AbstractCachedStorage {
                     rtn = new Message(KVMessage.StatusType.GET_ERROR, key, null, null);
                 }
             }
+        } catch (CorruptRecordException e) {
+            rtn = new Message(KVMessage.StatusType.DATA_CORRUPTED, key, null, null);
         } catch (IOException e) {
             rtn = new Message(KVMessage.StatusType.GET_ERROR, key, null, null);
         } finally {
@@ -118,7 +117,7 @@ public class FifoCachedStorage extends AbstractCachedStorage {
     @Override
     public KVMessage delete(String key) {
         KVMessage rtn;
-        //lock.lock();
+        lock.lock();
         try {
             cacheMap.remove(key);
             String previousValueOnDisk = deleteFromDisk(key);
@@ -130,11 +129,25 @@ public class FifoCachedStorage extends AbstractCachedStorage {
         } catch (IOException e) {
             rtn = new Message(KVMessage.StatusType.DELETE_ERROR, key, null, null);
         } finally {
-            //lock.unlock();
+            lock.unlock();
         }
         return rtn;
     }
 
+    @Override
+    protected String getFromCache(String key) {
+        return cacheMap.get(key);
+    }
+
+    @Override
+    protected void updateCache(String key, String value) {
+        if (value == null) {
+            cacheMap.remove(key);
+        } else {
+            cacheMap.put(key, value);
+        }
+    }
+
     /**
      * Checks whether the given key has a key value pair in the cache.
      *
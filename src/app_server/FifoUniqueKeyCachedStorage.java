@@ -6,15 +6,12 @@ import common.messages.Message;
 import java.io.IOException;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.concurrent.locks.ReentrantLock;
 
 public class FifoUniqueKeyCachedStorage extends AbstractCachedStorage {
 
     private final LinkedHashMap<String, String> cacheMap;
     private final int cacheSize;
 
-    private ReentrantLock lock = new ReentrantLock(true);
-
     /**
      * Constructs a FifoCachedStorage with a maximum size.
      *
@@ -42,8 +39,13 @@ public class FifoUniqueKeyCachedStorage extends AbstractCachedStorage {
     @Override
     public KVMessage put(String key, String value) {
         KVMessage rtn;
-        persistWithoutUniqueCheck(key, value);
-        rtn = new Message(KVMessage.StatusType.PUT_SUCCESS, key, value, null);
+        lock.lock();
+        try {
+            persistWithoutUniqueCheck(key, value);
+            rtn = new Message(KVMessage.StatusType.PUT_SUCCESS, key, value, null);
+        } finally {
+            lock.unlock();
+        }
         return rtn;
     }
 
@@ -75,6 +77,8 @@ public class FifoUniqueKeyCachedStorage extends AbstractCachedStorage {
                     rtn = new Message(KVMessage.StatusType.GET_ERROR, key, null, null);
                 }
             }
+        } catch (CorruptRecordException e) {
+            rtn = new Message(KVMessage.StatusType.DATA_CORRUPTED, key, null, null);
         } catch (IOException e) {
             rtn = new Message(KVMessage.StatusType.GET_ERROR, key, null, null);
         } finally {
@@ -92,7 +96,7 @@ public class FifoUniqueKeyCachedStorage extends AbstractCachedStorage {
     @Override
     public KVMessage delete(String key) {
         KVMessage rtn;
-        //lock.lock();
+        lock.lock();
         try {
             cacheMap.remove(key);
             String previousValueOnDisk = deleteFromDisk(key);
@@ -104,11 +108,25 @@ public class FifoUniqueKeyCachedStorage extends AbstractCachedStorage {
         } catch (IOException e) {
             rtn = new Message(KVMessage.StatusType.DELETE_ERROR, key, null, null);
         } finally {
-            //lock.unlock();
+            lock.unlock();
         }
         return rtn;
     }
 
+    @Override
+    protected String getFromCache(String key) {
+        return cacheMap.get(key);
+    }
+
+    @Override
+    protected void updateCache(String key, String value) {
+        if (value == null) {
+            cacheMap.remove(key);
+        } else {
+            cacheMap.put(key, value);
+        }
+    }
+
     /**
      * Checks whether the given key has a key value pair in the cache.
      *
@@ -14,7 +14,7 @@ import org.apache.log4j.Logger;
 import java.io.*;
 import java.net.Socket;
 
-public class FileCopyRunnable implements Runnable {
+public class FileCopyRunnable implements RangeTransfer.Task {
     private Logger logger = Logger.getRootLogger();
 
     private boolean isOpen;
@@ -29,6 +29,8 @@ public class FileCopyRunnable implements Runnable {
     private InputStream input;
     private OutputStream output;
     private HashRange range;
+    private volatile long keysSent;
+    private volatile boolean failed;
 
     public FileCopyRunnable(Socket destinationSocket, HashRange range) {
         this.destinationSocket = destinationSocket;
@@ -52,6 +54,8 @@ public class FileCopyRunnable implements Runnable {
             return;
         }
 
+        // Read without the storage lock, rewrites replace the data file by renaming so this reader keeps seeing the
+        // file as it was when opened
         BufferedReader reader;
         try {
             reader = new BufferedReader(new FileReader(inputFile));
@@ -60,13 +64,13 @@ public class FileCopyRunnable implements Runnable {
             throw e;
         }
 
-        File tempFile = new File(absoluteDirPath + File.separator +"temp");
-        BufferedWriter writer;
-        try {
-            writer = new BufferedWriter(new FileWriter(tempFile));
-        } catch (IOException e) {
-            logger.error("Cannot create writer for temporary file.");
-            throw e;
+        // Records of the range, sent in one piece once collected
+        File rangeFile = null;
+        BufferedWriter rangeWriter = null;
+        long rangeRecords = 0;
+        if (BulkTransfer.ENABLED) {
+            rangeFile = File.createTempFile("range", null, dir);
+            rangeWriter = new BufferedWriter(new FileWriter(rangeFile));
         }
 
         try {
@@ -77,36 +81,53 @@ public class FileCopyRunnable implements Runnable {
                 CSVRecord csvRecord = parser.getRecords().get(0);
                 String key = csvRecord.get(0);
                 String value = csvRecord.get(1);
+                boolean inRange = range.isKeyInRange(key);
 
-                if (range.isInRange(WelcomeThread.getMd5Hash(key)))
+                if (inRange && !RecordChecksum.isValid(csvRecord)) {
+                    // Never copy a corrupt record, it is repaired here and reaches the copy through replication
+                    logger.error("Record of key " + key + " failed its checksum, not copied.");
+                    WelcomeThread.repairCorruptRecord(key);
+                }
+                else if (inRange && rangeWriter != null)
+                {
+                    rangeWriter.write(trimmedLine + System.getProperty("line.separator"));
+                    rangeRecords++;
+                    keysSent++;
+                }
+                else if (inRange)
                 {
-                    writer.write(currentLine + System.getProperty("line.separator"));
                     KVMessage replyMsg = new Message(KVMessage.StatusType.ADMIN_FILETRANSFER, key, value, null);
                     sendMessage(replyMsg);
+                    keysSent++;
                 }
-                else {
-                    writer.write(currentLine + System.getProperty("line.separator"));
-                }
-
-              //  writer.write(currentLine + System.getProperty("line.separator"));
-//                if (csvRecord.get(0).equals(key)) {
-//                    value = csvRecord.get(1);
-//                    break;
-//                }
             }
-            writer.close();
             reader.close();
+            if (rangeWriter != null) {
+                rangeWriter.close();
+                sendRange(rangeFile, rangeRecords);
+            }
         } catch (IOException e) {
-            logger.error("Error reading date file or writing to temp file.");
+            logger.error("Error reading date file or sending the range.");
+            if (rangeFile != null) {
+                rangeFile.delete();
+            }
             throw e;
         }
-
-        if (!tempFile.renameTo(inputFile)) {
-            logger.error("Error renaming");
-            tempFile.delete();
-        }
         return;
     }
+    /**
+     * Sends the collected records of the range in one piece, see {@link BulkTransfer}.
+     */
+    private void sendRange(File rangeFile, long records) throws IOException {
+        try {
+            sendMessage(new Message(KVMessage.StatusType.ADMIN_BULK_TRANSFER, String.valueOf(rangeFile.length()),
+                    String.valueOf(records), null));
+            BulkTransfer.sendFile(destinationSocket, output, rangeFile);
+        } finally {
+            rangeFile.delete();
+        }
+    }
+
     /**
      * Initializes and starts the client connection.
      * Loops until the connection is closed or aborted by the client.
@@ -119,11 +140,25 @@ public class FileCopyRunnable implements Runnable {
             KVMessage replyMsg = new Message(KVMessage.StatusType.ADMIN_FILETRANSFER_COMPLETE, null, null, null);
             sendMessage(replyMsg);
             KVMessage message = receiveMessage();
+            if (message.getStatus() != KVMessage.StatusType.ADMIN_FILETRANSFER_COMPLETE) {
+                throw new IOException("Destination did not store the range: " + message.getStatus());
+            }
         } catch (Exception e) {
-
+            failed = true;
+            logger.error("Sending range " + range.getBounds() + " failed", e);
         }
     }
 
+    @Override
+    public long getKeysSent() {
+        return keysSent;
+    }
+
+    @Override
+    public boolean isFailed() {
+        return failed;
+    }
+
     /**
      * Method sends a KVMessage using this socket.
      * @param msg the message that is to be sent.
@@ -13,8 +13,10 @@ import org.apache.log4j.Logger;
 
 import java.io.*;
 import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
 
-public class FileTransferRunnable implements Runnable {
+public class FileTransferRunnable implements RangeTransfer.Task {
     private Logger logger = Logger.getRootLogger();
 
     private boolean isOpen;
@@ -29,6 +31,8 @@ public class FileTransferRunnable implements Runnable {
     private InputStream input;
     private OutputStream output;
     private HashRange range;
+    private volatile long keysSent;
+    private volatile boolean failed;
 
     public FileTransferRunnable(Socket destinationSocket, HashRange range) {
         this.destinationSocket = destinationSocket;
@@ -36,7 +40,13 @@ public class FileTransferRunnable implements Runnable {
         this.range = range;
     }
 
-    public void traverseDiskAndTransfer() throws Exception {
+    /**
+     * Sends the records of the range to the destination.
+     *
+     * @return {@link RecordChecksum} of the value of every record of the range, dropped from the data file once the
+     * destination stored them
+     */
+    public Map<String, String> traverseDiskAndTransfer() throws Exception {
         String filename = WelcomeThread.getIPAddress()+String.valueOf(WelcomeThread.getPortNumber());
         String workingDirectory = System.getProperty("user.dir");
 
@@ -49,9 +59,11 @@ public class FileTransferRunnable implements Runnable {
         File inputFile = new File(absoluteFilePath);
 
         if (!inputFile.exists()) {
-            return;
+            return new HashMap<>();
         }
 
+        // Read without the storage lock, rewrites replace the data file by renaming so this reader keeps seeing the
+        // file as it was when opened
         BufferedReader reader;
         try {
             reader = new BufferedReader(new FileReader(inputFile));
@@ -60,14 +72,15 @@ public class FileTransferRunnable implements Runnable {
             throw e;
         }
 
-        File tempFile = new File(absoluteDirPath + File.separator +"temp");
-        BufferedWriter writer;
-        try {
-            writer = new BufferedWriter(new FileWriter(tempFile));
-        } catch (IOException e) {
-            logger.error("Cannot create writer for temporary file.");
-            throw e;
+        // Records of the range, sent in one piece once collected
+        File rangeFile = null;
+        BufferedWriter rangeWriter = null;
+        long rangeRecords = 0;
+        if (BulkTransfer.ENABLED) {
+            rangeFile = File.createTempFile("range", null, dir);
+            rangeWriter = new BufferedWriter(new FileWriter(rangeFile));
         }
+        Map<String, String> moved = new HashMap<>();
 
         try {
             String currentLine;
@@ -77,35 +90,57 @@ public class FileTransferRunnable implements Runnable {
                 CSVRecord csvRecord = parser.getRecords().get(0);
                 String key = csvRecord.get(0);
                 String value = csvRecord.get(1);
+                if (!range.isKeyInRange(key)) {
+                    continue;
+                }
 
-                if (range.isInRange(WelcomeThread.getMd5Hash(key)))
+                if (!RecordChecksum.isValid(csvRecord)) {
+                    // Never hand a corrupt record to the new responsible server, it gets the key from a replica
+                    logger.error("Record of key " + key + " failed its checksum, not transferred.");
+                }
+                else if (rangeWriter != null)
+                {
+                    rangeWriter.write(trimmedLine + System.getProperty("line.separator"));
+                    rangeRecords++;
+                    keysSent++;
+                }
+                else
                 {
                     KVMessage replyMsg = new Message(KVMessage.StatusType.ADMIN_FILETRANSFER, key, value, null);
                     sendMessage(replyMsg);
+                    keysSent++;
                 }
-                else {
-                    writer.write(currentLine + System.getProperty("line.separator"));
-                }
-
-              //  writer.write(currentLine + System.getProperty("line.separator"));
-//                if (csvRecord.get(0).equals(key)) {
-//                    value = csvRecord.get(1);
-//                    break;
-//                }
+                moved.put(key, RecordChecksum.compute(key, value));
             }
-            writer.close();
             reader.close();
+            if (rangeWriter != null) {
+                rangeWriter.close();
+                sendRange(rangeFile, rangeRecords);
+            }
         } catch (IOException e) {
-            logger.error("Error reading date file or writing to temp file.");
+            logger.error("Error reading date file or sending the range.");
+            reader.close();
+            if (rangeFile != null) {
+                rangeWriter.close();
+                rangeFile.delete();
+            }
             throw e;
         }
-
-        if (!tempFile.renameTo(inputFile)) {
-            logger.error("Error renaming");
-            tempFile.delete();
+        return moved;
+    }
+    /**
+     * Sends the collected records of the range in one piece, see {@link BulkTransfer}.
+     */
+    private void sendRange(File rangeFile, long records) throws IOException {
+        try {
+            sendMessage(new Message(KVMessage.StatusType.ADMIN_BULK_TRANSFER, String.valueOf(rangeFile.length()),
+                    String.valueOf(records), null));
+            BulkTransfer.sendFile(destinationSocket, output, rangeFile);
+        } finally {
+            rangeFile.delete();
         }
-        return;
     }
+
     /**
      * Initializes and starts the client connection.
      * Loops until the connection is closed or aborted by the client.
@@ -114,15 +149,31 @@ public class FileTransferRunnable implements Runnable {
         try {
             output = destinationSocket.getOutputStream();
             input = destinationSocket.getInputStream();
-            traverseDiskAndTransfer();
+            Map<String, String> moved = traverseDiskAndTransfer();
             KVMessage replyMsg = new Message(KVMessage.StatusType.ADMIN_FILETRANSFER_COMPLETE, null, null, null);
             sendMessage(replyMsg);
             KVMessage message = receiveMessage();
+            if (message.getStatus() != KVMessage.StatusType.ADMIN_FILETRANSFER_COMPLETE) {
+                throw new IOException("Destination did not store the range: " + message.getStatus());
+            }
+            // Kept until the destination echoed the completion, so a failure on its side loses nothing
+            WelcomeThread.getCachedStorage().removeRecords(moved);
         } catch (Exception e) {
-
+            failed = true;
+            logger.error("Sending range " + range.getBounds() + " failed", e);
         }
     }
 
+    @Override
+    public long getKeysSent() {
+        return keysSent;
+    }
+
+    @Override
+    public boolean isFailed() {
+        return failed;
+    }
+
     /**
      * Method sends a KVMessage using this socket.
      * @param msg the message that is to be sent.
@@ -8,7 +8,6 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A cache to store string based key value pairs with a least frequently used eviction strategy.
@@ -27,7 +26,6 @@ import java.util.concurrent.locks.ReentrantLock;
 public class LfuCachedStorage extends AbstractCachedStorage {
 
     private final HashMap<String, Entry> cacheMap;
-    private ReentrantLock lock = new ReentrantLock(true);
     private List<List<String>> freqList;
     private HashMap<String, Integer> highFreqEntryMap;
     private final int freqListSize;
@@ -73,7 +71,7 @@ public class LfuCachedStorage extends AbstractCachedStorage {
     @Override
     public KVMessage put(String key, String value) {
         KVMessage rtn;
-        //lock.lock();
+        lock.lock();
         try {
             String previousValueOnDisk = persistToDisk(key, value);
             if (previousValueOnDisk == null) {
@@ -83,39 +81,11 @@ public class LfuCachedStorage extends AbstractCachedStorage {
                 // Key exists on disk.
                 rtn = new Message(KVMessage.StatusType.PUT_UPDATE, key, value, null);
             }
-
-            Entry entryInCache = cacheMap.get(key);
-            if (entryInCache == null) {
-                // Entry not in cache
-                if (cacheMap.size() >= cacheSize) {
-                    evictLeastFrequentlyUsedEntry();
-                }
-                entryInCache = new Entry(value);
-                freqList.get(0).add(key);
-            } else {
-                // Entry in cache, update frequency lists
-                if (entryInCache.frequency < freqListSize) {
-                    freqList.get(entryInCache.frequency).remove(key);
-                    entryInCache.frequency = entryInCache.frequency + 1;
-                    entryInCache.value = value;
-                    if (freqList.size() - 1 < entryInCache.frequency) {
-                        freqList.add(entryInCache.frequency, new ArrayList<String>());
-                    }
-                    freqList.get(entryInCache.frequency).add(key);
-                } else {
-                    if (entryInCache.frequency == freqListSize) {
-                        freqList.get(entryInCache.frequency).remove(key);
-                    }
-                    entryInCache.frequency = entryInCache.frequency + 1;
-                    entryInCache.value = value;
-                    highFreqEntryMap.put(key, entryInCache.frequency);
-                }
-            }
-            cacheMap.put(key, entryInCache);
+            updateCache(key, value);
         } catch (IOException e) {
             rtn = new Message(KVMessage.StatusType.PUT_ERROR, key, value, null);
         } finally {
-            //lock.unlock();
+            lock.unlock();
         }
         return rtn;
     }
@@ -132,39 +102,21 @@ public class LfuCachedStorage extends AbstractCachedStorage {
         KVMessage rtn;
         lock.lock();
         try {
-            Entry entryInCache = cacheMap.get(key);
-            if (entryInCache != null) {
-                if (entryInCache.frequency < freqListSize) {
-                    freqList.get(entryInCache.frequency).remove(key);
-                    entryInCache.frequency = entryInCache.frequency + 1;
-                    if (freqList.size() - 1 < entryInCache.frequency) {
-                        freqList.add(entryInCache.frequency, new ArrayList<String>());
-                    }
-                    freqList.get(entryInCache.frequency).add(key);
-                } else {
-                    if (entryInCache.frequency == freqListSize) {
-                        freqList.get(entryInCache.frequency).remove(key);
-                    }
-                    entryInCache.frequency = entryInCache.frequency + 1;
-                    highFreqEntryMap.put(key, entryInCache.frequency);
-                }
-                cacheMap.put(key, entryInCache);
-                rtn = new Message(KVMessage.StatusType.GET_SUCCESS, key, entryInCache.value, null);
+            String valueInCache = getFromCache(key);
+            if (valueInCache != null) {
+                rtn = new Message(KVMessage.StatusType.GET_SUCCESS, key, valueInCache, null);
             } else {
                 try {
                     String valueOnDisk = loadFromDisk(key);
-                    Entry entryOnDisk = new Entry(valueOnDisk);
                     if (valueOnDisk != null) {
-                        if (cacheMap.size() >= cacheSize) {
-                            evictLeastFrequentlyUsedEntry();
-                        }
                         rtn = new Message(KVMessage.StatusType.GET_SUCCESS, key, valueOnDisk, null);
-                        cacheMap.put(key, entryOnDisk);
-                        freqList.get(0).add(key);
+                        updateCache(key, valueOnDisk);
                         // Key does not exist on disk.
                     } else {
                         rtn = new Message(KVMessage.StatusType.GET_ERROR, key, null, null);
                     }
+                } catch (CorruptRecordException e) {
+                    rtn = new Message(KVMessage.StatusType.DATA_CORRUPTED, key, null, null);
                 } catch (IOException e) {
                     rtn = new Message(KVMessage.StatusType.GET_ERROR, key, null, null);
                 }
@@ -184,17 +136,9 @@ public class LfuCachedStorage extends AbstractCachedStorage {
     @Override
     public KVMessage delete(String key) {
         KVMessage rtn;
-        //lock.lock();
+        lock.lock();
         try {
-            Entry deletedEntry = cacheMap.remove(key);
-            // remove it from frequency list: arraylist returns false when it removes non-existent key
-            if (deletedEntry != null) {
-                if (deletedEntry.frequency <= freqListSize) {
-                    freqList.get(deletedEntry.frequency).remove(key);
-                } else {
-                    highFreqEntryMap.remove(key);
-                }
-            }
+            updateCache(key, null);
 
             String previousValueOnDisk = deleteFromDisk(key);
             if (previousValueOnDisk == null) {
@@ -205,11 +149,80 @@ public class LfuCachedStorage extends AbstractCachedStorage {
         } catch (IOException e) {
             rtn = new Message(KVMessage.StatusType.DELETE_ERROR, key, null, null);
         } finally {
-            //lock.unlock();
+            lock.unlock();
         }
         return rtn;
     }
 
+    /**
+     * Looks up a key in cache and bumps its access frequency.
+     *
+     * @param key key that identifies a value
+     * @return the cached value or null if the key is not cached
+     */
+    @Override
+    protected String getFromCache(String key) {
+        Entry entryInCache = cacheMap.get(key);
+        if (entryInCache == null) {
+            return null;
+        }
+        incrementFrequency(key, entryInCache);
+        return entryInCache.value;
+    }
+
+    /**
+     * Inserts or updates (bumping its access frequency) a key in cache, or removes it for a null value.
+     *
+     * @param key   key that identifies a value
+     * @param value new value, or null to drop the key from cache
+     */
+    @Override
+    protected void updateCache(String key, String value) {
+        if (value == null) {
+            Entry deletedEntry = cacheMap.remove(key);
+            // remove it from frequency list: arraylist returns false when it removes non-existent key
+            if (deletedEntry != null) {
+                if (deletedEntry.frequency <= freqListSize) {
+                    freqList.get(deletedEntry.frequency).remove(key);
+                } else {
+                    highFreqEntryMap.remove(key);
+                }
+            }
+            return;
+        }
+
+        Entry entryInCache = cacheMap.get(key);
+        if (entryInCache == null) {
+            // Entry not in cache
+            if (cacheMap.size() >= cacheSize) {
+                evictLeastFrequentlyUsedEntry();
+            }
+            cacheMap.put(key, new Entry(value));
+            freqList.get(0).add(key);
+        } else {
+            // Entry in cache, update frequency lists
+            entryInCache.value = value;
+            incrementFrequency(key, entryInCache);
+        }
+    }
+
+    private void incrementFrequency(String key, Entry entryInCache) {
+        if (entryInCache.frequency < freqListSize) {
+            freqList.get(entryInCache.frequency).remove(key);
+            entryInCache.frequency = entryInCache.frequency + 1;
+            if (freqList.size() - 1 < entryInCache.frequency) {
+                freqList.add(entryInCache.frequency, new ArrayList<String>());
+            }
+            freqList.get(entryInCache.frequency).add(key);
+        } else {
+            if (entryInCache.frequency == freqListSize) {
+                freqList.get(entryInCache.frequency).remove(key);
+            }
+            entryInCache.frequency = entryInCache.frequency + 1;
+            highFreqEntryMap.put(key, entryInCache.frequency);
+        }
+    }
+
     /**
      * Removes the key-value pair that has the fewest number of access from cache.
      */
@@ -0,0 +1,74 @@
+package app_server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Merkle tree over the key-value pairs of a hash range. Keys are spread over a fixed number of leaf buckets by the
+ * prefix of their hash. A leaf hashes the keys and value digests in its bucket and every inner node hashes its two
+ * children, so two servers holding the same pairs build the same tree. Comparing trees from the root down finds the
+ * differing buckets with a few node hashes instead of comparing every pair.
+ * <p>
+ * Nodes are numbered like a heap: the root is 1, the children of node i are 2i and 2i + 1, and the leaf of bucket b
+ * is LEAVES + b.
+ */
+public class MerkleTree {
+
+    public static final int DEPTH = 10;
+    public static final int LEAVES = 1 << DEPTH;
+    public static final int ROOT = 1;
+
+    private final String[] nodeHashes = new String[2 * LEAVES];
+    private final List<Map<String, String>> buckets = new ArrayList<>(LEAVES);
+
+    /**
+     * @param entries key value pairs of the range
+     */
+    public MerkleTree(Map<String, String> entries) {
+        for (int bucket = 0; bucket < LEAVES; bucket++) {
+            buckets.add(new TreeMap<String, String>());
+        }
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            buckets.get(getBucket(entry.getKey())).put(entry.getKey(), WelcomeThread.getMd5Hash(entry.getValue()));
+        }
+
+        for (int bucket = 0; bucket < LEAVES; bucket++) {
+            StringBuilder leaf = new StringBuilder();
+            for (Map.Entry<String, String> digest : buckets.get(bucket).entrySet()) {
+                // Length prefix keeps keys containing the digest characters unambiguous
+                leaf.append(digest.getKey().length()).append(':').append(digest.getKey()).append(digest.getValue());
+            }
+            nodeHashes[LEAVES + bucket] = WelcomeThread.getMd5Hash(leaf.toString());
+        }
+        for (int node = LEAVES - 1; node >= ROOT; node--) {
+            nodeHashes[node] = WelcomeThread.getMd5Hash(nodeHashes[2 * node] + nodeHashes[2 * node + 1]);
+        }
+    }
+
+    /**
+     * @param key key of a key value pair
+     * @return leaf bucket the key belongs to
+     */
+    public static int getBucket(String key) {
+        // First 12 bits of the key hash, reduced to DEPTH bits
+        return Integer.parseInt(WelcomeThread.getMd5Hash(key).substring(0, 3), 16) >> (12 - DEPTH);
+    }
+
+    public static boolean isLeaf(int node) {
+        return node >= LEAVES;
+    }
+
+    public String getNodeHash(int node) {
+        return nodeHashes[node];
+    }
+
+    /**
+     * @param bucket leaf bucket
+     * @return value digest per key in the bucket
+     */
+    public Map<String, String> getBucketDigests(int bucket) {
+        return buckets.get(bucket);
+    }
+}
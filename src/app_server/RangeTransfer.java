@@ -0,0 +1,116 @@
+package app_server;
+
+import com.google.gson.Gson;
+import common.messages.KVMessage;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A range of keys sent to another server for a MOVEDATA or COPYDATA command of the admin, run on a thread of its
+ * own. The connection that issued the command keeps serving while the range is sent and is answered from the
+ * completion callback. Running transfers and their progress are reported for ADMIN_TRANSFER_STATUS.
+ */
+public class RangeTransfer implements Runnable {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private static final Map<Long, RangeTransfer> running = new ConcurrentHashMap<>();
+    private static final AtomicLong nextId = new AtomicLong();
+
+    /**
+     * Sends the keys of a range, e.g. {@link FileTransferRunnable}.
+     */
+    public interface Task extends Runnable {
+        /**
+         * @return number of keys sent so far
+         */
+        long getKeysSent();
+
+        /**
+         * @return true if the transfer stopped on an error
+         */
+        boolean isFailed();
+    }
+
+    /**
+     * Called on the transfer's thread once the transfer finished or failed.
+     */
+    public interface Listener {
+        void transferDone(RangeTransfer transfer);
+    }
+
+    private final long id;
+    private final KVMessage.StatusType command;
+    private final String destination;
+    private final Task task;
+    private final Listener listener;
+    private final long startMillis;
+
+    private RangeTransfer(KVMessage.StatusType command, String destination, Task task, Listener listener) {
+        this.id = nextId.incrementAndGet();
+        this.command = command;
+        this.destination = destination;
+        this.task = task;
+        this.listener = listener;
+        this.startMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Starts sending a range.
+     *
+     * @param command     ADMIN_MOVEDATA or ADMIN_COPYDATA
+     * @param destination server key of the server the range is sent to
+     * @param task        task sending the range
+     * @param listener    called once the range was sent
+     * @return the running transfer
+     */
+    public static RangeTransfer start(KVMessage.StatusType command, String destination, Task task, Listener listener) {
+        RangeTransfer transfer = new RangeTransfer(command, destination, task, listener);
+        running.put(transfer.id, transfer);
+        ServerExecutors.newThread(transfer, "range-transfer-" + transfer.id, false).start();
+        return transfer;
+    }
+
+    @Override
+    public void run() {
+        try {
+            task.run();
+        } finally {
+            running.remove(id);
+            logger.info(String.format("%s to %s %s after %d keys in %d ms", command, destination,
+                    isFailed() ? "failed" : "finished", task.getKeysSent(), System.currentTimeMillis() - startMillis));
+            listener.transferDone(this);
+        }
+    }
+
+    public KVMessage.StatusType getCommand() {
+        return command;
+    }
+
+    public boolean isFailed() {
+        return task.isFailed();
+    }
+
+    /**
+     * @return the running transfers of this server with the keys sent so far, serialized as JSON
+     */
+    public static String getStatus() {
+        List<Map<String, Object>> statuses = new ArrayList<>();
+        for (RangeTransfer transfer : running.values()) {
+            Map<String, Object> status = new LinkedHashMap<>();
+            status.put("id", transfer.id);
+            status.put("command", transfer.command);
+            status.put("destination", transfer.destination);
+            status.put("keysSent", transfer.task.getKeysSent());
+            status.put("millis", System.currentTimeMillis() - transfer.startMillis);
+            statuses.add(status);
+        }
+        return new Gson().toJson(statuses);
+    }
+}
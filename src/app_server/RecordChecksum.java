@@ -0,0 +1,67 @@
+package app_server;
+
+import common.Hashing;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.commons.lang3.StringEscapeUtils;
+
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * Checksum kept as the third column of every record in the data file, so corruption of the file is detected when a
+ * record is read instead of being served or transferred to other servers. Records written before checksums were
+ * introduced have only two columns and are accepted as they are.
+ *
+ * <p>
+ * The fourth column holds the MD5 digest of the value that get integrity checks are compared against.
+ */
+public class RecordChecksum {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private RecordChecksum() {
+    }
+
+    /**
+     * @param key   key of the record
+     * @param value value of the record
+     * @return CRC32 of key and value in hex
+     */
+    public static String compute(String key, String value) {
+        CRC32 crc = new CRC32();
+        crc.update(key.getBytes(UTF_8));
+        // Separator keeps ("ab", "c") and ("a", "bc") apart
+        crc.update(0);
+        crc.update(value.getBytes(UTF_8));
+        return Long.toHexString(crc.getValue());
+    }
+
+    /**
+     * @param key   key of the record
+     * @param value value of the record
+     * @return line of the data file for the record, without line separator
+     */
+    public static String toLine(String key, String value) {
+        return StringEscapeUtils.escapeCsv(key) + "," + StringEscapeUtils.escapeCsv(value) + "," + compute(key, value)
+                + "," + Hashing.md5Hex(value);
+    }
+
+    /**
+     * @param record parsed line of the data file
+     * @return MD5 digest of the value, computed for records written before digests were kept
+     */
+    public static String getDigest(CSVRecord record) {
+        return record.size() < 4 ? Hashing.md5Hex(record.get(1)) : record.get(3);
+    }
+
+    /**
+     * @param record parsed line of the data file
+     * @return false if the record carries a checksum that does not match its key and value
+     */
+    public static boolean isValid(CSVRecord record) {
+        if (record.size() < 3) {
+            return true;
+        }
+        return compute(record.get(0), record.get(1)).equals(record.get(2));
+    }
+}
@@ -0,0 +1,73 @@
+package app_server;
+
+import common.messages.KVMessage;
+import common.messages.Message;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Replaces a record that failed its checksum with the value held by another server of the key. If every other server
+ * of the key answers that it does not hold the key, the corrupt record is deleted.
+ */
+public class RecordRepairRunnable implements Runnable {
+    private static Logger logger = Logger.getRootLogger();
+
+    private static final int CONNECT_TIMEOUT = 5 * 1000;
+    private static final int READ_TIMEOUT = 5 * 1000;
+
+    private final String key;
+
+    public RecordRepairRunnable(String key) {
+        this.key = key;
+    }
+
+    public void run() {
+        try {
+            String ownKey = WelcomeThread.getIPAddress() + ":" + WelcomeThread.getPortNumber();
+            Set<String> servers = new LinkedHashSet<>(WelcomeThread.metadata.getReadableServersForKey(key));
+            servers.remove(ownKey);
+
+            int notFound = 0;
+            for (String server : servers) {
+                KVMessage reply;
+                try {
+                    reply = fetch(server);
+                } catch (IOException e) {
+                    logger.warn("Cannot fetch key " + key + " from " + server + " for repair: " + e.getMessage());
+                    continue;
+                }
+                if (reply.getStatus() == KVMessage.StatusType.GET_SUCCESS) {
+                    WelcomeThread.getCachedStorage().put(key, reply.getValue());
+                    logger.info("Repaired corrupt record of key " + key + " from " + server);
+                    return;
+                }
+                if (reply.getStatus() == KVMessage.StatusType.GET_ERROR) {
+                    notFound++;
+                }
+            }
+            if (!servers.isEmpty() && notFound == servers.size()) {
+                WelcomeThread.getCachedStorage().delete(key);
+                logger.info("Deleted corrupt record of key " + key + ", no other server holds the key");
+            } else {
+                logger.error("Cannot repair corrupt record of key " + key + ", no other server returned its value");
+            }
+        } finally {
+            WelcomeThread.finishRepair(key);
+        }
+    }
+
+    private KVMessage fetch(String server) throws IOException {
+        String[] splits = server.split(":");
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(splits[0], Integer.parseInt(splits[1])), CONNECT_TIMEOUT);
+            socket.setSoTimeout(READ_TIMEOUT);
+            return AntiEntropyRunnable.request(socket, socket.getInputStream(), socket.getOutputStream(),
+                    new Message(KVMessage.StatusType.GET, key, null, null));
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package app_server;
+
+/**
+ * A single write streamed from a coordinator to one of its replicas, numbered by its position in the coordinator's
+ * replication log.
+ */
+public class ReplicatedWrite {
+
+    private final long sequence;
+    private final String key;
+    private final String value;
+    private final String clientKey;
+    private final String certificate;
+
+    /**
+     * @param sequence  position in the replication log, starting at 1
+     * @param key       key written
+     * @param value     value written, "null" for deletes
+     * @param clientKey address:port the client listens on for integrity checks
+     */
+    public ReplicatedWrite(long sequence, String key, String value, String clientKey) {
+        this(sequence, key, value, clientKey, null);
+    }
+
+    /**
+     * @param sequence    position in the replication log, starting at 1
+     * @param key         key written
+     * @param value       value written, "null" for deletes
+     * @param clientKey   address:port the client listens on for integrity checks
+     * @param certificate {@link common.WriteCertificate} the client signed the write with, null if it did not
+     */
+    public ReplicatedWrite(long sequence, String key, String value, String clientKey, String certificate) {
+        this.sequence = sequence;
+        this.key = key;
+        this.value = value;
+        this.clientKey = clientKey;
+        this.certificate = certificate;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public String getClientKey() {
+        return clientKey;
+    }
+
+    public String getCertificate() {
+        return certificate;
+    }
+}
@@ -0,0 +1,253 @@
+package app_server;
+
+import common.messages.KVMessage;
+import common.messages.Message;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded thread pools of the server, one per kind of task, so load cannot start threads without limit. A
+ * connection beyond the limit is turned away, the caller answers it with SERVER_BUSY. Background tasks wait in a
+ * bounded queue and are dropped with a warning once it is full.
+ * <p>
+ * With -Dkv.virtualThreads=true on Java 21 or later, connections and background tasks run on virtual threads. The
+ * blocking socket code stays as it is, a blocked virtual thread does not hold a platform thread, so the server can
+ * keep tens of thousands of connections open. Virtual threads are created through reflection, the server still
+ * builds for and runs on older Java versions, which fall back to platform threads.
+ */
+public final class ServerExecutors {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private static final boolean VIRTUAL_THREADS = Boolean.getBoolean("kv.virtualThreads") && isVirtualThreadsAvailable();
+    // Client and admin connections served at once, set with -Dkv.maxConnections
+    private static final int MAX_CONNECTIONS = Integer.getInteger("kv.maxConnections", VIRTUAL_THREADS ? 50000 : 512);
+    // Threads and queued tasks of every background pool, set with -Dkv.taskThreads and -Dkv.taskQueueSize
+    private static final int TASK_THREADS = Integer.getInteger("kv.taskThreads", VIRTUAL_THREADS ? 256 : 8);
+    private static final int TASK_QUEUE_SIZE = Integer.getInteger("kv.taskQueueSize", 10000);
+    private static final long KEEP_ALIVE_SECONDS = 60;
+    // Time a turned away client gets to send its request before its connection is closed
+    private static final int TURN_AWAY_TIMEOUT_MILLIS = 1000;
+    private static final int MAX_PENDING_TURN_AWAYS = 256;
+
+    // Connections stay open until the other side closes them, so they are never queued behind each other
+    private static final ThreadPoolExecutor connections = new ThreadPoolExecutor(0, MAX_CONNECTIONS,
+            KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), threadFactory("connection"),
+            new ThreadPoolExecutor.AbortPolicy());
+    private static final ThreadPoolExecutor notifications = taskPool("notification");
+    private static final ThreadPoolExecutor integrityChecks = taskPool("integrity-check");
+    private static final ThreadPoolExecutor repairs = taskPool("record-repair");
+    private static final ThreadPoolExecutor turnAways = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(MAX_PENDING_TURN_AWAYS), threadFactory("turn-away"),
+            new ThreadPoolExecutor.AbortPolicy());
+
+    static {
+        turnAways.allowCoreThreadTimeOut(true);
+    }
+
+    private ServerExecutors() {
+    }
+
+    /**
+     * @return true if connections and background tasks run on virtual threads
+     */
+    public static boolean isVirtualThreads() {
+        return VIRTUAL_THREADS;
+    }
+
+    /**
+     * Creates a thread for a long running task of the server, virtual if the server runs on virtual threads. Virtual
+     * threads are always daemon threads.
+     *
+     * @param task   task the thread runs
+     * @param name   name of the thread
+     * @param daemon whether the thread is a daemon thread, if it is a platform thread
+     * @return the thread, not started yet
+     */
+    public static Thread newThread(Runnable task, String name, boolean daemon) {
+        if (VIRTUAL_THREADS) {
+            try {
+                return (Thread) threadBuilderType().getMethod("unstarted", Runnable.class)
+                        .invoke(virtualThreadBuilder(name), task);
+            } catch (ReflectiveOperationException e) {
+                logger.warn("Cannot create virtual thread " + name + ", using a platform thread", e);
+            }
+        }
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(daemon);
+        return thread;
+    }
+
+    /**
+     * Serves a connection on a thread of its own.
+     *
+     * @return false if the server already serves as many connections as it may
+     */
+    public static boolean startConnection(Runnable connection) {
+        try {
+            connections.execute(connection);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Answers a connection the server has no thread for with SERVER_BUSY and closes it. The request the client sent
+     * meanwhile is read first, closing with unread data would reset the connection before the client reads the
+     * reply.
+     */
+    public static void turnAway(final Socket client) {
+        try {
+            turnAways.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        client.setSoTimeout(TURN_AWAY_TIMEOUT_MILLIS);
+                        OutputStream output = client.getOutputStream();
+                        output.write(new Message(KVMessage.StatusType.SERVER_BUSY, null, null, null).getBytes());
+                        output.flush();
+                        client.shutdownOutput();
+                        InputStream input = client.getInputStream();
+                        byte[] discarded = new byte[1024];
+                        while (input.read(discarded) != -1) {
+                            // Until the client closes the connection
+                        }
+                    } catch (IOException e) {
+                        logger.debug("Turned away connection closed", e);
+                    } finally {
+                        close(client);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            close(client);
+        }
+    }
+
+    private static void close(Socket client) {
+        try {
+            client.close();
+        } catch (IOException e) {
+            logger.debug("Cannot close turned away connection", e);
+        }
+    }
+
+    /**
+     * Runs a notification or subscription change sent to clients and servers.
+     *
+     * @return false if the task was dropped
+     */
+    public static boolean runNotification(Runnable notification) {
+        return run(notifications, "notification", notification);
+    }
+
+    /**
+     * Runs an integrity check, or a report of a compromised server, sent to other servers and the admin.
+     *
+     * @return false if the task was dropped
+     */
+    public static boolean runIntegrityCheck(Runnable check) {
+        return run(integrityChecks, "integrity check", check);
+    }
+
+    /**
+     * Runs the repair of a corrupt record from a replica.
+     *
+     * @return false if the task was dropped
+     */
+    public static boolean runRepair(Runnable repair) {
+        return run(repairs, "record repair", repair);
+    }
+
+    private static boolean run(ThreadPoolExecutor pool, String name, Runnable task) {
+        try {
+            pool.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            logger.warn("Too many pending " + name + " tasks, dropped " + task.getClass().getSimpleName());
+            return false;
+        }
+    }
+
+    private static ThreadPoolExecutor taskPool(String name) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(TASK_THREADS, TASK_THREADS, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(TASK_QUEUE_SIZE), threadFactory(name),
+                new ThreadPoolExecutor.AbortPolicy());
+        // Idle pools hold no threads
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Creates the thread factory of a pool, threads are named after the pool and numbered.
+     *
+     * @param virtual whether the factory creates virtual threads, which needs Java 21 or later
+     */
+    public static ThreadFactory threadFactory(String name, boolean virtual) throws ReflectiveOperationException {
+        if (!virtual) {
+            return platformThreadFactory(name);
+        }
+        Class<?> builderType = threadBuilderType();
+        Object builder = builderType.getMethod("name", String.class, long.class)
+                .invoke(virtualThreadBuilder(null), name + "-", 1L);
+        return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+    }
+
+    private static ThreadFactory threadFactory(String name) {
+        if (VIRTUAL_THREADS) {
+            try {
+                return threadFactory(name, true);
+            } catch (ReflectiveOperationException e) {
+                logger.warn("Cannot create virtual threads for " + name + " pool, using platform threads", e);
+            }
+        }
+        return platformThreadFactory(name);
+    }
+
+    private static boolean isVirtualThreadsAvailable() {
+        try {
+            virtualThreadBuilder(null);
+            return true;
+        } catch (ReflectiveOperationException e) {
+            logger.warn("Virtual threads need Java 21 or later, running on platform threads");
+            return false;
+        }
+    }
+
+    /**
+     * @return Thread.ofVirtual(), named if a name is given
+     */
+    private static Object virtualThreadBuilder(String name) throws ReflectiveOperationException {
+        Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+        if (name != null) {
+            builder = threadBuilderType().getMethod("name", String.class).invoke(builder, name);
+        }
+        return builder;
+    }
+
+    private static Class<?> threadBuilderType() throws ClassNotFoundException {
+        return Class.forName("java.lang.Thread$Builder");
+    }
+
+    private static ThreadFactory platformThreadFactory(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, name + "-" + count.incrementAndGet());
+            }
+        };
+    }
+}
@@ -1,22 +1,26 @@
 package app_server;
 
+import common.Hashing;
 import common.Metadata;
+import common.WriteCertificate;
+import common.WriteConsistency;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVRecord;
-import org.apache.commons.lang3.StringEscapeUtils;
 import org.apache.log4j.Logger;
 
-import javax.xml.bind.annotation.adapters.HexBinaryAdapter;
 import java.io.*;
 import java.net.BindException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -48,6 +52,25 @@ public class WelcomeThread extends Thread {
 
     public static Map<String, List<String>> subscriptions = new HashMap<>();
 
+    private static final Map<String, WriteReplicationRunnable> replicationChannels = new HashMap<>();
+    // Default for clients that do not ask for a write consistency, set with -Dkv.writeConsistency=ONE|QUORUM|ALL
+    private static volatile WriteConsistency writeConsistency = getWriteConsistencyProperty();
+    // Last sequence applied from each coordinator's replication log, keyed by serverKey,logId
+    private static final Map<String, Long> appliedSequences = new HashMap<>();
+    // Log sequence of the keys last applied from each coordinator's replication log, so repairs do not undo them
+    private static final Map<String, AppliedKeys> appliedKeys = new HashMap<>();
+    // Repairs replicas of this server's range, interval set with -Dkv.antiEntropyIntervalMillis
+    private static AntiEntropyRunnable antiEntropyRunnable;
+    // Keys whose records failed their checksum and are being fetched from a replica
+    private static final Set<String> repairingKeys = new HashSet<>();
+    // Secret shared with the admin that client write certificates are derived from, set with
+    // -Dkv.writeCertificateSecret or by the admin on initialization
+    private static volatile String writeCertificateSecret = System.getProperty("kv.writeCertificateSecret");
+    // Newest verified certificate per key, replays of older certified writes are rejected
+    private static CertifiedSequences certifiedSequences;
+    // Replicated writes and repairs refused for a certificate that does not verify
+    private static final AtomicLong forgedWrites = new AtomicLong();
+
 
     /**
      * Constructs a new welcome thread with given port.
@@ -71,7 +94,11 @@ public class WelcomeThread extends Thread {
                 try {
                     Socket client = serverSocket.accept();
                     ClientConnection connection = new ClientConnection(client, serverSocket, this);
-                    new Thread(connection).start();
+                    if (!ServerExecutors.startConnection(connection)) {
+                        logger.warn("Too many connections, turning away " + client.getInetAddress().getHostAddress());
+                        ServerExecutors.turnAway(client);
+                        continue;
+                    }
                     logger.info("Connected to "
                             + client.getInetAddress().getHostName()
                             + " on port " + client.getPort());
@@ -89,6 +116,8 @@ public class WelcomeThread extends Thread {
      */
     public void stopServer() {
         running = false;
+        closeReplicationChannels();
+        stopAntiEntropy();
         try {
             serverSocket.close();
             heartbeatRunnable.close();
@@ -111,7 +140,7 @@ public class WelcomeThread extends Thread {
         try {
             serverSocket = new ServerSocket(port);
             logger.info("Server listening on port: "
-                    + serverSocket.getLocalPort());
+                    + serverSocket.getLocalPort() + (ServerExecutors.isVirtualThreads() ? " on virtual threads" : ""));
             return true;
 
         } catch (IOException e) {
@@ -128,7 +157,7 @@ public class WelcomeThread extends Thread {
 
     public static void startHeartbeatThread(String adminAddress) {
         logger.info("Starting Heartbeat Thread, admin is located at IP Address: " + adminAddress);
-        String newSuccessor = metadata.getImmediateSuccessor(metadata.getHashRange(getIPAddress(), port).getEndHash()).getValue();
+        String newSuccessor = metadata.getNextServer(getIPAddress() + ":" + port);
         // if the newSuccessor is of a different successor, start a new heartbeat with the new successor
         if (successor == null) {
             boolean isSocketDead = false;
@@ -147,7 +176,7 @@ public class WelcomeThread extends Thread {
                 logger.debug("Heart Beat Connection to Server " + successor + " failed. Report to admin that this server is dead.");
             }
             heartbeatRunnable = new HeartbeatRunnable(destinationHeartbeatSocket, isSocketDead, deadServerIP, deadServerPort, adminAddress);
-            Thread heartbeatOperation = new Thread(heartbeatRunnable);
+            Thread heartbeatOperation = ServerExecutors.newThread(heartbeatRunnable, "heartbeat", false);
             heartbeatOperation.start();
 
         }
@@ -173,7 +202,7 @@ public class WelcomeThread extends Thread {
                 logger.debug("Heart Beat Connection to Server " + successor + " failed. Report to admin that this server is dead.");
             }
             heartbeatRunnable = new HeartbeatRunnable(destinationHeartbeatSocket, isSocketDead, deadServerIP, deadServerPort, adminAddress);
-            Thread heartbeatOperation = new Thread(heartbeatRunnable);
+            Thread heartbeatOperation = ServerExecutors.newThread(heartbeatRunnable, "heartbeat", false);
             heartbeatOperation.start();
         }
         // else, it means that the successor is still the same, no start of new heart beat
@@ -209,29 +238,35 @@ public class WelcomeThread extends Thread {
                 System.out.println("Error! Valid caching strategies are FIFO, LRU and LFU.");
                 return false;
         }
+        certifiedSequences = new CertifiedSequences(getIPAddress(), getPortNumber());
         metadata = Metadata.deserialize(serializedMetadata);
         isServerInitialized = true;
+        startAntiEntropy();
         return true;
     }
 
     public static int getPortNumber() { return port; }
 
+    public static WriteConsistency getWriteConsistency() { return writeConsistency; }
+
+    private static WriteConsistency getWriteConsistencyProperty() {
+        String consistency = System.getProperty("kv.writeConsistency", WriteConsistency.ONE.name());
+        try {
+            return WriteConsistency.valueOf(consistency.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            logger.warn("Unknown write consistency " + consistency + ", using " + WriteConsistency.ONE);
+            return WriteConsistency.ONE;
+        }
+    }
+
+    public static void setWriteConsistency(WriteConsistency consistency) { writeConsistency = consistency; }
+
     public static int getServerCacheSize() { return serverCacheSize; }
 
     public static String getIPAddress() { return ipAddr; }
 
     public static String getMd5Hash(String input) {
-        byte[] bytesOfMessage = input.getBytes();
-        MessageDigest md = null;
-        try {
-            md = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            logger.error("The MD5 message digest provider was not found.");
-            return "";
-        }
-
-        String hex = (new HexBinaryAdapter()).marshal(md.digest(bytesOfMessage));
-        return hex;
+        return Hashing.md5Hex(input);
     }
 
     public static String writeToDisk(String key, String value) throws IOException {
@@ -283,10 +318,7 @@ public class WelcomeThread extends Thread {
                 }
                 writer.write(currentLine + System.getProperty("line.separator"));
             }
-            String escapedKey = StringEscapeUtils.escapeCsv(key);
-            String escapedValue = StringEscapeUtils.escapeCsv(value);
-            String newLine = escapedKey + "," + escapedValue;
-            writer.write(newLine + System.getProperty("line.separator"));
+            writer.write(RecordChecksum.toLine(key, value) + System.getProperty("line.separator"));
             writer.close();
             reader.close();
         } catch (IOException e) {
@@ -388,7 +420,374 @@ public class WelcomeThread extends Thread {
         isWriteLocked = false;
     }
 
+    /**
+     * Updates the metadata with the metadata or delta sent by the admin.
+     */
     public static void updateMetadata(String pMetadata) {
-        metadata = Metadata.deserialize(pMetadata);
+        Metadata updated = metadata == null ? Metadata.deserialize(pMetadata) : metadata.applyUpdate(pMetadata);
+        if (updated == null) {
+            logger.warn("Ignoring metadata update that does not follow epoch " + metadata.getEpoch());
+            return;
+        }
+        metadata = updated;
+        retainReplicationChannels();
+    }
+
+    /**
+     * Returns the persistent replication channel to the given replica, opening it on first use.
+     *
+     * @param replicaKey server key (address:port) of the replica
+     * @return channel that streams writes to the replica
+     */
+    public static WriteReplicationRunnable getReplicationChannel(String replicaKey) {
+        synchronized (replicationChannels) {
+            WriteReplicationRunnable channel = replicationChannels.get(replicaKey);
+            if (channel == null) {
+                channel = new WriteReplicationRunnable(getIPAddress() + ":" + getPortNumber(), replicaKey);
+                channel.start();
+                replicationChannels.put(replicaKey, channel);
+            }
+            return channel;
+        }
+    }
+
+    /**
+     * Closes the replication channels to servers that are no longer part of the service.
+     */
+    private static void retainReplicationChannels() {
+        synchronized (replicationChannels) {
+            Iterator<Map.Entry<String, WriteReplicationRunnable>> iterator = replicationChannels.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, WriteReplicationRunnable> entry = iterator.next();
+                if (!metadata.hasServer(entry.getKey())) {
+                    entry.getValue().close();
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the last sequence this replica applied from a coordinator's replication log.
+     *
+     * @param logKey serverKey,logId of the replication log
+     * @return last applied sequence, 0 if nothing was applied from the log yet
+     */
+    public static long getAppliedSequence(String logKey) {
+        synchronized (appliedSequences) {
+            Long sequence = appliedSequences.get(logKey);
+            return sequence == null ? 0 : sequence;
+        }
+    }
+
+    /**
+     * Applies writes replicated from a coordinator's log with a single storage flush. Writes at or below the last
+     * applied sequence were already applied, e.g. before a reconnect, and are skipped.
+     *
+     * <p>
+     * Writes whose certificate does not verify were forged by the coordinator, they are not applied and the
+     * coordinator is reported to the admin. Writes whose certificate is not newer than the one stored for the key by
+     * the same client are already overwritten by the client's later write and are skipped.
+     *
+     * @param logKey serverKey,logId of the replication log
+     * @param writes writes in sequence order
+     * @return writes applied without a newer certificate, to be checked with their client
+     */
+    public static List<ReplicatedWrite> applyReplicatedWrites(String logKey, List<ReplicatedWrite> writes) {
+        List<ReplicatedWrite> forged = new ArrayList<>();
+        List<ReplicatedWrite> unverified = new ArrayList<>();
+        synchronized (appliedSequences) {
+            long appliedSequence = getAppliedSequence(logKey);
+            Map<String, String> entries = new HashMap<>();
+            boolean certificatesChanged = false;
+            for (ReplicatedWrite write : writes) {
+                if (write.getSequence() <= appliedSequence) {
+                    continue;
+                }
+                CertifiedSequences.Freshness freshness = null;
+                if (isCertified(write)) {
+                    if (isForged(write)) {
+                        forged.add(write);
+                        continue;
+                    }
+                    freshness = certifiedSequences.record(write.getKey(), WriteCertificate.parse(write.getCertificate()));
+                    if (freshness == CertifiedSequences.Freshness.REPLAYED
+                            || freshness == CertifiedSequences.Freshness.CURRENT) {
+                        logger.debug("Write of key " + write.getKey() + " from " + logKey
+                                + " is not newer than the client's last one, skipped");
+                        continue;
+                    }
+                }
+                entries.put(write.getKey(), ClientConnection.isDeleteValue(write.getValue()) ? null : write.getValue());
+                getAppliedKeys(logKey).applied(write.getKey(), write.getSequence());
+                if (freshness == null) {
+                    // Cleared like on the coordinator, which logged the writes of the key in this order
+                    certificatesChanged |= certifiedSequences.remove(write.getKey());
+                }
+                if (freshness == CertifiedSequences.Freshness.NEWER) {
+                    certificatesChanged = true;
+                } else {
+                    // No certificate, or one of another client that cannot be ordered with the stored one
+                    unverified.add(write);
+                }
+            }
+            if (!entries.isEmpty()) {
+                cachedStorage.putAll(entries);
+            }
+            if (certificatesChanged) {
+                try {
+                    certifiedSequences.persist();
+                } catch (IOException e) {
+                    logger.error("Cannot store write certificates of " + logKey, e);
+                }
+            }
+            for (ReplicatedWrite write : writes) {
+                appliedSequence = Math.max(appliedSequence, write.getSequence());
+            }
+            appliedSequences.put(logKey, appliedSequence);
+        }
+        if (!forged.isEmpty()) {
+            String coordinatorKey = logKey.split(",")[0];
+            for (ReplicatedWrite write : forged) {
+                logger.error("Write certificate of key " + write.getKey() + " replicated by " + coordinatorKey
+                        + " does not match the write, the write was not applied");
+            }
+            reportForged(coordinatorKey, forged.size());
+        }
+        return unverified;
+    }
+
+    /**
+     * Applies repairs of a coordinator's anti-entropy round. Every repair carries the sequence its coordinator's
+     * replication log to this replica had reached when the value was read. Keys written from the log after that
+     * sequence already hold a newer value and are left alone.
+     *
+     * <p>
+     * Repairs are verified like replicated writes: a forged certificate is not applied and the coordinator is
+     * reported, a certificate older than the stored one of its client is not applied. A repair carries a certificate
+     * only if the coordinator's value was written with it, a repair without one is ordered by its log sequence alone.
+     *
+     * @param logKey  serverKey,logId of the coordinator's replication log to this replica
+     * @param repairs value per key with the log sequence it reflects, "null" for deletes
+     * @return number of keys repaired
+     */
+    public static int applyRepairs(String logKey, List<ReplicatedWrite> repairs) {
+        List<ReplicatedWrite> forged = new ArrayList<>();
+        Map<String, String> entries = new HashMap<>();
+        synchronized (appliedSequences) {
+            AppliedKeys keys = getAppliedKeys(logKey);
+            boolean certificatesChanged = false;
+            for (ReplicatedWrite repair : repairs) {
+                if (keys.isWrittenAfter(repair.getKey(), repair.getSequence())) {
+                    continue;
+                }
+                if (isCertified(repair)) {
+                    if (isForged(repair)) {
+                        forged.add(repair);
+                        continue;
+                    }
+                    CertifiedSequences.Freshness freshness = certifiedSequences.record(repair.getKey(),
+                            WriteCertificate.parse(repair.getCertificate()));
+                    // The stored certificate itself repairs a record that was lost or damaged
+                    if (freshness == CertifiedSequences.Freshness.REPLAYED) {
+                        continue;
+                    }
+                    certificatesChanged |= freshness == CertifiedSequences.Freshness.NEWER;
+                } else {
+                    certificatesChanged |= certifiedSequences.remove(repair.getKey());
+                }
+                entries.put(repair.getKey(), ClientConnection.isDeleteValue(repair.getValue()) ? null : repair.getValue());
+            }
+            if (!entries.isEmpty()) {
+                cachedStorage.putAll(entries);
+            }
+            if (certificatesChanged) {
+                try {
+                    certifiedSequences.persist();
+                } catch (IOException e) {
+                    logger.error("Cannot store write certificates of " + logKey, e);
+                }
+            }
+        }
+        if (!forged.isEmpty()) {
+            String coordinatorKey = logKey.split(",")[0];
+            for (ReplicatedWrite repair : forged) {
+                logger.error("Write certificate of key " + repair.getKey() + " repaired by " + coordinatorKey
+                        + " does not match the value, the repair was not applied");
+            }
+            reportForged(coordinatorKey, forged.size());
+        }
+        return entries.size();
+    }
+
+    /**
+     * Reports a coordinator that sent writes with certificates that do not verify to the admin.
+     */
+    private static void reportForged(String coordinatorKey, int writes) {
+        forgedWrites.addAndGet(writes);
+        ClientIntegrityCheckRunnable clientIntegrityCheckRunnable = new ClientIntegrityCheckRunnable(
+                null, null, null, coordinatorKey, true, null, "138.68.229.113", ipAddr + ":" + port);
+        ServerExecutors.runIntegrityCheck(clientIntegrityCheckRunnable);
+    }
+
+    /**
+     * @return number of replicated writes and repairs refused so far for a certificate that does not verify
+     */
+    public static long getForgedWrites() {
+        return forgedWrites.get();
+    }
+
+    private static AppliedKeys getAppliedKeys(String logKey) {
+        AppliedKeys keys = appliedKeys.get(logKey);
+        if (keys == null) {
+            keys = new AppliedKeys();
+            appliedKeys.put(logKey, keys);
+        }
+        return keys;
+    }
+
+    /**
+     * Checks the certificate a client signed a write with before this server coordinates it, replicas report a
+     * coordinator relaying a certificate that does not verify.
+     *
+     * @param key         key written
+     * @param value       value written, "null" for deletes
+     * @param certificate certificate the client signed the write with, null if it did not
+     * @return false if the certificate does not verify
+     */
+    public static boolean isValidWriteCertificate(String key, String value, String certificate) {
+        ReplicatedWrite write = new ReplicatedWrite(0, key, value, null, certificate);
+        return !isCertified(write) || !isForged(write);
+    }
+
+    /**
+     * Keeps the certificate of a write this server coordinates, so its anti-entropy repairs can be verified by the
+     * replicas. Called in the critical section the write is stored in, concurrent writes of a client reach it out of
+     * sequence order.
+     *
+     * @param key         key written
+     * @param value       value written, "null" for deletes
+     * @param certificate valid certificate the client signed the write with, null if it did not
+     * @return false if the client's later write of the key is already stored, the write is then not stored nor
+     * replicated, replicas would skip it anyway
+     */
+    public static boolean recordWriteCertificate(String key, String value, String certificate) {
+        ReplicatedWrite write = new ReplicatedWrite(0, key, value, null, certificate);
+        if (!isCertified(write)) {
+            // The stored certificate no longer belongs to the value of the key
+            if (certifiedSequences.remove(key)) {
+                try {
+                    certifiedSequences.persist();
+                } catch (IOException e) {
+                    logger.error("Cannot store write certificates", e);
+                }
+            }
+            return true;
+        }
+        CertifiedSequences.Freshness freshness = certifiedSequences.record(key, WriteCertificate.parse(certificate));
+        if (freshness == CertifiedSequences.Freshness.NEWER) {
+            try {
+                certifiedSequences.persist();
+            } catch (IOException e) {
+                logger.error("Cannot store write certificate of key " + key, e);
+            }
+        }
+        return freshness != CertifiedSequences.Freshness.REPLAYED && freshness != CertifiedSequences.Freshness.CURRENT;
+    }
+
+    /**
+     * @param key   key written
+     * @param value value of the key sent to a replica, "null" for deletes
+     * @return certificate the value was written with in its serialized form, null if the key has none or it was
+     * issued for another value
+     */
+    public static String getWriteCertificate(String key, String value) {
+        WriteCertificate certificate = certifiedSequences.get(key);
+        if (certificate == null || writeCertificateSecret == null
+                || !certificate.verify(writeCertificateSecret, key, value)) {
+            return null;
+        }
+        return certificate.toString();
+    }
+
+    public static void setWriteCertificateSecret(String secret) {
+        writeCertificateSecret = secret;
+    }
+
+    /**
+     * Whether a replicated write carries a certificate that can be verified. Writes without a certificate, or
+     * received before the secret is known, are checked with the client instead.
+     */
+    private static boolean isCertified(ReplicatedWrite write) {
+        return write.getCertificate() != null && writeCertificateSecret != null;
+    }
+
+    /**
+     * Whether a replicated write carries a certificate the client did not issue for this key and value.
+     */
+    private static boolean isForged(ReplicatedWrite write) {
+        WriteCertificate certificate = WriteCertificate.parse(write.getCertificate());
+        return certificate == null || !certificate.verify(writeCertificateSecret, write.getKey(), write.getValue());
+    }
+
+    /**
+     * Fetches a record that failed its checksum from another server holding the key, unless a repair of the key is
+     * already running.
+     *
+     * @param key key of the corrupt record
+     */
+    public static void repairCorruptRecord(String key) {
+        if (metadata == null || cachedStorage == null) {
+            return;
+        }
+        synchronized (repairingKeys) {
+            if (!repairingKeys.add(key)) {
+                return;
+            }
+        }
+        if (!ServerExecutors.runRepair(new RecordRepairRunnable(key))) {
+            // Repaired on a later read
+            synchronized (repairingKeys) {
+                repairingKeys.remove(key);
+            }
+        }
+    }
+
+    /**
+     * @return keys of corrupt records currently being repaired
+     */
+    public static Set<String> getRepairingKeys() {
+        synchronized (repairingKeys) {
+            return new HashSet<>(repairingKeys);
+        }
+    }
+
+    static void finishRepair(String key) {
+        synchronized (repairingKeys) {
+            repairingKeys.remove(key);
+        }
+    }
+
+    private static synchronized void startAntiEntropy() {
+        if (antiEntropyRunnable == null) {
+            antiEntropyRunnable = new AntiEntropyRunnable(Long.getLong("kv.antiEntropyIntervalMillis", 60 * 1000));
+            antiEntropyRunnable.start();
+        }
+    }
+
+    private static synchronized void stopAntiEntropy() {
+        if (antiEntropyRunnable != null) {
+            antiEntropyRunnable.close();
+            antiEntropyRunnable = null;
+        }
+    }
+
+    private static void closeReplicationChannels() {
+        synchronized (replicationChannels) {
+            for (WriteReplicationRunnable channel : replicationChannels.values()) {
+                channel.close();
+            }
+            replicationChannels.clear();
+        }
     }
 }
@@ -1,58 +1,450 @@
 package app_server;
 
+import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import common.HashRange;
 import common.messages.KVMessage;
 import common.messages.Message;
+import org.apache.commons.lang3.StringEscapeUtils;
 import org.apache.log4j.Logger;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Long-lived replication channel to a single replica. Client connections append their writes to this channel's
+ * replication log and one sender thread streams them over a persistent connection, so replicating a write opens no
+ * socket and starts no thread.
+ * <p>
+ * Writes appended close together are grouped into one ADMIN_REPLICATION_BATCH, bounded by size and by how long the
+ * first write waits. Repeated writes to the same key within a batch are collapsed into the latest one, and the
+ * replica applies the batch with a single storage flush.
+ * <p>
+ * Every write is numbered and kept in the log until the replica acknowledges it. On each (re)connect the replica
+ * reports the last sequence it applied and the sender resumes right after it, so a replica that was briefly
+ * unreachable only receives the writes it missed. The log is bounded by the bytes of the writes it holds, set with
+ * -Dkv.replicationLogBytes. Once a replica is down long enough to fill it, the log is dropped and the whole range is
+ * copied to the replica when it is back.
+ */
 public class WriteReplicationRunnable implements Runnable {
-    private Logger logger = Logger.getRootLogger();
+    private static Logger logger = Logger.getRootLogger();
 
-    private boolean isOpen;
     private static final int BUFFER_SIZE = 1024;
     private static final int DROP_SIZE = 128 * BUFFER_SIZE;
+    // Bytes of keys and values the log of one replica holds at most
+    private static final long MAX_LOG_BYTES = Long.getLong("kv.replicationLogBytes", 64L * 1024 * 1024);
+    private static final int CONNECT_TIMEOUT = 5 * 1000;
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+    // Replicas drop messages beyond 128 KB
+    private static final int MAX_BATCH_BYTES = 96 * BUFFER_SIZE;
+    private static final int MAX_BATCH_WRITES = 1000;
+    private static final long MAX_BATCH_DELAY_MILLIS = 5;
 
-    private Socket destinationSocket;
-    private InputStream input;
+    private static final Gson gson = new Gson();
+
+    // Notified whenever any replica acknowledges, for writers waiting on their write consistency
+    private static final Object ackMonitor = new Object();
+    private static final AtomicLong ackWaits = new AtomicLong();
+    private static final AtomicLong ackWaitNanos = new AtomicLong();
+
+    private final String serverKey;
+    private final String replicaKey;
+    // Lets the replica tell this log apart from earlier logs of the same coordinator, e.g. before a restart
+    private final String logId = UUID.randomUUID().toString();
+
+    // Writes not yet acknowledged by the replica, in sequence order
+    private final ArrayDeque<ReplicatedWrite> log = new ArrayDeque<>();
+    private long logBytes = 0;
+    private long nextSequence = 1;
+    private long sentSequence = 0;
+    private volatile long ackedSequence = 0;
+
+    private volatile boolean isOpen;
+    private Thread senderThread;
+
+    private volatile Socket destinationSocket;
     private OutputStream output;
-    private HashRange range;
-    private String key;
-    private String value;
-    private String serverKey;
-    private String clientKey;
-
-    public WriteReplicationRunnable(Socket destinationSocket, String key, String value, String serverKey, String clientKey) {
-        this.destinationSocket = destinationSocket;
-        this.isOpen = true;
-        this.range = range;
-        this.key = key;
-        this.value = value;
+    // Set by the ack reader when the replica closed the connection, so the sender reconnects without waiting for
+    // the next write to fail
+    private boolean connectionLost = false;
+
+    /**
+     * @param serverKey  server key (address:port) of this coordinator
+     * @param replicaKey server key (address:port) of the replica
+     */
+    public WriteReplicationRunnable(String serverKey, String replicaKey) {
         this.serverKey = serverKey;
-        this.clientKey = clientKey;
+        this.replicaKey = replicaKey;
+        this.isOpen = true;
     }
 
-    public void run() {
+    /**
+     * Starts the sender thread of this channel.
+     */
+    public void start() {
+        senderThread = ServerExecutors.newThread(this, "replication-" + replicaKey, true);
+        senderThread.start();
+    }
+
+    /**
+     * Appends a write to the replication log, returns without waiting for it to be sent.
+     *
+     * @param key         key written
+     * @param value       value written, "null" for deletes
+     * @param clientKey   address:port the client listens on for integrity checks
+     * @param certificate certificate the client signed the write with, null if it did not
+     * @return sequence of the write in the replication log
+     */
+    public synchronized long replicate(String key, String value, String clientKey, String certificate) {
+        ReplicatedWrite write = new ReplicatedWrite(nextSequence, key, value, clientKey, certificate);
+        if (!log.isEmpty() && logBytes + logSize(write) > MAX_LOG_BYTES) {
+            // The replica is too far behind, it gets a full copy of the range once it is back
+            logger.warn("Replication log to " + replicaKey + " is full, dropped sequences "
+                    + log.peekFirst().getSequence() + " to " + log.peekLast().getSequence());
+            log.clear();
+            logBytes = 0;
+        }
+        log.addLast(write);
+        logBytes += logSize(write);
+        notifyAll();
+        return nextSequence++;
+    }
+
+    /**
+     * Waits until enough replicas acknowledged their writes, and records how long the writer waited.
+     *
+     * @param sequences     sequence to be acknowledged per replication channel
+     * @param required      number of channels that must acknowledge
+     * @param timeoutMillis how long to wait at most
+     * @return true if enough replicas acknowledged in time
+     */
+    public static boolean awaitAcks(Map<WriteReplicationRunnable, Long> sequences, int required, long timeoutMillis) {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
         try {
-            output = destinationSocket.getOutputStream();
-            input = destinationSocket.getInputStream();
-            // need to add in a serverKey$clientKey metadata field for ADMIN_REPLICATION, waiting for client implementations
-            String serverAndClientKey = serverKey + "," + clientKey;
-            KVMessage request = new Message(KVMessage.StatusType.ADMIN_REPLICATION, key, value, serverAndClientKey);
-            sendMessage(request);
+            synchronized (ackMonitor) {
+                while (true) {
+                    int acked = 0;
+                    for (Map.Entry<WriteReplicationRunnable, Long> entry : sequences.entrySet()) {
+                        if (entry.getKey().getAckedSequence() >= entry.getValue()) {
+                            acked++;
+                        }
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (acked >= required || remaining <= 0) {
+                        return acked >= required;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(ackMonitor, remaining);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            ackWaits.incrementAndGet();
+            ackWaitNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return average time writers waited for replica acknowledgements, in milliseconds
+     */
+    public static double getAverageAckWaitMillis() {
+        long waits = ackWaits.get();
+        return waits == 0 ? 0 : ackWaitNanos.get() / 1e6 / waits;
+    }
+
+    /**
+     * Stops the sender thread and closes the connection to the replica. Writes not yet acknowledged are discarded.
+     */
+    public void close() {
+        isOpen = false;
+        if (senderThread != null) {
+            senderThread.interrupt();
+        }
+    }
+
+    public String getReplicaKey() {
+        return replicaKey;
+    }
+
+    /**
+     * @return sequence of the last write the replica acknowledged
+     */
+    public long getAckedSequence() {
+        return ackedSequence;
+    }
 
-//            KVMessage replyMsg = new Message(KVMessage.StatusType.ADMIN_FILETRANSFER_COMPLETE, null, null, null);
-//            sendMessage(request);
-//            KVMessage message = receiveMessage();
-        } catch (Exception e) {
+    /**
+     * @return serverKey,logId the replica tracks the writes of this log under
+     */
+    public String getLogKey() {
+        return serverKey + "," + logId;
+    }
 
+    /**
+     * @return sequence of the last write appended to the log
+     */
+    public synchronized long getLoggedSequence() {
+        return nextSequence - 1;
+    }
+
+    /**
+     * @return keys with writes the replica has not acknowledged yet
+     */
+    public synchronized Set<String> getPendingKeys() {
+        Set<String> keys = new HashSet<>();
+        for (ReplicatedWrite write : log) {
+            keys.add(write.getKey());
         }
+        return keys;
+    }
+
+    public void run() {
+        while (isOpen) {
+            try {
+                if (destinationSocket == null) {
+                    connect();
+                }
+                List<ReplicatedWrite> batch = nextBatch();
+                sendMessage(toMessage(batch));
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException e) {
+                logger.warn("Replication to " + replicaKey + " failed: " + e.getMessage());
+                closeSocket();
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MILLIS);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+        }
+        closeSocket();
+    }
+
+    /**
+     * Waits for writes that were not sent yet and takes the next batch of them, until the batch is full or the
+     * first write waited long enough.
+     *
+     * @return latest write per key, in the order the keys were last written
+     * @throws InterruptedException if the channel was closed while waiting
+     * @throws IOException          if writes were dropped from the log before being sent, reconnecting resolves it
+     */
+    private List<ReplicatedWrite> nextBatch() throws InterruptedException, IOException {
+        List<ReplicatedWrite> unsent = new ArrayList<>();
+        synchronized (this) {
+            while (nextSequence - 1 <= sentSequence && !connectionLost) {
+                wait();
+            }
+            if (connectionLost) {
+                throw new IOException("connection closed by the replica");
+            }
+            long deadline = System.currentTimeMillis() + MAX_BATCH_DELAY_MILLIS;
+            long remaining = MAX_BATCH_DELAY_MILLIS;
+            while (nextSequence - 1 - sentSequence < MAX_BATCH_WRITES && remaining > 0) {
+                wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+            for (ReplicatedWrite write : log) {
+                if (write.getSequence() > sentSequence) {
+                    unsent.add(write);
+                    if (unsent.size() == MAX_BATCH_WRITES) {
+                        break;
+                    }
+                }
+            }
+            if (unsent.isEmpty() || unsent.get(0).getSequence() != sentSequence + 1) {
+                throw new IOException("replication log overflowed after sequence " + sentSequence);
+            }
+        }
+
+        // Never let the batch grow past what the replica reads
+        Map<String, ReplicatedWrite> batch = new LinkedHashMap<>();
+        int batchBytes = 0;
+        long lastSequence = 0;
+        for (ReplicatedWrite write : unsent) {
+            int writeBytes = serializedSize(write);
+            if (!batch.isEmpty() && batchBytes + writeBytes > MAX_BATCH_BYTES) {
+                break;
+            }
+            batch.remove(write.getKey());
+            batch.put(write.getKey(), write);
+            batchBytes += writeBytes;
+            lastSequence = write.getSequence();
+        }
+        synchronized (this) {
+            sentSequence = Math.max(sentSequence, lastSequence);
+        }
+        return new ArrayList<>(batch.values());
+    }
+
+    private KVMessage toMessage(List<ReplicatedWrite> batch) {
+        if (batch.size() == 1) {
+            ReplicatedWrite write = batch.get(0);
+            return new Message(KVMessage.StatusType.ADMIN_REPLICATION, write.getKey(), write.getValue(),
+                    serverKey + "," + write.getClientKey() + "," + logId + "," + write.getSequence()
+                            + (write.getCertificate() == null ? "" : "," + write.getCertificate()));
+        }
+        return new Message(KVMessage.StatusType.ADMIN_REPLICATION_BATCH, null, gson.toJson(batch),
+                getLogKey());
+    }
+
+    /**
+     * Size of a write once serialized as JSON and escaped again inside the batch message.
+     */
+    private static int serializedSize(ReplicatedWrite write) {
+        return StringEscapeUtils.escapeJson(gson.toJson(write)).length() + 1;
+    }
+
+    /**
+     * Approximate bytes a write holds on the heap while logged.
+     */
+    private static long logSize(ReplicatedWrite write) {
+        long chars = write.getKey().length() + (write.getValue() == null ? 0 : write.getValue().length())
+                + (write.getClientKey() == null ? 0 : write.getClientKey().length())
+                + (write.getCertificate() == null ? 0 : write.getCertificate().length());
+        return 2 * chars;
+    }
+
+    /**
+     * @return approximate bytes of the writes the replica has not acknowledged yet
+     */
+    public synchronized long getLogBytes() {
+        return logBytes;
+    }
+
+    /**
+     * Drops the writes the replica acknowledged from the log.
+     *
+     * @param sequence last sequence the replica applied
+     */
+    private void acknowledge(long sequence) {
+        synchronized (this) {
+            ackedSequence = Math.max(ackedSequence, sequence);
+            while (!log.isEmpty() && log.peekFirst().getSequence() <= ackedSequence) {
+                logBytes -= logSize(log.pollFirst());
+            }
+        }
+        synchronized (ackMonitor) {
+            ackMonitor.notifyAll();
+        }
+    }
+
+    /**
+     * Opens the connection and resumes right after the last write the replica applied from this log.
+     *
+     * @throws IOException if the replica cannot be reached
+     */
+    private void connect() throws IOException {
+        String[] splits = replicaKey.split(":");
+        Socket socket = new Socket();
+        socket.connect(new InetSocketAddress(splits[0], Integer.parseInt(splits[1])), CONNECT_TIMEOUT);
+        socket.setTcpNoDelay(true);
+        destinationSocket = socket;
+        output = socket.getOutputStream();
+        InputStream input = socket.getInputStream();
+
+        socket.setSoTimeout(CONNECT_TIMEOUT);
+        sendMessage(new Message(KVMessage.StatusType.ADMIN_REPLICATION_SYNC, null, null, getLogKey()));
+        KVMessage reply = receiveMessage(socket, input);
+        if (reply.getStatus() != KVMessage.StatusType.ADMIN_REPLICATION_ACK) {
+            throw new IOException("Unexpected reply to replication sync: " + reply.getStatus());
+        }
+        socket.setSoTimeout(0);
+        long appliedSequence = Long.parseLong(reply.getKey());
+
+        acknowledge(appliedSequence);
+        boolean needsCopy;
+        synchronized (this) {
+            connectionLost = false;
+            // Writes from here on stay logged until acknowledged, the range copy covers the ones before
+            long firstLogged = log.isEmpty() ? nextSequence : log.peekFirst().getSequence();
+            needsCopy = appliedSequence + 1 < firstLogged;
+            sentSequence = needsCopy ? firstLogged - 1 : appliedSequence;
+        }
+        logger.info("Opened replication channel to " + replicaKey + ", resuming after sequence " + appliedSequence);
+        if (needsCopy) {
+            copyRange();
+        }
+
+        startAckReader(socket, input);
+    }
+
+    /**
+     * Copies the ranges of this server the replica holds, used when the writes it missed are no longer logged.
+     * Writes are not locked meanwhile: every write before the first one still logged is already stored and copied,
+     * and the writes logged from there on, also those stored during the copy, are sent right after it. Should the
+     * log overflow again during the copy, sending fails and the next connect copies once more.
+     *
+     * @throws IOException if the replica cannot be reached
+     */
+    private void copyRange() throws IOException {
+        logger.warn("Replica " + replicaKey + " missed writes no longer in the replication log, copying the whole range");
+        String[] splits = replicaKey.split(":");
+        HashRange range = WelcomeThread.metadata.getReplicatedRange(
+                WelcomeThread.getIPAddress() + ":" + WelcomeThread.getPortNumber(), replicaKey);
+        if (range == null) {
+            return;
+        }
+        try (Socket copySocket = new Socket(splits[0], Integer.parseInt(splits[1]))) {
+            FileCopyRunnable copy = new FileCopyRunnable(copySocket, range);
+            copy.run();
+            if (copy.isFailed()) {
+                throw new IOException("Copying the range to " + replicaKey + " failed");
+            }
+        }
+    }
+
+    private void startAckReader(final Socket socket, final InputStream input) {
+        Thread ackReader = ServerExecutors.newThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (isOpen && !socket.isClosed()) {
+                        KVMessage message = receiveMessage(socket, input);
+                        if (message.getStatus() == KVMessage.StatusType.ADMIN_REPLICATION_ACK) {
+                            acknowledge(Long.parseLong(message.getKey()));
+                        }
+                    }
+                } catch (IOException e) {
+                    // Wake the sender to reconnect and resend what the replica did not acknowledge
+                    synchronized (WriteReplicationRunnable.this) {
+                        if (socket == destinationSocket) {
+                            connectionLost = true;
+                            WriteReplicationRunnable.this.notifyAll();
+                        }
+                    }
+                }
+            }
+        }, "replication-ack-" + replicaKey, true);
+        ackReader.start();
+    }
+
+    private void closeSocket() {
+        if (destinationSocket != null) {
+            try {
+                destinationSocket.close();
+            } catch (IOException e) {
+                // Nothing left to do with a broken connection
+            }
+        }
+        destinationSocket = null;
+        output = null;
     }
 
     /**
@@ -60,7 +452,7 @@ public class WriteReplicationRunnable implements Runnable {
      * @param msg the message that is to be sent.
      * @throws IOException some I/O error regarding the output stream
      */
-    public void sendMessage(KVMessage msg) throws IOException {
+    private void sendMessage(KVMessage msg) throws IOException {
         byte[] msgBytes = msg.getBytes();
         output.write(msgBytes, 0, msgBytes.length);
         output.flush();
@@ -70,7 +462,7 @@ public class WriteReplicationRunnable implements Runnable {
                 + msg.getSerializedMsg() +"'");
     }
 
-    private KVMessage receiveMessage() throws IOException {
+    private KVMessage receiveMessage(Socket socket, InputStream input) throws IOException {
         int index = 0;
         byte[] msgBytes = null, tmp = null;
         byte[] bufferBytes = new byte[BUFFER_SIZE];
@@ -84,9 +476,6 @@ public class WriteReplicationRunnable implements Runnable {
 
         boolean reading = true;
 
-        if (read == -1){
-            return null;
-        }
         while(read != 10 && reading) {/* CR, LF, error */
             /* if buffer filled, copy to msg array */
             if(index == BUFFER_SIZE) {
@@ -105,7 +494,6 @@ public class WriteReplicationRunnable implements Runnable {
                 index = 0;
             }
 
-            /* only read valid characters, i.e. letters and constants */
             bufferBytes[index] = read;
             index++;
 
@@ -135,7 +523,6 @@ public class WriteReplicationRunnable implements Runnable {
         msgBytes = tmp;
         String rawMessage = new String(msgBytes, "US-ASCII");
 
-
         JsonObject jsonObject = new JsonParser().parse(rawMessage).getAsJsonObject();
         String arg1= jsonObject.get("arg1").getAsString();
         String arg2 = jsonObject.get("arg2").getAsString();
@@ -144,9 +531,9 @@ public class WriteReplicationRunnable implements Runnable {
         KVMessage message = new Message(statusType, arg1, arg2, arg3);
 
         logger.info("RECEIVE \t<"
-                + destinationSocket.getInetAddress().getHostAddress() + ":"
-                + destinationSocket.getPort() + ">: '"
+                + socket.getInetAddress().getHostAddress() + ":"
+                + socket.getPort() + ">: '"
                 + message.getSerializedMsg() + "'");
         return message;
     }
-}
\ No newline at end of file
+}
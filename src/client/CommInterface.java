@@ -2,6 +2,9 @@ package client;
 
 import common.messages.KVMessage;
 
+import java.util.Collection;
+import java.util.Map;
+
 public interface CommInterface {
 
 	/**
@@ -43,6 +46,30 @@ public interface CommInterface {
 	 */
 	public KVMessage get(String key) throws Exception;
 
+	/**
+	 * Inserts many key-value pairs with one round trip per responsible Server.
+	 * 
+	 * @param entries
+	 *            key-value pairs to insert, a null value deletes the key.
+	 * @return the status of the request for each key.
+	 * @throws Exception
+	 *             if the batch cannot be executed (e.g. not connected to any
+	 *             KV server).
+	 */
+	public Map<String, KVMessage.StatusType> multiPut(Map<String, String> entries) throws Exception;
+
+	/**
+	 * Retrieves the values for many keys with one round trip per Server.
+	 * 
+	 * @param keys
+	 *            the keys that identify the values.
+	 * @return the values of the keys that exist.
+	 * @throws Exception
+	 *             if the batch cannot be executed (e.g. not connected to any
+	 *             KV server).
+	 */
+	public Map<String, String> multiGet(Collection<String> keys) throws Exception;
+
 	public boolean subscribe(String key);
 
 	public boolean unsubscribe(String key);
@@ -0,0 +1,166 @@
+package client;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps persistent connections to storage servers keyed by server key (address:port) so that routing a
+ * request to a different server does not pay for a new TCP handshake.
+ * <p>
+ * A connection is borrowed with {@link #acquire(String)} and handed back with {@link #release(SocketStreams)}
+ * once its reply was fully read, or closed with {@link #invalidate(SocketStreams)} after an error. Idle
+ * connections are evicted after {@code idleTimeoutMillis} and checked for health before being handed out again.
+ */
+public class ConnectionPool {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60 * 1000;
+    private static final int DEFAULT_MAX_IDLE_PER_SERVER = 4;
+
+    private final Map<String, Deque<SocketStreams>> idleConnections = new HashMap<>();
+    private final long idleTimeoutMillis;
+    private final int maxIdlePerServer;
+    private boolean closed = false;
+
+    public ConnectionPool() {
+        this(DEFAULT_IDLE_TIMEOUT_MILLIS, DEFAULT_MAX_IDLE_PER_SERVER);
+    }
+
+    /**
+     * @param idleTimeoutMillis how long an unused connection is kept open
+     * @param maxIdlePerServer  maximum number of idle connections kept for a single server
+     */
+    public ConnectionPool(long idleTimeoutMillis, int maxIdlePerServer) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.maxIdlePerServer = maxIdlePerServer;
+    }
+
+    /**
+     * Borrows a connection to the given server, opening a new one if no healthy idle connection exists.
+     *
+     * @param serverKey server key of the form address:port
+     * @return connection owned by the caller until released or invalidated
+     * @throws IOException if a new connection cannot be opened
+     */
+    public SocketStreams acquire(String serverKey) throws IOException {
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Connection pool is closed");
+            }
+            evictIdle();
+            Deque<SocketStreams> idle = idleConnections.get(serverKey);
+            while (idle != null && !idle.isEmpty()) {
+                SocketStreams streams = idle.pollFirst();
+                if (streams.isHealthy()) {
+                    return streams;
+                }
+                streams.close();
+            }
+        }
+
+        String[] splits = serverKey.split(":");
+        Socket socket = new Socket(splits[0], Integer.parseInt(splits[1]));
+        socket.setTcpNoDelay(true);
+        logger.info("Opened pooled connection to server " + serverKey);
+        return new SocketStreams(serverKey, socket);
+    }
+
+    /**
+     * Returns a borrowed connection to the pool. Must only be called once the reply of the last request
+     * was read completely.
+     *
+     * @param streams connection obtained from {@link #acquire(String)}
+     */
+    public synchronized void release(SocketStreams streams) {
+        Deque<SocketStreams> idle = idleConnections.get(streams.getServerKey());
+        if (idle == null) {
+            idle = new ArrayDeque<>();
+            idleConnections.put(streams.getServerKey(), idle);
+        }
+        if (closed || idle.size() >= maxIdlePerServer || !streams.isHealthy()) {
+            streams.close();
+            return;
+        }
+        streams.markReturned();
+        idle.addFirst(streams);
+    }
+
+    /**
+     * Closes a borrowed connection that failed or has an outstanding reply that will never be read.
+     *
+     * @param streams connection obtained from {@link #acquire(String)}
+     */
+    public void invalidate(SocketStreams streams) {
+        if (streams != null) {
+            streams.close();
+        }
+    }
+
+    /**
+     * Closes all idle connections to the given server, e.g. after it left the service.
+     *
+     * @param serverKey server key of the form address:port
+     */
+    public synchronized void invalidate(String serverKey) {
+        Deque<SocketStreams> idle = idleConnections.remove(serverKey);
+        if (idle != null) {
+            for (SocketStreams streams : idle) {
+                streams.close();
+            }
+        }
+    }
+
+    /**
+     * Closes the idle connections of all servers not contained in the given set.
+     *
+     * @param serverKeys server keys that are still part of the service
+     */
+    public synchronized void retainServers(Set<String> serverKeys) {
+        Iterator<Map.Entry<String, Deque<SocketStreams>>> iterator = idleConnections.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Deque<SocketStreams>> entry = iterator.next();
+            if (!serverKeys.contains(entry.getKey())) {
+                for (SocketStreams streams : entry.getValue()) {
+                    streams.close();
+                }
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Closes every idle connection. Connections currently borrowed are closed when they are released.
+     */
+    public synchronized void close() {
+        closed = true;
+        for (Deque<SocketStreams> idle : idleConnections.values()) {
+            for (SocketStreams streams : idle) {
+                streams.close();
+            }
+        }
+        idleConnections.clear();
+    }
+
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (Deque<SocketStreams> idle : idleConnections.values()) {
+            Iterator<SocketStreams> iterator = idle.iterator();
+            while (iterator.hasNext()) {
+                SocketStreams streams = iterator.next();
+                if (now - streams.getLastUsedMillis() > idleTimeoutMillis) {
+                    iterator.remove();
+                    streams.close();
+                }
+            }
+        }
+    }
+}
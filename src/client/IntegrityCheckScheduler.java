@@ -0,0 +1,174 @@
+package client;
+
+import com.google.gson.Gson;
+import common.GetIntegrityCheck;
+import common.messages.KVMessage;
+import common.messages.Message;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Verifies a sample of the values read by a client with the replicas of their keys. Instead of a thread and a
+ * socket per check, checks are queued per replica and one background thread sends each replica's queue as a single
+ * CLIENT_GET_INTEGRITY_CHECK_BATCH over a pooled connection.
+ * <p>
+ * The sample rate trades detection latency of a compromised server for load: a compromised server answering many
+ * reads is still caught quickly at a low rate.
+ */
+public class IntegrityCheckScheduler implements Runnable {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private static final long FLUSH_INTERVAL_MILLIS = 50;
+    // Keeps each batch well below the 128 KB servers read
+    private static final int MAX_BATCH_CHECKS = 200;
+    // Checks beyond this are dropped while replicas are unreachable
+    private static final int MAX_PENDING_CHECKS = 10000;
+
+    private static final Gson gson = new Gson();
+
+    private final ConnectionPool connectionPool;
+    private final Random random = new Random();
+    private volatile double sampleRate;
+
+    private Map<String, List<GetIntegrityCheck>> pendingChecks = new HashMap<>();
+    private int pendingCount = 0;
+
+    private volatile boolean isOpen;
+    private Thread thread;
+
+    /**
+     * @param connectionPool pool the batches are sent over
+     * @param sampleRate     fraction of reads to verify, between 0 and 1
+     */
+    public IntegrityCheckScheduler(ConnectionPool connectionPool, double sampleRate) {
+        this.connectionPool = connectionPool;
+        this.sampleRate = sampleRate;
+        this.isOpen = true;
+    }
+
+    public void start() {
+        thread = new Thread(this, "integrity-checks");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the scheduler, checks not sent yet are discarded.
+     */
+    public void close() {
+        isOpen = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    public void setSampleRate(double sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * @return number of checks queued and not sent yet, counting each replica a check is sent to
+     */
+    public synchronized int getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * Queues a read for verification by the given replicas if it is sampled.
+     *
+     * @param suspiciousServer server key of the server the value was read from
+     * @param verifyServers    server keys of the replicas of the key
+     * @param key              key that was read
+     * @param value            value read, null if none was found
+     */
+    public void schedule(String suspiciousServer, List<String> verifyServers, String key, String value) {
+        if (sampleRate < 1 && random.nextDouble() >= sampleRate) {
+            return;
+        }
+        report(suspiciousServer, verifyServers, key, GetIntegrityCheck.digestOf(value));
+    }
+
+    /**
+     * Queues a read that is known to disagree with other servers for verification, regardless of the sample rate.
+     *
+     * @param suspiciousServer server key of the server the digest was read from
+     * @param verifyServers    server keys of the servers to verify it with
+     * @param key              key that was read
+     * @param digest           digest the server returned, "null" if it found no value
+     */
+    public void report(String suspiciousServer, List<String> verifyServers, String key, String digest) {
+        GetIntegrityCheck check = new GetIntegrityCheck(key, digest, suspiciousServer);
+        synchronized (this) {
+            // A server can be listed twice when the service has fewer than three servers
+            for (String verifyServer : new LinkedHashSet<>(verifyServers)) {
+                if (pendingCount >= MAX_PENDING_CHECKS) {
+                    logger.debug("Too many pending integrity checks, dropped check of key " + key);
+                    return;
+                }
+                List<GetIntegrityCheck> checks = pendingChecks.get(verifyServer);
+                if (checks == null) {
+                    checks = new ArrayList<>();
+                    pendingChecks.put(verifyServer, checks);
+                }
+                checks.add(check);
+                pendingCount++;
+            }
+        }
+    }
+
+    public void run() {
+        while (isOpen) {
+            try {
+                Thread.sleep(FLUSH_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            Map<String, List<GetIntegrityCheck>> checks;
+            synchronized (this) {
+                if (pendingCount == 0) {
+                    continue;
+                }
+                checks = pendingChecks;
+                pendingChecks = new HashMap<>();
+                pendingCount = 0;
+            }
+            for (Map.Entry<String, List<GetIntegrityCheck>> entry : checks.entrySet()) {
+                List<GetIntegrityCheck> replicaChecks = entry.getValue();
+                for (int from = 0; from < replicaChecks.size(); from += MAX_BATCH_CHECKS) {
+                    send(entry.getKey(), replicaChecks.subList(from, Math.min(replicaChecks.size(), from + MAX_BATCH_CHECKS)));
+                }
+            }
+        }
+    }
+
+    private void send(String verifyServer, List<GetIntegrityCheck> checks) {
+        SocketStreams streams = null;
+        try {
+            // Replicas do not reply to integrity checks, so the connection can go straight back to the pool
+            streams = connectionPool.acquire(verifyServer);
+            KVMessage msg = new Message(KVMessage.StatusType.CLIENT_GET_INTEGRITY_CHECK_BATCH, null, gson.toJson(checks),
+                    streams.getLocalAddress() + ":" + ClientListenRunnable.getPortNumber());
+            byte[] msgBytes = msg.getBytes();
+            OutputStream output = streams.getOutputStream();
+            output.write(msgBytes, 0, msgBytes.length);
+            output.flush();
+            connectionPool.release(streams);
+        } catch (IOException e) {
+            connectionPool.invalidate(streams);
+            logger.error("Cannot send " + checks.size() + " integrity checks to " + verifyServer, e);
+        }
+    }
+}
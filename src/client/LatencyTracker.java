@@ -0,0 +1,102 @@
+package client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Keeps the latency of recent reads, per server to pick the fastest server for a read, and over all servers to
+ * derive how long a read may take before it is hedged with another server.
+ */
+public class LatencyTracker {
+
+    // Weight of the newest sample in a server's moving average
+    private static final double ALPHA = 0.2;
+    private static final int WINDOW_SIZE = 1000;
+    // No percentile is known until this many reads completed
+    private static final int MIN_SAMPLES = 20;
+    // The percentile is recomputed after this many new samples rather than on every read
+    private static final int SAMPLES_PER_UPDATE = 50;
+    // Servers whose average is within this factor of the fastest share the reads
+    private static final double NEAR_FASTEST = 1.25;
+
+    private final Map<String, Double> averageNanos = new HashMap<>();
+    private final long[] window = new long[WINDOW_SIZE];
+    private int samples = 0;
+    private int next = 0;
+    private int samplesSinceUpdate = 0;
+    private double percentile = -1;
+    private long percentileNanos = -1;
+    private final Random random = new Random();
+
+    /**
+     * Records how long a read from a server took.
+     *
+     * @param serverKey server key of the form address:port
+     * @param nanos     time from sending the request to receiving the reply
+     */
+    public synchronized void record(String serverKey, long nanos) {
+        Double average = averageNanos.get(serverKey);
+        averageNanos.put(serverKey, average == null ? nanos : ALPHA * nanos + (1 - ALPHA) * average);
+        window[next] = nanos;
+        next = (next + 1) % WINDOW_SIZE;
+        samples = Math.min(samples + 1, WINDOW_SIZE);
+        samplesSinceUpdate++;
+    }
+
+    /**
+     * Returns the read latency below which the given share of recent reads completed.
+     *
+     * @param percentile share of reads between 0 and 100
+     * @return latency in nanoseconds, -1 if too few reads completed yet
+     */
+    public synchronized long getPercentileNanos(double percentile) {
+        if (samples < MIN_SAMPLES) {
+            return -1;
+        }
+        if (percentile != this.percentile || percentileNanos < 0 || samplesSinceUpdate >= SAMPLES_PER_UPDATE) {
+            long[] sorted = Arrays.copyOf(window, samples);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100 * samples) - 1;
+            this.percentileNanos = sorted[Math.max(0, Math.min(samples - 1, index))];
+            this.percentile = percentile;
+            this.samplesSinceUpdate = 0;
+        }
+        return percentileNanos;
+    }
+
+    /**
+     * Picks one of the servers with the lowest average latency, at random among those close to the fastest so
+     * reads spread over replicas of similar speed instead of piling onto one. Servers without any completed read
+     * are picked first, so every server gets measured.
+     *
+     * @param serverKeys candidate servers
+     * @param excluded   server not to pick, may be null
+     * @return server key, null if no candidate is left
+     */
+    public synchronized String pickFastest(List<String> serverKeys, String excluded) {
+        Map<String, Double> candidates = new HashMap<>();
+        double fastestNanos = Double.MAX_VALUE;
+        for (String serverKey : new LinkedHashSet<>(serverKeys)) {
+            if (serverKey.equals(excluded)) {
+                continue;
+            }
+            Double average = averageNanos.get(serverKey);
+            double nanos = average == null ? -1 : average;
+            candidates.put(serverKey, nanos);
+            fastestNanos = Math.min(fastestNanos, nanos);
+        }
+        List<String> nearFastest = new ArrayList<>();
+        for (String serverKey : new LinkedHashSet<>(serverKeys)) {
+            Double nanos = candidates.get(serverKey);
+            if (nanos != null && (fastestNanos < 0 ? nanos < 0 : nanos <= fastestNanos * NEAR_FASTEST)) {
+                nearFastest.add(serverKey);
+            }
+        }
+        return nearFastest.isEmpty() ? null : nearFastest.get(random.nextInt(nearFastest.size()));
+    }
+}
@@ -0,0 +1,99 @@
+package client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * A socket to a storage server together with its input and output streams.
+ *
+ * @see ConnectionPool
+ */
+public class SocketStreams {
+
+    private final String serverKey;
+    private final Socket serverSocket;
+    private final OutputStream outputStream;
+    private final InputStream inputStream;
+    private long lastUsedMillis;
+    private boolean reused;
+
+    SocketStreams(String serverKey, Socket socket) throws IOException {
+        this.serverKey = serverKey;
+        this.serverSocket = socket;
+        this.outputStream = socket.getOutputStream();
+        this.inputStream = socket.getInputStream();
+        this.lastUsedMillis = System.currentTimeMillis();
+    }
+
+    public String getServerKey() {
+        return serverKey;
+    }
+
+    public Socket getServerSocket() {
+        return serverSocket;
+    }
+
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    public String getLocalAddress() {
+        return serverSocket.getLocalAddress().getHostAddress();
+    }
+
+    public int getPort() {
+        return serverSocket.getPort();
+    }
+
+    /**
+     * Whether this connection has been handed out by the pool before. A failure on a reused connection
+     * may only mean the server closed it while idle, so it is worth retrying on a fresh one.
+     *
+     * @return true if the connection was taken from the idle pool
+     */
+    public boolean isReused() {
+        return reused;
+    }
+
+    long getLastUsedMillis() {
+        return lastUsedMillis;
+    }
+
+    void markReturned() {
+        lastUsedMillis = System.currentTimeMillis();
+        reused = true;
+    }
+
+    /**
+     * Cheap local health check, no bytes are exchanged with the server.
+     *
+     * @return false if the socket is closed or has unread bytes from an abandoned request
+     */
+    boolean isHealthy() {
+        if (serverSocket.isClosed() || !serverSocket.isConnected()
+                || serverSocket.isInputShutdown() || serverSocket.isOutputShutdown()) {
+            return false;
+        }
+        try {
+            return inputStream.available() == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    void close() {
+        try {
+            inputStream.close();
+            outputStream.close();
+            serverSocket.close();
+        } catch (IOException e) {
+            // Nothing left to do with a broken connection
+        }
+    }
+}
@@ -1,11 +1,18 @@
 package client;
 
+import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
+import common.GetIntegrityCheck;
 import common.HashRange;
 import common.Metadata;
+import common.ReadConsistency;
+import common.WriteCertificate;
+import common.WriteConsistency;
 import common.messages.KVMessage;
 import common.messages.Message;
+import org.apache.commons.lang3.StringEscapeUtils;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.log4j.Logger;
@@ -13,10 +20,26 @@ import org.apache.log4j.Logger;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.Socket;
+import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * APIs for all communication to the storage server using the {@link CommInterface CommInterface}.
@@ -31,9 +54,16 @@ public class Store implements CommInterface {
 
     private static Logger logger = Logger.getRootLogger();
 
-    private Metadata metadata;
-    private SocketStreams serverSocket;
-    private String serverKey;
+    private volatile Metadata metadata;
+    // Guards replacing and locally changing the metadata, routing reads it without locking
+    private final Object metadataLock = new Object();
+    private ConnectionPool connectionPool;
+    private String localAddress;
+    // Server last talked to, set by concurrent requests, each request routes with its own copy
+    private volatile String serverKey;
+    private WriteConsistency writeConsistency;
+    // Set with -Dkv.readConsistency=ONE|QUORUM
+    private ReadConsistency readConsistency = getReadConsistencyProperty();
     private String address;
     private int port;
 
@@ -42,6 +72,35 @@ public class Store implements CommInterface {
     private static final int BUFFER_SIZE = 1024;
     private static final int DROP_SIZE = 1024 * BUFFER_SIZE;
 
+    // Servers drop requests beyond 128 KB, keep each batch well below that
+    private static final int MAX_BATCH_BYTES = 96 * BUFFER_SIZE;
+    // Wait before retrying a server that redirected although this client has the same metadata epoch
+    private static final long STALE_METADATA_RETRY_MS = 50;
+
+    private static final Gson gson = new Gson();
+    private static final Type stringListType = new TypeToken<List<String>>(){}.getType();
+    private static final Type stringMapType = new TypeToken<Map<String, String>>(){}.getType();
+    private static final Type statusMapType = new TypeToken<Map<String, KVMessage.StatusType>>(){}.getType();
+
+    private ExecutorService batchExecutor;
+    private IntegrityCheckScheduler integrityChecks;
+    // Metadata is fetched again in the background this often, set with -Dkv.metadataRefreshMillis, 0 disables it
+    private long metadataRefreshMillis = Long.parseLong(System.getProperty("kv.metadataRefreshMillis", "0"));
+    private Thread metadataRefresher;
+    // Fraction of reads verified with the replicas, set with -Dkv.integrityCheckSampleRate
+    private double integrityCheckSampleRate = Double.parseDouble(System.getProperty("kv.integrityCheckSampleRate", "1.0"));
+
+    // Reads not answered within this percentile of recent read latencies are sent to a second server as well,
+    // set with -Dkv.hedgePercentile, 0 disables hedging
+    private double hedgePercentile = Double.parseDouble(System.getProperty("kv.hedgePercentile", "95"));
+    private final LatencyTracker readLatencies = new LatencyTracker();
+
+    // Identity and key the admin provisioned for signing writes, null if writes are not signed
+    private String writeCertificateClientId;
+    private String writeCertificateKey;
+    // Starts from the clock so a restarted client does not reuse sequences
+    private final AtomicLong writeSequence = new AtomicLong(System.currentTimeMillis() * 1000);
+
     /**
      * Initialize Store with address and port of an arbitrary Server
      *
@@ -66,28 +125,121 @@ public class Store implements CommInterface {
      */
     @Override
     public void connect() throws Exception {
-        this.metadata = new Metadata();
-        serverSocket = new SocketStreams(new Socket(address, port));
-        String serverKey = String.format("%s:%d", address, port);
-        metadata.addNewServer(serverKey, HashRange.getMd5Hash(serverKey));
+        Metadata initialMetadata = new Metadata();
+        initialMetadata.addNewServer(serverKey, HashRange.getMd5Hash(serverKey));
+        this.metadata = initialMetadata;
+        ConnectionPool pool = new ConnectionPool();
+        SocketStreams streams = pool.acquire(serverKey);
+        localAddress = streams.getLocalAddress();
+        pool.release(streams);
+        connectionPool = pool;
+        batchExecutor = Executors.newCachedThreadPool();
+        integrityChecks = new IntegrityCheckScheduler(pool, integrityCheckSampleRate);
+        integrityChecks.start();
+        // Route with the whole ring from the first request on, servers not started yet are asked on redirects
+        try {
+            fetchMetadata(serverKey);
+        } catch (IOException e) {
+            logger.info("Cannot fetch metadata from " + serverKey + ", learning it from redirects.");
+        }
+        startMetadataRefresher();
         logger.info("Connection established");
     }
 
     /**
-     * Disconnects from the currently connected Server. Closing of socket, input and output
-     * byte streams.
+     * Asks a server for the metadata, or for the delta since the epoch of the metadata of this client.
+     *
+     * @param serverKey server key of the form address:port
+     * @return true if the server answered with metadata, false if it cannot give any, e.g. because it is stopped
+     * @throws IOException if the server cannot be reached
+     */
+    private boolean fetchMetadata(String serverKey) throws IOException {
+        KVMessage response = sendRequest(serverKey, new Message(KVMessage.StatusType.GET_METADATA, null, null, null,
+                metadata.getEpoch()));
+        KVMessage.StatusType status = response.getStatus();
+        if (status != KVMessage.StatusType.GET_METADATA && status != KVMessage.StatusType.SERVER_NOT_RESPONSIBLE) {
+            return false;
+        }
+        applyMetadataUpdate(response.getMetadata());
+        return true;
+    }
+
+    private void startMetadataRefresher() {
+        if (metadataRefreshMillis <= 0) {
+            return;
+        }
+        metadataRefresher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    try {
+                        Thread.sleep(metadataRefreshMillis);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    String server = serverKey;
+                    try {
+                        fetchMetadata(server);
+                    } catch (Exception e) {
+                        // The next request finds out whether the server is gone
+                        logger.debug("Cannot refresh metadata from " + server + ": " + e.getMessage());
+                    }
+                }
+            }
+        }, "metadata-refresh");
+        metadataRefresher.setDaemon(true);
+        metadataRefresher.start();
+    }
+
+    /**
+     * Sets how often the metadata is fetched in the background, so membership changes are known before a request
+     * is redirected. Takes effect on the next connect.
+     *
+     * @param metadataRefreshMillis interval in milliseconds, 0 to only update the metadata on redirects
+     */
+    public void setMetadataRefreshMillis(long metadataRefreshMillis) {
+        this.metadataRefreshMillis = metadataRefreshMillis;
+    }
+
+    /**
+     * Disconnects from all Servers. Closes every pooled socket, input and output byte streams.
      */
     @Override
     public void disconnect() {
-        try {
-            serverSocket.getInputStream().close();
-            serverSocket.getOutputStream().close();
-            serverSocket.getServerSocket().close();
-        } catch (IOException e) {
-            logger.error(String.format("Error disconnecting with host %s and port %d", address, port), e);
+        if (metadataRefresher != null) {
+            metadataRefresher.interrupt();
+            metadataRefresher = null;
+        }
+        if (connectionPool != null) {
+            connectionPool.close();
+            connectionPool = null;
+        }
+        if (batchExecutor != null) {
+            batchExecutor.shutdown();
+            batchExecutor = null;
+        }
+        if (integrityChecks != null) {
+            integrityChecks.close();
+            integrityChecks = null;
         }
     }
 
+    /**
+     * Sets the fraction of reads that are verified with the replicas of their key.
+     *
+     * @param sampleRate fraction between 0 (no verification) and 1 (every read)
+     */
+    public void setIntegrityCheckSampleRate(double sampleRate) {
+        this.integrityCheckSampleRate = sampleRate;
+        if (integrityChecks != null) {
+            integrityChecks.setSampleRate(sampleRate);
+        }
+    }
+
+    public double getIntegrityCheckSampleRate() {
+        return integrityCheckSampleRate;
+    }
+
     /**
      * Inserts a key-value pair into the Server.
      *
@@ -111,39 +263,41 @@ public class Store implements CommInterface {
             throw new IllegalArgumentException("Value length exceeded " + MAX_VALUE_LENGTH);
         }
 
-        String listingAddrPort = null;
-        try {
-            listingAddrPort = serverSocket.getLocalAddress() + ":" + ClientListenRunnable.getPortNumber();
-        } catch (Exception e) {
-            listingAddrPort = "127.0.0.1:1";
+        String certificate = null;
+        if (writeCertificateKey != null) {
+            certificate = WriteCertificate.sign(writeCertificateKey, writeCertificateClientId,
+                    writeSequence.incrementAndGet(), key, value == null ? "null" : value);
         }
-        KVMessage message = new Message(KVMessage.StatusType.PUT, key, value, listingAddrPort);
+        String putMetadata = getPutMetadata(certificate);
         while (true) {
             // Make sure we know at least one server
             if (metadata.size() < 1) {
                 throw new IllegalStateException("All servers known are down. Please reconnect with another server. ");
             }
+            KVMessage message = new Message(KVMessage.StatusType.PUT, key, value, putMetadata, metadata.getEpoch());
 
             // Get the corresponding server that current hash key is mapped to
-            SocketStreams serverSocketStreams = getSocketStreams(key);
+            String writeServer = metadata.getWritableServerForKey(key);
+            serverKey = writeServer;
 
+            KVMessage response;
             try {
-                logger.info(String.format("Sending the request to server %s", serverKey));
-                logger.debug(String.format("Key has a hash of %s", HashRange.getMd5Hash(key)));
+                logger.info(String.format("Sending the request to server %s", writeServer));
+                if (logger.isDebugEnabled()) {
+                    logger.debug(String.format("Key has a hash of %s", HashRange.getMd5Hash(key)));
+                }
                 Pair<String, String> keyValue = new ImmutablePair<>(key, value);
-                putRequestsSent.add(new ImmutablePair<>(serverKey, keyValue));
-                sendMessage(message, serverSocketStreams.getOutputStream());
-                logger.info(String.format("Sent PUT reply with msg %s", message.toString()));
-            } catch (Exception e) {
+                putRequestsSent.add(new ImmutablePair<>(writeServer, keyValue));
+                response = sendRequest(writeServer, message);
+            } catch (IOException e) {
                 logger.info("Encountered error while sending requests. Attempt reconnect with another server.");
-                metadata.removeServer(serverKey);
+                putRequestsSent.remove(putRequestsSent.size() - 1);
+                removeServer(writeServer);
                 continue;
             }
-
-            KVMessage response = receiveMessage(serverSocketStreams.getInputStream());
             logger.info(String.format("Received PUT reply with msg %s", response.toString()));
 
-            if (response.getStatus() != KVMessage.StatusType.PUT_SUCCESS && response.getStatus() != KVMessage.StatusType.PUT_UPDATE && response.getStatus() != KVMessage.StatusType.DELETE_SUCCESS) {
+            if (!isWriteApplied(response.getStatus())) {
                 putRequestsSent.remove(putRequestsSent.size() - 1);
             }
 
@@ -151,8 +305,8 @@ public class Store implements CommInterface {
             if (status.equals(KVMessage.StatusType.SERVER_NOT_RESPONSIBLE)) {
                 logger.info("Updating metadata cached.");
                 String serializedMetadata = response.getMetadata();
-                updateClientMetadata(Metadata.deserialize(serializedMetadata));
-            } else if (status.equals(KVMessage.StatusType.SERVER_WRITE_LOCK)) {
+                updateClientMetadata(serializedMetadata);
+            } else if (status.equals(KVMessage.StatusType.SERVER_WRITE_LOCK) || status.equals(KVMessage.StatusType.SERVER_BUSY)) {
                 logger.info("Server busy, retrying in 1000 ms");
                 Thread.sleep(1000);
             } else {
@@ -174,24 +328,39 @@ public class Store implements CommInterface {
             throw new IOException("Not connected to any server");
         }
 
-        KVMessage message = new Message(KVMessage.StatusType.GET, key, null, null);
+        if (readConsistency == ReadConsistency.QUORUM && metadata.size() > 0) {
+            KVMessage response = quorumGet(key);
+            if (response != null) {
+                return response;
+            }
+            // Fall back to a single read, e.g. to pick up new metadata
+        }
+
+        // Servers whose record of the key failed its checksum, read from another server while they repair it
+        Set<String> corruptServers = new HashSet<>();
         while (true) {
             // Make sure we know at least one server
             if (metadata.size() < 1) {
                 throw new IllegalStateException("All servers known are down. Please reconnect with another server. ");
             }
+            KVMessage message = new Message(KVMessage.StatusType.GET, key, null, null, metadata.getEpoch());
 
-            // Get the corresponding server that current hash key is mapped to
-            SocketStreams serverSocketStreams = getSocketStreamsForRead(key);
+            // Get the fastest of the servers that can serve reads for the current hash key
+            String readServer = getReadServer(key, corruptServers);
+            if (readServer == null) {
+                // Every server holding the key is repairing it
+                return new Message(KVMessage.StatusType.DATA_CORRUPTED, key, null, null);
+            }
             KVMessage response = null;
             try {
-                sendMessage(message, serverSocketStreams.getOutputStream());
-                logger.info(String.format("Sent GET request with msg %s", message.getSerializedMsg()));
-                response = receiveMessage(serverSocketStreams.getInputStream());
+                Pair<String, KVMessage> reply = sendHedgedRead(readServer, key, message);
+                readServer = reply.getKey();
+                serverKey = readServer;
+                response = reply.getValue();
                 logger.info(String.format("Received GET reply with msg %s", response));
-            } catch (Exception e) {
+            } catch (IOException e) {
                 logger.info("Encountered error while sending requests. Attempt reconnect with another server.");
-                metadata.removeServer(serverKey);
+                removeServer(readServer);
                 continue;
             }
 
@@ -199,22 +368,436 @@ public class Store implements CommInterface {
             if (status.equals(KVMessage.StatusType.SERVER_NOT_RESPONSIBLE)) {
                 String serializedMetadata = response.getMetadata();
                 logger.info("Updating metadata");
-                updateClientMetadata(Metadata.deserialize(serializedMetadata));
-            } else if (status.equals(KVMessage.StatusType.SERVER_WRITE_LOCK)) {
-                logger.info("Server write lock, retrying in 1000 ms.");
+                updateClientMetadata(serializedMetadata);
+            } else if (status.equals(KVMessage.StatusType.SERVER_WRITE_LOCK) || status.equals(KVMessage.StatusType.SERVER_BUSY)) {
+                logger.info("Server write lock or busy, retrying in 1000 ms.");
                 Thread.sleep(1000);
+            } else if (status.equals(KVMessage.StatusType.DATA_CORRUPTED)) {
+                // An honest server reporting a bad record, nothing to check with the replicas
+                logger.info(String.format("Record of %s on %s is corrupted, reading from another server.", key, readServer));
+                corruptServers.add(readServer);
             } else {
-                List<String> backups = this.metadata.getBackups(HashRange.getMd5Hash(key));
-                String previousServerKey = this.serverKey;
-                for (String serverKey : backups) {
-                    new ClientGetIntegrityCheck(previousServerKey, serverKey, response.getKey(), response.getValue()).start();
-                }
+                List<String> backups = this.metadata.getBackupsForKey(key);
+                integrityChecks.schedule(readServer, backups, key, response.getValue());
                 return response;
             }
         }
 
     }
 
+    /**
+     * Sends a read to a server and, if it has not answered within the hedge delay, to the fastest other server
+     * holding the key as well. The first reply that answers for the key wins, the slower request completes in the
+     * background.
+     *
+     * @param serverKey server to read from first
+     * @param key       the key that identifies the value
+     * @param message   GET request
+     * @return server that answered and its reply
+     * @throws IOException if neither server could be reached
+     */
+    private Pair<String, KVMessage> sendHedgedRead(final String serverKey, String key, final KVMessage message)
+            throws Exception {
+        long hedgeNanos = hedgePercentile > 0 ? readLatencies.getPercentileNanos(hedgePercentile) : -1;
+        final String hedgeServer = readLatencies.pickFastest(metadata.getReadableServersForKey(key), serverKey);
+        if (hedgeNanos < 0 || hedgeServer == null) {
+            return new ImmutablePair<>(serverKey, sendTimedRequest(serverKey, message));
+        }
+
+        CompletionService<Pair<String, KVMessage>> replies = new ExecutorCompletionService<>(batchExecutor);
+        replies.submit(new Callable<Pair<String, KVMessage>>() {
+            @Override
+            public Pair<String, KVMessage> call() throws IOException {
+                return new ImmutablePair<>(serverKey, sendTimedRequest(serverKey, message));
+            }
+        });
+        int pending = 1;
+        Future<Pair<String, KVMessage>> first = replies.poll(hedgeNanos, TimeUnit.NANOSECONDS);
+        if (first == null) {
+            logger.debug(String.format("No reply from %s within %d us, hedging with %s", serverKey, hedgeNanos / 1000, hedgeServer));
+            replies.submit(new Callable<Pair<String, KVMessage>>() {
+                @Override
+                public Pair<String, KVMessage> call() throws IOException {
+                    return new ImmutablePair<>(hedgeServer, sendTimedRequest(hedgeServer, message));
+                }
+            });
+            pending++;
+            first = replies.take();
+        }
+
+        Pair<String, KVMessage> fallback = null;
+        IOException failure = null;
+        for (int i = 0; i < pending; i++) {
+            try {
+                Pair<String, KVMessage> reply = i == 0 ? first.get() : replies.take().get();
+                KVMessage.StatusType status = reply.getValue().getStatus();
+                if (status == KVMessage.StatusType.GET_SUCCESS || status == KVMessage.StatusType.GET_ERROR) {
+                    return reply;
+                }
+                // e.g. new metadata or a write lock, only used if no server answers for the key
+                if (fallback == null) {
+                    fallback = reply;
+                }
+            } catch (ExecutionException e) {
+                if (!(e.getCause() instanceof IOException)) {
+                    throw (Exception) e.getCause();
+                }
+                failure = (IOException) e.getCause();
+            }
+        }
+        if (fallback != null) {
+            return fallback;
+        }
+        throw failure;
+    }
+
+    /**
+     * Sends a read and records how long the server took to reply.
+     */
+    private KVMessage sendTimedRequest(String serverKey, KVMessage message) throws IOException {
+        long start = System.nanoTime();
+        KVMessage response = sendRequest(serverKey, message);
+        readLatencies.record(serverKey, System.nanoTime() - start);
+        return response;
+    }
+
+    /**
+     * Reads a key from every server holding it and accepts the value as soon as two of them agree, so one server
+     * returning a wrong value is outvoted. Only one server is asked for the value, the others for its digest. If the
+     * value is outvoted it is fetched again from a server that agreed. Servers that disagree are verified by a get
+     * integrity check with the agreeing servers, which reports them to the admin.
+     *
+     * @param key the key that identifies the value
+     * @return the agreed reply, null if fewer than two servers hold the key or no two of them agreed
+     */
+    private KVMessage quorumGet(final String key) throws Exception {
+        List<String> servers = new ArrayList<>(new LinkedHashSet<>(metadata.getReadableServersForKey(key)));
+        if (servers.size() < 2) {
+            return null;
+        }
+
+        String valueServer = getReadServer(key);
+        final CompletionService<Pair<String, KVMessage>> replies = new ExecutorCompletionService<>(batchExecutor);
+        for (final String server : servers) {
+            final KVMessage message = new Message(server.equals(valueServer) ? KVMessage.StatusType.GET
+                    : KVMessage.StatusType.GET_DIGEST, key, null, null, metadata.getEpoch());
+            replies.submit(new Callable<Pair<String, KVMessage>>() {
+                @Override
+                public Pair<String, KVMessage> call() {
+                    try {
+                        return new ImmutablePair<>(server, sendRequest(server, message));
+                    } catch (IOException e) {
+                        logger.info("Encountered error while reading from " + server + ".");
+                        return new ImmutablePair<>(server, null);
+                    }
+                }
+            });
+        }
+
+        // Digest each server voted for
+        Map<String, String> digests = new HashMap<>();
+        KVMessage valueReply = null;
+        String agreedDigest = null;
+        int received = 0;
+        while (agreedDigest == null && received < servers.size()) {
+            Pair<String, KVMessage> reply = replies.take().get();
+            received++;
+            String digest = getReplyDigest(reply.getValue());
+            if (digest == null) {
+                continue;
+            }
+            if (reply.getValue().getStatus() != KVMessage.StatusType.GET_DIGEST) {
+                valueReply = reply.getValue();
+            }
+            digests.put(reply.getKey(), digest);
+            if (Collections.frequency(digests.values(), digest) >= 2) {
+                agreedDigest = digest;
+            }
+        }
+        if (agreedDigest == null) {
+            logger.info("No two servers agreed on the value of key " + key + ".");
+            return null;
+        }
+
+        final List<String> agreeing = new ArrayList<>();
+        for (Map.Entry<String, String> vote : digests.entrySet()) {
+            if (vote.getValue().equals(agreedDigest)) {
+                agreeing.add(vote.getKey());
+            }
+        }
+        final IntegrityCheckScheduler checks = integrityChecks;
+        for (Map.Entry<String, String> vote : digests.entrySet()) {
+            if (!vote.getValue().equals(agreedDigest)) {
+                checks.report(vote.getKey(), agreeing, key, vote.getValue());
+            }
+        }
+        // Slower servers are compared in the background, they do not add to the latency of the read
+        final int outstanding = servers.size() - received;
+        final String majorityDigest = agreedDigest;
+        if (outstanding > 0) {
+            batchExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < outstanding; i++) {
+                            Pair<String, KVMessage> reply = replies.take().get();
+                            String digest = getReplyDigest(reply.getValue());
+                            if (digest != null && !digest.equals(majorityDigest)) {
+                                checks.report(reply.getKey(), agreeing, key, digest);
+                            }
+                        }
+                    } catch (InterruptedException | ExecutionException e) {
+                        logger.debug("Stopped comparing late replies for key " + key + ".");
+                    }
+                }
+            });
+        }
+
+        if (valueReply != null && agreedDigest.equals(getReplyDigest(valueReply))) {
+            return valueReply;
+        }
+        // The value read was outvoted, fetch it from a server that agreed
+        for (String server : agreeing) {
+            try {
+                KVMessage response = sendRequest(server, new Message(KVMessage.StatusType.GET, key, null, null));
+                if (agreedDigest.equals(getReplyDigest(response))) {
+                    this.serverKey = server;
+                    return response;
+                }
+            } catch (IOException e) {
+                logger.info("Encountered error while reading from " + server + ".");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return digest a GET or GET_DIGEST reply votes for, null if the server did not answer for the key
+     */
+    private static String getReplyDigest(KVMessage response) {
+        if (response == null) {
+            return null;
+        }
+        switch (response.getStatus()) {
+            case GET_SUCCESS:
+                return GetIntegrityCheck.digestOf(response.getValue());
+            case GET_ERROR:
+                return "null";
+            case GET_DIGEST:
+                return response.getValue();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Inserts many key-value pairs. Keys are grouped by the Server responsible for them and every group is sent as
+     * MULTI_PUT batches in parallel, so each batch costs one round trip.
+     *
+     * @param entries key-value pairs to insert, a null value deletes the key
+     * @return status of the request for each key
+     * @throws IllegalArgumentException key or value exceeded allowed length
+     * @throws IOException              needs to establish connection to a valid Server before request
+     */
+    @Override
+    public Map<String, KVMessage.StatusType> multiPut(Map<String, String> entries) throws Exception {
+        if (!isConnected()) {
+            throw new IOException("Not connected to any server");
+        }
+
+        Map<String, String> pending = new HashMap<>();
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            if (entry.getKey().length() > MAX_KEY_LENGTH) {
+                throw new IllegalArgumentException("Key length exceeded " + MAX_KEY_LENGTH);
+            }
+            if (entry.getValue() != null && entry.getValue().length() > MAX_VALUE_LENGTH) {
+                throw new IllegalArgumentException("Value length exceeded " + MAX_VALUE_LENGTH);
+            }
+            pending.put(entry.getKey(), entry.getValue() == null ? "null" : entry.getValue());
+        }
+
+        Map<String, KVMessage.StatusType> results = new HashMap<>();
+        while (!pending.isEmpty()) {
+            // Make sure we know at least one server
+            if (metadata.size() < 1) {
+                throw new IllegalStateException("All servers known are down. Please reconnect with another server. ");
+            }
+
+            // Group the keys by the server responsible for writes
+            Map<String, Map<String, String>> groups = new HashMap<>();
+            for (Map.Entry<String, String> entry : pending.entrySet()) {
+                String serverKey = metadata.getWritableServerForKey(entry.getKey());
+                Map<String, String> group = groups.get(serverKey);
+                if (group == null) {
+                    group = new HashMap<>();
+                    groups.put(serverKey, group);
+                }
+                group.put(entry.getKey(), entry.getValue());
+            }
+
+            List<Batch> batches = new ArrayList<>();
+            for (Map.Entry<String, Map<String, String>> group : groups.entrySet()) {
+                for (Map<String, String> chunk : splitBatch(group.getValue(), writeCertificateKey != null)) {
+                    Batch batch = new Batch(group.getKey(), chunk.keySet());
+                    for (Map.Entry<String, String> entry : chunk.entrySet()) {
+                        Pair<String, Pair<String, String>> sentPut = new ImmutablePair<String, Pair<String, String>>(
+                                group.getKey(), new ImmutablePair<>(entry.getKey(), entry.getValue()));
+                        putRequestsSent.add(sentPut);
+                        batch.sentPuts.add(sentPut);
+                    }
+                    String certificates = null;
+                    if (writeCertificateKey != null) {
+                        Map<String, String> chunkCertificates = new HashMap<>();
+                        for (Map.Entry<String, String> entry : chunk.entrySet()) {
+                            chunkCertificates.put(entry.getKey(), WriteCertificate.sign(writeCertificateKey,
+                                    writeCertificateClientId, writeSequence.incrementAndGet(), entry.getKey(), entry.getValue()));
+                        }
+                        certificates = gson.toJson(chunkCertificates);
+                    }
+                    KVMessage message = new Message(KVMessage.StatusType.MULTI_PUT, null, gson.toJson(chunk), getPutMetadata(certificates),
+                            metadata.getEpoch());
+                    batch.response = submitRequest(group.getKey(), message);
+                    batches.add(batch);
+                }
+            }
+
+            boolean writeLocked = false;
+            for (Batch batch : batches) {
+                KVMessage response = awaitResponse(batch);
+                if (response == null || response.getStatus() != KVMessage.StatusType.MULTI_PUT) {
+                    putRequestsSent.removeAll(batch.sentPuts);
+                }
+                if (response == null) {
+                    continue;
+                }
+
+                KVMessage.StatusType status = response.getStatus();
+                if (status.equals(KVMessage.StatusType.MULTI_PUT)) {
+                    Map<String, KVMessage.StatusType> statuses = gson.fromJson(response.getValue(), statusMapType);
+                    for (Pair<String, Pair<String, String>> sentPut : batch.sentPuts) {
+                        KVMessage.StatusType keyStatus = statuses.get(sentPut.getValue().getKey());
+                        if (!isWriteApplied(keyStatus)) {
+                            putRequestsSent.remove(sentPut);
+                        }
+                    }
+                    results.putAll(statuses);
+                    pending.keySet().removeAll(batch.keys);
+                } else if (status.equals(KVMessage.StatusType.SERVER_NOT_RESPONSIBLE)) {
+                    logger.info("Updating metadata cached.");
+                    updateClientMetadata(response.getMetadata());
+                } else if (status.equals(KVMessage.StatusType.SERVER_WRITE_LOCK) || status.equals(KVMessage.StatusType.SERVER_BUSY)) {
+                    writeLocked = true;
+                } else {
+                    for (String key : batch.keys) {
+                        results.put(key, status);
+                    }
+                    pending.keySet().removeAll(batch.keys);
+                }
+            }
+
+            if (writeLocked) {
+                logger.info("Server busy, retrying in 1000 ms");
+                Thread.sleep(1000);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Retrieves the values for many keys. Keys are grouped by a Server that can serve reads for them and every group
+     * is sent as MULTI_GET batches in parallel, so each batch costs one round trip.
+     *
+     * @param keys the keys that identify the values
+     * @return values of the keys that exist
+     * @throws IOException needs to establish connection to a valid Server before request
+     */
+    @Override
+    public Map<String, String> multiGet(Collection<String> keys) throws Exception {
+        if (!isConnected()) {
+            throw new IOException("Not connected to any server");
+        }
+
+        Map<String, String> results = new HashMap<>();
+        Set<String> pending = new HashSet<>(keys);
+        while (!pending.isEmpty()) {
+            // Make sure we know at least one server
+            if (metadata.size() < 1) {
+                throw new IllegalStateException("All servers known are down. Please reconnect with another server. ");
+            }
+
+            // Group the keys by readable server, preferring servers already picked so there are fewer batches
+            Map<String, Map<String, String>> groups = new HashMap<>();
+            for (String key : pending) {
+                List<String> readableServers = metadata.getReadableServersForKey(key);
+                String readServer = null;
+                for (String candidate : readableServers) {
+                    if (groups.containsKey(candidate)) {
+                        readServer = candidate;
+                        break;
+                    }
+                }
+                if (readServer == null) {
+                    String currentServer = this.serverKey;
+                    readServer = readableServers.contains(currentServer) ?
+                            currentServer : readableServers.get(new Random().nextInt(readableServers.size()));
+                    groups.put(readServer, new HashMap<String, String>());
+                }
+                groups.get(readServer).put(key, "");
+            }
+
+            List<Batch> batches = new ArrayList<>();
+            for (Map.Entry<String, Map<String, String>> group : groups.entrySet()) {
+                for (Map<String, String> chunk : splitBatch(group.getValue(), false)) {
+                    Batch batch = new Batch(group.getKey(), chunk.keySet());
+                    KVMessage message = new Message(KVMessage.StatusType.MULTI_GET, gson.toJson(batch.keys), null, null,
+                            metadata.getEpoch());
+                    batch.response = submitRequest(group.getKey(), message);
+                    batches.add(batch);
+                }
+            }
+
+            boolean writeLocked = false;
+            for (Batch batch : batches) {
+                KVMessage response = awaitResponse(batch);
+                if (response == null) {
+                    continue;
+                }
+
+                KVMessage.StatusType status = response.getStatus();
+                if (status.equals(KVMessage.StatusType.MULTI_GET)) {
+                    Map<String, String> values = gson.fromJson(response.getValue(), stringMapType);
+                    results.putAll(values);
+                    pending.removeAll(batch.keys);
+                    // Keys the server had no room for in its reply are requested again
+                    if (response.getKey() != null && !response.getKey().equals("null")) {
+                        List<String> deferred = gson.fromJson(response.getKey(), stringListType);
+                        pending.addAll(deferred);
+                    }
+
+                    List<String> backups = null;
+                    for (Map.Entry<String, String> entry : values.entrySet()) {
+                        backups = this.metadata.getBackupsForKey(entry.getKey());
+                        integrityChecks.schedule(batch.serverKey, backups, entry.getKey(), entry.getValue());
+                    }
+                } else if (status.equals(KVMessage.StatusType.SERVER_NOT_RESPONSIBLE)) {
+                    logger.info("Updating metadata");
+                    updateClientMetadata(response.getMetadata());
+                } else if (status.equals(KVMessage.StatusType.SERVER_WRITE_LOCK) || status.equals(KVMessage.StatusType.SERVER_BUSY)) {
+                    writeLocked = true;
+                } else {
+                    // Keys of failed batches are reported as missing
+                    pending.removeAll(batch.keys);
+                }
+            }
+
+            if (writeLocked) {
+                logger.info("Server write lock or busy, retrying in 1000 ms.");
+                Thread.sleep(1000);
+            }
+        }
+        return results;
+    }
+
     @Override
     public boolean subscribe(String key) {
         if (!isConnected()) {
@@ -222,27 +805,27 @@ public class Store implements CommInterface {
             return false;
         }
 
-        String listingAddrPort = serverSocket.getLocalAddress() + ":" + ClientListenRunnable.getPortNumber();
-        KVMessage message = new Message(KVMessage.StatusType.SUBSCRIBE, key, null, listingAddrPort);
+        String listingAddrPort = localAddress + ":" + ClientListenRunnable.getPortNumber();
 
         while (true) {
             // Make sure we know at least one server
             if (metadata.size() < 1) {
                 return false;
             }
+            KVMessage message = new Message(KVMessage.StatusType.SUBSCRIBE, key, null, listingAddrPort, metadata.getEpoch());
 
+            // Get the corresponding server that current hash key is mapped to
+            String subscribeServer = metadata.getWritableServerForKey(key);
+            serverKey = subscribeServer;
             try {
-                // Get the corresponding server that current hash key is mapped to
-                SocketStreams serverSocketStreams = getSocketStreams(key);
-                sendMessage(message, serverSocketStreams.getOutputStream());
-                KVMessage response = receiveMessage(serverSocketStreams.getInputStream());
+                KVMessage response = sendRequest(subscribeServer, message);
                 logger.info(String.format("Received SUBSCRIBE reply with msg %s", response.toString()));
                 KVMessage.StatusType status = response.getStatus();
                 if (status.equals(KVMessage.StatusType.SERVER_NOT_RESPONSIBLE)) {
                     logger.info("Updating metadata cached.");
                     String serializedMetadata = response.getMetadata();
-                    updateClientMetadata(Metadata.deserialize(serializedMetadata));
-                } else if (status.equals(KVMessage.StatusType.SERVER_WRITE_LOCK)) {
+                    updateClientMetadata(serializedMetadata);
+                } else if (status.equals(KVMessage.StatusType.SERVER_WRITE_LOCK) || status.equals(KVMessage.StatusType.SERVER_BUSY)) {
                     logger.info("Server busy, retrying in 1000 ms");
                     Thread.sleep(1000);
                 } else {
@@ -250,7 +833,7 @@ public class Store implements CommInterface {
                 }
             } catch (Exception e) {
                 logger.info("Encountered error while sending subscription requests. Attempt reconnect with another server.");
-                metadata.removeServer(serverKey);
+                removeServer(subscribeServer);
                 continue;
             }
         }
@@ -263,7 +846,7 @@ public class Store implements CommInterface {
             return false;
         }
 
-        String listingAddrPort = serverSocket.getLocalAddress() + ":" + ClientListenRunnable.getPortNumber();
+        String listingAddrPort = localAddress + ":" + ClientListenRunnable.getPortNumber();
         KVMessage message = new Message(KVMessage.StatusType.UNSUBSCRIBE, key, null, listingAddrPort);
 
 
@@ -271,10 +854,16 @@ public class Store implements CommInterface {
             return false;
         }
 
+        String unsubscribeServer = serverKey;
+        SocketStreams streams = null;
         try{
-            sendMessage(message, serverSocket.getOutputStream());
+            // Servers do not reply to unsubscribe requests, so the connection can go straight back to the pool
+            streams = connectionPool.acquire(unsubscribeServer);
+            sendMessage(message, streams.getOutputStream());
+            connectionPool.release(streams);
         } catch (IOException e) {
-            logger.error("Unsubscribe has trouble sending to server " + serverSocket.getPort(), e);
+            connectionPool.invalidate(streams);
+            logger.error("Unsubscribe has trouble sending to server " + unsubscribeServer, e);
             return false;
         }
         return true;
@@ -290,68 +879,260 @@ public class Store implements CommInterface {
         return null;
     }
 
-    private void updateClientMetadata(Metadata newMetadata) throws IOException {
-        this.metadata = newMetadata;
-
-        // Close socket streams for servers that no longer exist
-        if (!this.metadata.hasServer(this.serverKey)) {
+    /**
+     * Updates the metadata with the metadata or delta a server replied with to a request it is not responsible for.
+     *
+     * @param update delta or serialized metadata, null if the server found the metadata of this client current
+     */
+    private void updateClientMetadata(String update) throws IOException {
+        if (!applyMetadataUpdate(update)) {
+            // Same epoch as the server, which has not caught up with the ring yet
             try {
-                String newServerKey = this.metadata.getImmediateSuccessor(HashRange.getMd5Hash(this.serverKey)).getValue();
-                setNewServerSocket(newServerKey);
-                this.serverKey = newServerKey;
-            } catch (IOException e) {
-                logger.error("Failed to close socket streams.");
+                Thread.sleep(STALE_METADATA_RETRY_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+            return;
+        }
+        String currentServer = this.serverKey;
+        if (!this.metadata.hasServer(currentServer)) {
+            this.serverKey = this.metadata.getImmediateSuccessor(HashRange.getMd5Hash(currentServer)).getValue();
         }
     }
 
-    private SocketStreams getSocketStreams(String key) throws IOException {
-        String hashedKey = HashRange.getMd5Hash(key);
-        String serverKey = metadata.getSuccessorServer(hashedKey);
+    /**
+     * Replaces the metadata with the metadata a server sent.
+     *
+     * @param update delta or serialized metadata, null if the server found the metadata of this client current
+     * @return true if the metadata changed
+     */
+    private boolean applyMetadataUpdate(String update) {
+        synchronized (metadataLock) {
+            Metadata newMetadata = metadata.applyUpdate(update);
+            if (newMetadata == null) {
+                // Delta from an epoch this client does not have, the next update sends the whole metadata
+                logger.info("Cannot apply metadata delta, requesting full metadata.");
+                Metadata reset = metadata.copy();
+                reset.resetEpoch();
+                metadata = reset;
+                return true;
+            }
+            if (newMetadata == metadata) {
+                return false;
+            }
+            metadata = newMetadata;
+        }
+        // Close pooled connections for servers that no longer exist
+        connectionPool.retainServers(metadata.getServers());
+        return true;
+    }
 
-        // Wanted server is the same as whats currently cached
-        if (serverKey.equals(this.serverKey)) {
-            return serverSocket;
+    private void removeServer(String serverKey) {
+        synchronized (metadataLock) {
+            // Changed on a copy, other threads keep routing with the current metadata meanwhile
+            Metadata newMetadata = metadata.copy();
+            newMetadata.removeServer(serverKey);
+            // The metadata no longer matches the servers' epoch
+            newMetadata.resetEpoch();
+            metadata = newMetadata;
         }
+        connectionPool.invalidate(serverKey);
+    }
+
+    private String getReadServer(String key) {
+        return getReadServer(key, Collections.<String>emptySet());
+    }
+
+    /**
+     * @param excluded servers not to read from
+     * @return the server to read the key from, null if every server holding the key is excluded
+     */
+    private String getReadServer(String key, Set<String> excluded) {
+        List<String> serverKeys = new ArrayList<>(metadata.getReadableServersForKey(key));
+        serverKeys.removeAll(excluded);
+
+        // Read from the server that answered fastest recently
+        String newServerKey = readLatencies.pickFastest(serverKeys, null);
+        logger.debug(String.format("Can read data from %s, picking %s.", serverKeys, newServerKey));
+        return newServerKey;
+    }
+
+    /**
+     * Sets how many replicas must acknowledge a write before the server replies to a put of this client.
+     *
+     * @param writeConsistency consistency for puts, null to use the default of the servers
+     */
+    public void setWriteConsistency(WriteConsistency writeConsistency) {
+        this.writeConsistency = writeConsistency;
+    }
+
+    public WriteConsistency getWriteConsistency() {
+        return writeConsistency;
+    }
+
+    /**
+     * Sets when a read is hedged: a read not answered within this percentile of recent read latencies is sent to a
+     * second server holding the key as well.
+     *
+     * @param hedgePercentile percentile between 0 and 100, 0 disables hedging
+     */
+    public void setHedgePercentile(double hedgePercentile) {
+        this.hedgePercentile = hedgePercentile;
+    }
 
-        // Close existing and open new socket
-        setNewServerSocket(serverKey);
-        return this.serverSocket;
+    public double getHedgePercentile() {
+        return hedgePercentile;
     }
 
-    private SocketStreams getSocketStreamsForRead(String key) throws IOException {
-        String hashedKey = HashRange.getMd5Hash(key);
+    /**
+     * Sets how many servers holding a key must agree on its value before a get of this client returns.
+     *
+     * @param readConsistency ONE to read from a single server, QUORUM to read from all of them
+     */
+    public void setReadConsistency(ReadConsistency readConsistency) {
+        this.readConsistency = readConsistency;
+    }
 
-        List<String> serverKeys = metadata.getReadableServers(hashedKey);
+    public ReadConsistency getReadConsistency() {
+        return readConsistency;
+    }
 
-        // Lazily load existing socket
-        if (serverKeys.contains(this.serverKey)) {
-            logger.debug(String.format("Can read data from %s, picking %s.", serverKeys, serverKey));
-            return serverSocket;
+    private static ReadConsistency getReadConsistencyProperty() {
+        String consistency = System.getProperty("kv.readConsistency", ReadConsistency.ONE.name());
+        try {
+            return ReadConsistency.valueOf(consistency.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            logger.warn("Unknown read consistency " + consistency + ", using " + ReadConsistency.ONE);
+            return ReadConsistency.ONE;
         }
+    }
 
-        String newServerKey = serverKeys.get(new Random().nextInt(serverKeys.size()));
-        logger.debug(String.format("Can read data from %s, picking %s.", serverKeys, newServerKey));
+    /**
+     * Signs the writes of this client, so replicas verify them without an integrity check with this client.
+     *
+     * @param clientId  identifier of the client the key was provisioned for
+     * @param clientKey hex key provisioned by the admin, null to stop signing writes
+     */
+    public void setWriteCertificateKey(String clientId, String clientKey) {
+        this.writeCertificateClientId = clientId;
+        this.writeCertificateKey = clientKey;
+    }
+
+    /**
+     * @param certificates certificate of a put or JSON map of certificates of a batch put, null if writes are not signed
+     * @return metadata field of put requests, clientKey[,writeConsistency[,certificates]]
+     */
+    private String getPutMetadata(String certificates) {
+        String listingAddrPort = localAddress + ":" + ClientListenRunnable.getPortNumber();
+        String consistency = writeConsistency == null ? "" : writeConsistency.name();
+        if (certificates != null) {
+            return listingAddrPort + "," + consistency + "," + certificates;
+        }
+        return writeConsistency == null ? listingAddrPort : listingAddrPort + "," + consistency;
+    }
 
-        // Close existing and open new socket
-        setNewServerSocket(newServerKey);
-        return this.serverSocket;
+    /**
+     * Whether a put reached the server, in which case its replicas will verify it with this client.
+     */
+    private static boolean isWriteApplied(KVMessage.StatusType status) {
+        return status == KVMessage.StatusType.PUT_SUCCESS || status == KVMessage.StatusType.PUT_UPDATE
+                || status == KVMessage.StatusType.DELETE_SUCCESS || status == KVMessage.StatusType.REPLICATION_TIMEOUT;
+    }
+
+    /**
+     * Splits a group of key value pairs into batches small enough for a single request.
+     *
+     * @param entries          key value pairs, values are ignored for batch gets
+     * @param withCertificates whether a write certificate is sent along for every key
+     * @return batches that each fit into one request
+     */
+    private List<Map<String, String>> splitBatch(Map<String, String> entries, boolean withCertificates) {
+        List<Map<String, String>> chunks = new ArrayList<>();
+        Map<String, String> chunk = new HashMap<>();
+        int chunkBytes = 0;
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            // Size of the pair once serialized as JSON and escaped again inside the message
+            int keyBytes = StringEscapeUtils.escapeJson(gson.toJson(entry.getKey())).length();
+            int entryBytes = keyBytes + StringEscapeUtils.escapeJson(gson.toJson(entry.getValue())).length() + 2;
+            if (withCertificates) {
+                // The key once more and its quoted clientId:sequence:mac certificate in the metadata
+                entryBytes += keyBytes + writeCertificateClientId.length() + 20 + 64 + 8;
+            }
+            if (!chunk.isEmpty() && chunkBytes + entryBytes > MAX_BATCH_BYTES) {
+                chunks.add(chunk);
+                chunk = new HashMap<>();
+                chunkBytes = 0;
+            }
+            chunk.put(entry.getKey(), entry.getValue());
+            chunkBytes += entryBytes;
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
+        }
+        return chunks;
     }
 
-    private void setNewServerSocket(String serverKey) throws IOException {
-        serverSocket.getInputStream().close();
-        serverSocket.getOutputStream().close();
-        serverSocket.getServerSocket().close();
-        logger.info("Closing server sockets for server " + this.serverKey);
+    private Future<KVMessage> submitRequest(final String serverKey, final KVMessage message) {
+        return batchExecutor.submit(new Callable<KVMessage>() {
+            @Override
+            public KVMessage call() throws Exception {
+                return sendRequest(serverKey, message);
+            }
+        });
+    }
 
-        String[] splits = serverKey.split(":");
-        String address = splits[0];
-        Integer port = Integer.valueOf(splits[1]);
-        this.serverKey = serverKey;
-        this.serverSocket = new SocketStreams(new Socket(address, port));
-        this.address = address;
-        this.port = port;
-        logger.info("Setting up new sockets for server " + serverKey);
+    /**
+     * Waits for the reply of a batch. Servers that cannot be reached are removed from the cached metadata.
+     *
+     * @param batch batch that was submitted
+     * @return reply of the server, or null if it could not be reached
+     * @throws Exception if the request failed for any other reason
+     */
+    private KVMessage awaitResponse(Batch batch) throws Exception {
+        try {
+            KVMessage response = batch.response.get();
+            logger.info(String.format("Received %s reply from %s", response.getStatus(), batch.serverKey));
+            return response;
+        } catch (ExecutionException e) {
+            if (!(e.getCause() instanceof IOException)) {
+                throw (Exception) e.getCause();
+            }
+            logger.info("Encountered error while sending batch to " + batch.serverKey + ". Attempt reconnect with another server.");
+            removeServer(batch.serverKey);
+            return null;
+        }
+    }
+
+    /**
+     * Sends a request over a pooled connection to the given server and waits for its reply. A failure on a
+     * reused connection is retried on a fresh one, since the server may have closed it while it was idle.
+     *
+     * @param serverKey server key of the form address:port
+     * @param message   request message
+     * @return reply of the server
+     * @throws IOException if the server cannot be reached
+     */
+    private KVMessage sendRequest(String serverKey, KVMessage message) throws IOException {
+        while (true) {
+            SocketStreams streams = connectionPool.acquire(serverKey);
+            try {
+                sendMessage(message, streams.getOutputStream());
+                KVMessage response = receiveMessage(streams.getInputStream());
+                if (response.getStatus() == KVMessage.StatusType.SERVER_BUSY) {
+                    // The server closes connections it turns away
+                    connectionPool.invalidate(streams);
+                } else {
+                    connectionPool.release(streams);
+                }
+                return response;
+            } catch (IOException e) {
+                connectionPool.invalidate(streams);
+                if (!streams.isReused()) {
+                    throw e;
+                }
+                logger.debug("Pooled connection to " + serverKey + " went stale, retrying with a new connection.");
+            }
+        }
     }
 
     /**
@@ -360,7 +1141,7 @@ public class Store implements CommInterface {
      * @return boolean indicating the result of the check
      */
     private boolean isConnected() {
-        return serverSocket != null;
+        return connectionPool != null;
     }
 
     /**
@@ -454,43 +1235,20 @@ public class Store implements CommInterface {
         return message;
     }
 
-    private class SocketStreams {
-
-        private Socket serverSocket;
-        private OutputStream outputStream;
-        private InputStream inputStream;
-
-        SocketStreams(Socket socket) {
-            serverSocket = socket;
-            try {
-                outputStream = socket.getOutputStream();
-                inputStream = socket.getInputStream();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-
-        public Socket getServerSocket() {
-            return serverSocket;
-        }
-
-        public OutputStream getOutputStream() {
-            return outputStream;
-        }
-
-        public InputStream getInputStream() {
-            return inputStream;
-        }
+    /**
+     * One MULTI_PUT or MULTI_GET request in flight to a single server.
+     */
+    private static class Batch {
 
-        public String getLocalAddress() {
-            return serverSocket.getLocalAddress().getHostAddress();
-        }
+        private final String serverKey;
+        private final Collection<String> keys;
+        private final List<Pair<String, Pair<String, String>>> sentPuts = new ArrayList<>();
+        private Future<KVMessage> response;
 
-        public int getPort() {
-            return serverSocket.getPort();
+        Batch(String serverKey, Collection<String> keys) {
+            this.serverKey = serverKey;
+            this.keys = new ArrayList<>(keys);
         }
-
     }
 
-
 }
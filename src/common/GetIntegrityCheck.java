@@ -0,0 +1,45 @@
+package common;
+
+/**
+ * A value a client read, to be verified by a replica of the key. Only the digest of the value is shipped.
+ */
+public class GetIntegrityCheck {
+
+    private String key;
+    private String digest;
+    private String serverKey;
+
+    /**
+     * @param key       key that was read
+     * @param digest    MD5 hex digest of the value read, "null" if none was found
+     * @param serverKey server key (address:port) of the server the value was read from
+     */
+    public GetIntegrityCheck(String key, String digest, String serverKey) {
+        this.key = key;
+        this.digest = digest;
+        this.serverKey = serverKey;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getDigest() {
+        return digest;
+    }
+
+    public String getServerKey() {
+        return serverKey;
+    }
+
+    /**
+     * @param value value read, null or "null" if none was found
+     * @return MD5 hex digest of the value as kept by the servers, "null" if there is no value
+     */
+    public static String digestOf(String value) {
+        if (value == null || value.equals("null")) {
+            return "null";
+        }
+        return HashRange.getMd5Hash(value);
+    }
+}
@@ -1,18 +1,39 @@
 package common;
 
-import javax.xml.bind.ParseConversionEvent;
-import javax.xml.bind.annotation.adapters.HexBinaryAdapter;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Class to keep track of starting and ending hex hashes for servers.
+ * <p>
+ * The hex strings are the serialized form. For routing, every bound is also kept as a 128-bit ring position in two
+ * longs compared unsigned, so checking a hash against a range costs no allocation and no string comparison. Hashes
+ * that are not hex, as in some tests, are compared as strings.
+ * <p>
+ * A server with several virtual nodes on the ring owns one range per node. The range of its first node is kept in
+ * the fields above, the others in a list that is left out of the serialized form of single node servers.
  */
 public class HashRange implements Comparable<HashRange> {
 
+    private static final int HEX_DIGITS_PER_LONG = 16;
+
     private String startHash;
     private String endHash;
     private String readStartHash;
+    // Ranges of the server's further virtual nodes, null if it has a single node
+    private List<HashRange> virtualRanges;
+
+    // Derived from the hex bounds on first use, not serialized
+    private transient volatile boolean positionsParsed;
+    private transient boolean hexBounds;
+    private transient boolean hexReadBounds;
+    private transient long startHigh;
+    private transient long startLow;
+    private transient long endHigh;
+    private transient long endLow;
+    private transient long readStartHigh;
+    private transient long readStartLow;
 
     public HashRange(String start, String end) {
         startHash = start;
@@ -27,6 +48,7 @@ public class HashRange implements Comparable<HashRange> {
 
     public void setReadStartHash(String readStart) {
         this.readStartHash = readStart;
+        positionsParsed = false;
     }
 
     public String getReadStartHash() {
@@ -49,6 +71,7 @@ public class HashRange implements Comparable<HashRange> {
      */
     public void setStartHash(String startHash) {
         this.startHash = startHash;
+        positionsParsed = false;
     }
 
     /**
@@ -67,10 +90,72 @@ public class HashRange implements Comparable<HashRange> {
      */
     public void setEndHash(String endHash) {
         this.endHash = endHash;
+        positionsParsed = false;
+    }
+
+    /**
+     * Adds the range of another virtual node of the same server.
+     *
+     * @param range range of the node, without virtual ranges of its own
+     */
+    public void addVirtualRange(HashRange range) {
+        if (virtualRanges == null) {
+            virtualRanges = new ArrayList<>();
+        }
+        virtualRanges.add(range);
+    }
+
+    /**
+     * Lists the range of every virtual node, the first node's range first.
+     *
+     * @return ranges without virtual ranges of their own
+     */
+    public List<HashRange> getRanges() {
+        HashRange first = new HashRange(startHash, endHash, readStartHash);
+        if (virtualRanges == null) {
+            return Collections.singletonList(first);
+        }
+        List<HashRange> ranges = new ArrayList<>(virtualRanges.size() + 1);
+        ranges.add(first);
+        ranges.addAll(virtualRanges);
+        return ranges;
+    }
+
+    /**
+     * Writes the start and end hash of every virtual node as start,end,start,end,...
+     *
+     * @see #fromBounds
+     */
+    public String getBounds() {
+        StringBuilder bounds = new StringBuilder();
+        for (HashRange range : getRanges()) {
+            if (bounds.length() > 0) {
+                bounds.append(',');
+            }
+            bounds.append(range.getStartHash()).append(',').append(range.getEndHash());
+        }
+        return bounds.toString();
+    }
+
+    /**
+     * Parses the bounds written by {@link #getBounds}.
+     */
+    public static HashRange fromBounds(String bounds) {
+        String[] hashes = bounds.split(",");
+        HashRange range = new HashRange(hashes[0], hashes[1]);
+        for (int i = 2; i + 1 < hashes.length; i += 2) {
+            range.addVirtualRange(new HashRange(hashes[i], hashes[i + 1]));
+        }
+        return range;
     }
 
     @Override
     public int compareTo(HashRange o) {
+        parsePositions();
+        o.parsePositions();
+        if (hexBounds && o.hexBounds) {
+            return comparePositions(startHigh, startLow, o.startHigh, o.startLow);
+        }
         return startHash.compareTo(o.getStartHash());
     }
 
@@ -81,6 +166,24 @@ public class HashRange implements Comparable<HashRange> {
      * @return true if hashkey is valid for given hash range, false otherwise
      */
     public boolean isInRange(String HashedKey) {
+        if (isInOwnRange(HashedKey)) {
+            return true;
+        }
+        if (virtualRanges != null) {
+            for (HashRange range : virtualRanges) {
+                if (range.isInOwnRange(HashedKey)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean isInOwnRange(String HashedKey) {
+        parsePositions();
+        if (hexBounds && isPosition(HashedKey)) {
+            return isInRange(positionHigh(HashedKey), positionLow(HashedKey));
+        }
         if (startHash.compareTo(endHash) == 0) {
             return true;
         }
@@ -100,7 +203,81 @@ public class HashRange implements Comparable<HashRange> {
         }
     }
 
+    /**
+     * Checks whether the given ring position falls within the range of current hash range.
+     *
+     * @param high upper 64 bits of the position, see {@link #positionHigh}
+     * @param low  lower 64 bits of the position
+     * @return true if the position is valid for given hash range, false otherwise
+     * @throws IllegalStateException if the bounds of the range are not hex hashes
+     */
+    public boolean isInRange(long high, long low) {
+        parsePositions();
+        if (!hexBounds) {
+            throw new IllegalStateException("Bounds of the range are not hex hashes");
+        }
+        if (isInRing(startHigh, startLow, endHigh, endLow, high, low)) {
+            return true;
+        }
+        if (virtualRanges != null) {
+            for (HashRange range : virtualRanges) {
+                if (range.isInRange(high, low)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether the MD5 hash of the given key falls within the range, without building its hex form.
+     *
+     * @param key key as sent by the client
+     * @return true if the key is valid for given hash range, false otherwise
+     */
+    public boolean isKeyInRange(String key) {
+        parsePositions();
+        if (!hexBounds) {
+            return isInRange(getMd5Hash(key));
+        }
+        byte[] digest = Hashing.md5(key);
+        return isInRange(Hashing.toLong(digest, 0), Hashing.toLong(digest, 8));
+    }
+
+    /**
+     * Checks whether the MD5 hash of the given key falls within the range this server serves reads for, without
+     * building its hex form.
+     *
+     * @param key key as sent by the client
+     */
+    public boolean isKeyInReadRange(String key) {
+        parsePositions();
+        if (!hexReadBounds) {
+            return isInReadRange(getMd5Hash(key));
+        }
+        byte[] digest = Hashing.md5(key);
+        return isInReadRange(Hashing.toLong(digest, 0), Hashing.toLong(digest, 8));
+    }
+
     public boolean isInReadRange(String HashedKey) {
+        if (isInOwnReadRange(HashedKey)) {
+            return true;
+        }
+        if (virtualRanges != null) {
+            for (HashRange range : virtualRanges) {
+                if (range.isInOwnReadRange(HashedKey)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean isInOwnReadRange(String HashedKey) {
+        parsePositions();
+        if (hexReadBounds && isPosition(HashedKey)) {
+            return isInReadRange(positionHigh(HashedKey), positionLow(HashedKey));
+        }
         if (readStartHash.compareTo(endHash) == 0) {
             return true;
         }
@@ -120,6 +297,117 @@ public class HashRange implements Comparable<HashRange> {
         }
     }
 
+    /**
+     * Checks whether the given ring position falls within the range this server serves reads for.
+     *
+     * @param high upper 64 bits of the position, see {@link #positionHigh}
+     * @param low  lower 64 bits of the position
+     * @throws IllegalStateException if the bounds of the range are not hex hashes
+     */
+    public boolean isInReadRange(long high, long low) {
+        parsePositions();
+        if (!hexReadBounds) {
+            throw new IllegalStateException("Bounds of the read range are not hex hashes");
+        }
+        if (isInRing(readStartHigh, readStartLow, endHigh, endLow, high, low)) {
+            return true;
+        }
+        if (virtualRanges != null) {
+            for (HashRange range : virtualRanges) {
+                if (range.isInReadRange(high, low)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether (start, end] contains the position, wrapping around the ring when start is not below end. A range
+     * whose start equals its end covers the whole ring.
+     */
+    private static boolean isInRing(long startHigh, long startLow, long endHigh, long endLow, long high, long low) {
+        int startToEnd = comparePositions(startHigh, startLow, endHigh, endLow);
+        if (startToEnd == 0) {
+            return true;
+        }
+        boolean afterStart = comparePositions(high, low, startHigh, startLow) > 0;
+        boolean notAfterEnd = comparePositions(high, low, endHigh, endLow) <= 0;
+        return startToEnd < 0 ? afterStart && notAfterEnd : afterStart || notAfterEnd;
+    }
+
+    private void parsePositions() {
+        if (positionsParsed) {
+            return;
+        }
+        hexBounds = isPosition(startHash) && isPosition(endHash);
+        hexReadBounds = isPosition(readStartHash) && isPosition(endHash);
+        if (hexBounds) {
+            startHigh = positionHigh(startHash);
+            startLow = positionLow(startHash);
+        }
+        if (isPosition(endHash)) {
+            endHigh = positionHigh(endHash);
+            endLow = positionLow(endHash);
+        }
+        if (hexReadBounds) {
+            readStartHigh = positionHigh(readStartHash);
+            readStartLow = positionLow(readStartHash);
+        }
+        positionsParsed = true;
+    }
+
+    /**
+     * Whether a hash can be used as a ring position: up to 32 hex digits, shorter hashes are padded with zeros on
+     * the right so they keep their string order.
+     */
+    public static boolean isPosition(String hash) {
+        if (hash == null || hash.isEmpty() || hash.length() > 2 * HEX_DIGITS_PER_LONG) {
+            return false;
+        }
+        for (int i = 0; i < hash.length(); i++) {
+            if (Character.digit(hash.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param hash hex hash, see {@link #isPosition}
+     * @return upper 64 bits of the hash as a ring position
+     */
+    public static long positionHigh(String hash) {
+        return parseHex(hash, 0);
+    }
+
+    /**
+     * @param hash hex hash, see {@link #isPosition}
+     * @return lower 64 bits of the hash as a ring position
+     */
+    public static long positionLow(String hash) {
+        return parseHex(hash, HEX_DIGITS_PER_LONG);
+    }
+
+    private static long parseHex(String hash, int from) {
+        long value = 0;
+        for (int i = from; i < from + HEX_DIGITS_PER_LONG; i++) {
+            int digit = i < hash.length() ? Character.digit(hash.charAt(i), 16) : 0;
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    /**
+     * Compares two ring positions as unsigned 128-bit numbers.
+     */
+    public static int comparePositions(long aHigh, long aLow, long bHigh, long bLow) {
+        if (aHigh != bHigh) {
+            return Long.compare(aHigh ^ Long.MIN_VALUE, bHigh ^ Long.MIN_VALUE);
+        }
+        return Long.compare(aLow ^ Long.MIN_VALUE, bLow ^ Long.MIN_VALUE);
+    }
+
     /**
      * Computes hex representation of MD5 hash for the given input string.
      *
@@ -127,14 +415,6 @@ public class HashRange implements Comparable<HashRange> {
      * @return hex string of md5 hash of input
      */
     public static String getMd5Hash(String input) {
-        byte[] bytesOfMessage = input.getBytes();
-        MessageDigest md = null;
-        try {
-            md = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            return "";
-        }
-        String hex = (new HexBinaryAdapter()).marshal(md.digest(bytesOfMessage));
-        return hex;
+        return Hashing.md5Hex(input);
     }
 }
@@ -0,0 +1,127 @@
+package common;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * MD5 hashing of keys and values. Every thread keeps its own digest and buffers, so hashing neither looks up the
+ * digest provider nor allocates, apart from the hex string when one is asked for.
+ */
+public final class Hashing {
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final int DIGEST_LENGTH = 16;
+    // Input is encoded and digested in chunks of this size, large values do not grow the buffer
+    private static final int CHUNK_SIZE = 4096;
+
+    private static final ThreadLocal<State> state = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State();
+        }
+    };
+
+    private static class State {
+        private final MessageDigest md5;
+        private final byte[] chunk = new byte[CHUNK_SIZE];
+        private final byte[] digest = new byte[DIGEST_LENGTH];
+        private final char[] hex = new char[2 * DIGEST_LENGTH];
+
+        State() {
+            try {
+                md5 = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("The MD5 message digest provider was not found.", e);
+            }
+        }
+    }
+
+    private Hashing() {
+    }
+
+    /**
+     * Computes hex representation of MD5 hash for the given input string.
+     *
+     * @param input input to be hashed, encoded as UTF-8
+     * @return upper case hex string of md5 hash of input
+     */
+    public static String md5Hex(String input) {
+        State current = state.get();
+        return toHex(md5(input, current), current.hex);
+    }
+
+    /**
+     * @return upper case hex representation of the bytes
+     */
+    public static String toHex(byte[] bytes) {
+        return toHex(bytes, new char[2 * bytes.length]);
+    }
+
+    /**
+     * Reads 8 bytes of a digest as a big-endian long, e.g. half of a ring position.
+     */
+    public static long toLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (bytes[i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Hashes the input into the calling thread's digest buffer, valid until the thread hashes again.
+     */
+    static byte[] md5(String input) {
+        return md5(input, state.get());
+    }
+
+    private static byte[] md5(String input, State current) {
+        MessageDigest md5 = current.md5;
+        byte[] chunk = current.chunk;
+        int length = input.length();
+        int position = 0;
+        for (int i = 0; i < length; i++) {
+            // Room for the longest encoding of one code point
+            if (position > CHUNK_SIZE - 4) {
+                md5.update(chunk, 0, position);
+                position = 0;
+            }
+            char c = input.charAt(i);
+            if (c < 0x80) {
+                chunk[position++] = (byte) c;
+            } else if (c < 0x800) {
+                chunk[position++] = (byte) (0xC0 | (c >> 6));
+                chunk[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(input.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, input.charAt(++i));
+                chunk[position++] = (byte) (0xF0 | (codePoint >> 18));
+                chunk[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                chunk[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                chunk[position++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogate, replaced like String.getBytes does
+                chunk[position++] = '?';
+            } else {
+                chunk[position++] = (byte) (0xE0 | (c >> 12));
+                chunk[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                chunk[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        md5.update(chunk, 0, position);
+        try {
+            md5.digest(current.digest, 0, DIGEST_LENGTH);
+        } catch (DigestException e) {
+            throw new IllegalStateException("Cannot compute MD5 digest", e);
+        }
+        return current.digest;
+    }
+
+    private static String toHex(byte[] bytes, char[] hex) {
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0x0F];
+            hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0x0F];
+        }
+        return new String(hex, 0, 2 * bytes.length);
+    }
+}
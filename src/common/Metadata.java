@@ -1,36 +1,111 @@
 package common;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.google.gson.reflect.TypeToken;
 
 import java.lang.reflect.Type;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Class to keep track of mappings between server addresses and the range of hashes
  * the server is providing support for.
+ * <p>
+ * Every server is placed on the ring as a number of virtual nodes, the first at the MD5 hash of its key and the
+ * others at the hash of key#i. With many nodes per server the ranges even out, and a joining or leaving server
+ * exchanges data with many servers instead of its neighbours only. Coordinator and replicas of a hash are the
+ * next distinct servers on the ring. Servers may get different numbers of nodes, a server with twice the nodes
+ * carries about twice the keys.
+ * <p>
+ * Routing goes through a placement table built once after every change: the node positions as primitive 128-bit
+ * boundaries for a binary search, and the coordinator and replicas of each segment as shared immutable lists.
+ * <p>
+ * Every membership change advances the epoch of the metadata, and the latest changes are kept so metadata of an
+ * earlier epoch can be brought up to date with a delta instead of the whole ring. The first epoch is random, so
+ * epochs of metadata built independently do not meet.
  *
  * @see common.HashRange
  */
 public class Metadata {
 
+    /**
+     * Virtual nodes per server for new metadata, 1 places every server at a single point as before.
+     */
+    public static final int DEFAULT_VIRTUAL_NODES = Math.max(1, Integer.getInteger("kv.virtualNodes", 1));
+    // Coordinator and replicas of every hash
+    private static final int READABLE_SERVERS = 3;
+    // Number of changes kept for deltas
+    private static final int MAX_CHANGES = 64;
+    private static final String ADD = "ADD";
+    private static final String REMOVE = "REMOVE";
+    private static final String NODES = "NODES";
+
     private final Map<String, HashRange> mappings;
     private final TreeMap<String, String> hashToAddr;
+    // Positions of every server, its first node first
+    private final Map<String, List<String>> serverTokens;
+    private int virtualNodes;
+    // Version of the membership, 0 if the metadata is not versioned
+    private volatile long epoch;
+    // Epoch the kept changes start from, deltas reach back no further
+    private long baseEpoch;
+    private final List<Change> changes;
+    // Server positions sorted for routing without string comparisons, rebuilt after hashToAddr changed
+    private volatile Ring ring;
+    // Serialized form and deltas by the epoch they start from, built once as servers send them with every redirect
+    private volatile String serializedForm;
+    private final Map<Long, String> deltas = new ConcurrentHashMap<>();
 
     /**
      * Create metadata with no initializations.
      */
     public Metadata() {
+        this(DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     * Create metadata with no initializations.
+     *
+     * @param virtualNodes number of virtual nodes servers added later get
+     */
+    public Metadata(int virtualNodes) {
         mappings = new HashMap<>();
         hashToAddr = new TreeMap<>();
+        serverTokens = new HashMap<>();
+        changes = new ArrayList<>();
+        this.virtualNodes = Math.max(1, virtualNodes);
+    }
+
+    /**
+     * Copies metadata, to apply a delta without changing the metadata other threads route with.
+     */
+    private Metadata(Metadata other) {
+        mappings = new HashMap<>(other.mappings);
+        hashToAddr = new TreeMap<>(other.hashToAddr);
+        serverTokens = new HashMap<>(other.serverTokens);
+        changes = new ArrayList<>(other.changes);
+        virtualNodes = other.virtualNodes;
+        epoch = other.epoch;
+        baseEpoch = other.baseEpoch;
+        ring = other.ring;
+    }
+
+    /**
+     * @return a copy of this metadata that can be changed while other threads keep routing with this one
+     */
+    public Metadata copy() {
+        return new Metadata(this);
     }
 
     /**
      * Create metadata with no initializations.
      */
     public Metadata(String serverKey, HashRange moveDataHashRange) {
-        mappings = new HashMap<>();
-        hashToAddr = new TreeMap<>();
+        this();
         mappings.put(serverKey, moveDataHashRange);
     }
 
@@ -42,10 +117,18 @@ public class Metadata {
     private Metadata(Map<String, HashRange> inputMappings) {
         mappings = inputMappings;
         hashToAddr = new TreeMap<>();
+        serverTokens = new HashMap<>();
+        changes = new ArrayList<>();
+        virtualNodes = 1;
         for (Map.Entry<String, HashRange> entry : mappings.entrySet()) {
             String serverKey = entry.getKey();
-            String serverHash = entry.getValue().getEndHash();
-            hashToAddr.put(serverHash, serverKey);
+            List<String> tokens = new ArrayList<>();
+            for (HashRange range : entry.getValue().getRanges()) {
+                tokens.add(range.getEndHash());
+                hashToAddr.put(range.getEndHash(), serverKey);
+            }
+            serverTokens.put(serverKey, tokens);
+            virtualNodes = Math.max(virtualNodes, tokens.size());
         }
     }
 
@@ -55,43 +138,81 @@ public class Metadata {
      * @param serverKeys list of server keys of form address:port
      */
     public Metadata(List<String> serverKeys) {
-        mappings = new HashMap<>();
-        hashToAddr = new TreeMap<>();
+        this(serverKeys, DEFAULT_VIRTUAL_NODES);
+    }
 
-        // Add in each server hash into a tree
+    /**
+     * Create metadata from a list of server keys.
+     *
+     * @param serverKeys   list of server keys of form address:port
+     * @param virtualNodes number of virtual nodes per server
+     */
+    public Metadata(List<String> serverKeys, int virtualNodes) {
+        this(virtualNodes);
         for (String serverKey : serverKeys) {
-            String serverHash = HashRange.getMd5Hash(serverKey);
-            hashToAddr.put(serverHash, serverKey);
-        }
-
-        // Add in reverse lookup mechanism
-        String prevHash = hashToAddr.lastKey();
-        String prevPrevHash = getImmediatePredecessor(prevHash).getKey();
-        for (Map.Entry<String, String> entry : hashToAddr.entrySet()) {
-            String serverHash = entry.getKey();
-            String serverKey = entry.getValue();
-            String readStart = getImmediatePredecessor(prevPrevHash).getKey();
-            mappings.put(serverKey, new HashRange(prevHash, serverHash, readStart));
-            prevPrevHash = prevHash;
-            prevHash = serverHash;
+            placeServer(serverKey, HashRange.getMd5Hash(serverKey), this.virtualNodes);
         }
+        rebuildRanges();
+        startEpoch();
     }
 
     public Integer size() {
         return hashToAddr.size();
     }
 
+    /**
+     * @return version of the membership, 0 if the metadata is not versioned
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Forgets the epoch, e.g. after the metadata was changed locally and no longer matches any epoch of its source.
+     * The next update then ships the whole metadata.
+     */
+    public void resetEpoch() {
+        epoch = 0;
+        baseEpoch = 0;
+        changes.clear();
+        forgetSerialized();
+    }
+
+    /**
+     * @return number of virtual nodes servers added to this metadata get
+     */
+    public int getVirtualNodes() {
+        return virtualNodes;
+    }
+
+    /**
+     * @param serverKey server key of the form address:port
+     * @return number of virtual nodes of the server, 0 if it is not in the metadata
+     */
+    public int getVirtualNodes(String serverKey) {
+        List<String> tokens = serverTokens.get(serverKey);
+        return tokens == null ? 0 : tokens.size();
+    }
+
     /**
      * Obtain the server key for the immediate successor of the input serverHash.
      * @param newServerHash md5 hash of an server key
      * @return server key(address:port) that is successor of input server hash
      */
     public String getSuccessorServer(String newServerHash) {
-        Map.Entry<String, String> successor = hashToAddr.ceilingEntry(newServerHash);
-        if (successor == null) {
-            successor = hashToAddr.firstEntry();
-        }
-        return successor != null ? successor.getValue() : null;
+        Ring ring = getRing();
+        return ring.servers.length == 0 ? null : ring.servers[ring.successorIndex(newServerHash)];
+    }
+
+    /**
+     * Obtain the server that coordinates the given key, without building the hex hash of the key.
+     *
+     * @param key key as sent by the client
+     * @return server key(address:port) of the coordinator, null if there is no server
+     */
+    public String getWritableServerForKey(String key) {
+        Ring ring = getRing();
+        return ring.servers.length == 0 ? null : ring.servers[ring.keyIndex(key)];
     }
 
 
@@ -108,6 +229,26 @@ public class Metadata {
         return pre != null ? pre.getValue() : null;
     }
 
+    /**
+     * Obtain the server that follows the given one when only the first node of every server is counted, so
+     * following servers visits every server once.
+     *
+     * @param serverKey server key of the form address:port
+     * @return server key of the next server, the server itself if it is the only one
+     */
+    public String getNextServer(String serverKey) {
+        HashRange range = mappings.get(serverKey);
+        if (range == null) {
+            return null;
+        }
+        TreeMap<String, String> firstNodes = new TreeMap<>();
+        for (Map.Entry<String, HashRange> entry : mappings.entrySet()) {
+            firstNodes.put(entry.getValue().getEndHash(), entry.getKey());
+        }
+        Map.Entry<String, String> next = firstNodes.higherEntry(range.getEndHash());
+        return next != null ? next.getValue() : firstNodes.firstEntry().getValue();
+    }
+
     /**
      * For client usage: randomly pick one server to read from
      *
@@ -116,44 +257,70 @@ public class Metadata {
      */
     public String getReadableServer(String dataKey) {
         List<String> servers = getReadableServers(dataKey);
-        Integer randn = new Random().nextInt(servers.size());
-        return servers.get(randn);
+        return servers.get(ThreadLocalRandom.current().nextInt(servers.size()));
     }
 
     /**
      * Returns all the server keys that contains the current dataHash
      * @param dataHash
-     * @return
+     * @return coordinator first, then the replicas, the list is shared and cannot be modified
      */
     public List<String> getReadableServers(String dataHash) {
-        Map.Entry<String, String> successor = hashToAddr.ceilingEntry(dataHash);
-        if (successor == null) {
-            successor = hashToAddr.firstEntry();
-        }
+        Ring ring = getRing();
+        return ring.readerLists.get(ring.successorIndex(dataHash));
+    }
 
-        // Brute force lookup for now
-        Map.Entry<String, String> replica1Entry = getImmediateSuccessor(successor.getKey());
-        String replica1ServerKey = replica1Entry.getValue();
-        String replica2ServerKey = getImmediateSuccessor(replica1Entry.getKey()).getValue();
-        return Arrays.asList(successor.getValue(), replica1ServerKey, replica2ServerKey);
+    /**
+     * Returns all the server keys that hold the given key, without building the hex hash of the key.
+     *
+     * @param key key as sent by the client
+     * @return coordinator first, then the replicas, the list is shared and cannot be modified
+     */
+    public List<String> getReadableServersForKey(String key) {
+        Ring ring = getRing();
+        return ring.readerLists.get(ring.keyIndex(key));
     }
 
     /**
      * Returns the replica servers for the current data hash
      * @param dataHash
-     * @return
+     * @return replicas, the list is shared and cannot be modified
      */
     public List<String> getBackups(String dataHash) {
-        Map.Entry<String, String> successor = hashToAddr.ceilingEntry(dataHash);
-        if (successor == null) {
-            successor = hashToAddr.firstEntry();
-        }
+        Ring ring = getRing();
+        return ring.backupLists.get(ring.successorIndex(dataHash));
+    }
 
-        // Brute force lookup for now
-        Map.Entry<String, String> replica1Entry = getImmediateSuccessor(successor.getKey());
-        String replica1ServerKey = replica1Entry.getValue();
-        String replica2ServerKey = getImmediateSuccessor(replica1Entry.getKey()).getValue();
-        return Arrays.asList(replica1ServerKey, replica2ServerKey);
+    /**
+     * Returns the replica servers of the given key, without building the hex hash of the key.
+     *
+     * @param key key as sent by the client
+     * @return replicas, the list is shared and cannot be modified
+     */
+    public List<String> getBackupsForKey(String key) {
+        Ring ring = getRing();
+        return ring.backupLists.get(ring.keyIndex(key));
+    }
+
+    /**
+     * Returns the ranges of a server that are replicated on the given replica.
+     *
+     * @param serverKey  coordinator of the ranges
+     * @param replicaKey replica server
+     * @return ranges of the coordinator's virtual nodes the replica holds, null if there are none
+     */
+    public HashRange getReplicatedRange(String serverKey, String replicaKey) {
+        HashRange range = mappings.get(serverKey);
+        if (range == null) {
+            return null;
+        }
+        HashRange replicated = null;
+        for (HashRange node : range.getRanges()) {
+            if (getBackups(node.getEndHash()).contains(replicaKey)) {
+                replicated = addSegment(replicated, node.getStartHash(), node.getEndHash());
+            }
+        }
+        return replicated;
     }
 
     public Set<String> getServers() {
@@ -168,14 +335,6 @@ public class Metadata {
         return successor;
     }
 
-    private Map.Entry<String, String> getImmediatePredecessor(String dataHash) {
-        Map.Entry<String, String> prede = hashToAddr.lowerEntry(dataHash);
-        if (prede == null) {
-            prede = hashToAddr.lastEntry();
-        }
-        return prede;
-    }
-
     public String getWritableServer(String dataHash) {
         return getSuccessorServer(dataHash);
     }
@@ -185,36 +344,28 @@ public class Metadata {
      *
      * @param newServerKey key of the new server to be added
      * @param newServerHash hex representation of MD5 hash of the server key
+     * @return a map of servers and the data they hand over to the new server
      */
     public Map<String, HashRange> addNewServer(String newServerKey, String newServerHash) {
-        String predecessorServerKey = getPredecessorServer(newServerHash);
-        String successorServerKey = getSuccessorServer(newServerHash);
-
-        // No server was initialized, will no longer enter after M2
-        if (successorServerKey == null) {
-            hashToAddr.put(newServerHash, newServerKey);
-            mappings.put(newServerKey, new HashRange(newServerHash, newServerHash, newServerHash));
-            return new HashMap<>();
-        }
-
-        // Update HashRanges
-        hashToAddr.put(newServerHash, newServerKey);
-        mappings.put(newServerKey, new HashRange(
-                mappings.get(predecessorServerKey).getEndHash(),
-                newServerHash,
-                mappings.get(successorServerKey).getReadStartHash()));
-        mappings.get(successorServerKey).setStartHash(newServerHash);
-
-        // Update Read Start Hash
-        return updateReadStartWithAddedNode(newServerHash);
+        return addNewServer(newServerKey, newServerHash, virtualNodes);
+    }
 
-//        // Update Replicas
-//        Map.Entry<String, Servers> predecessor = getImmediatePredecessor(newServerKey);
-//        Map.Entry<String, Servers> prePreredecessor = getImmediatePredecessor(predecessor.getKey());
-//        predecessor.getValue().setReplica1(newServerKey);
-//        prePreredecessor.getValue().setReplica2(newServerKey);
-//        newServerEntry.setReplica1(successorServerKey);
-//        newServerEntry.setReplica2(hashToAddr.higherKey(successorServerKey));
+    /**
+     * Update metadata to reflect the addition of new server.
+     *
+     * @param newServerKey  key of the new server to be added
+     * @param newServerHash hex representation of MD5 hash of the server key
+     * @param nodes         number of virtual nodes of the server
+     * @return a map of servers and the data they hand over to the new server
+     */
+    public Map<String, HashRange> addNewServer(String newServerKey, String newServerHash, int nodes) {
+        Ring before = getRing();
+        Change change = new Change(ADD, newServerKey, newServerHash, nodes);
+        apply(change);
+        record(change);
+
+        // Every server that stops reading a piece of the ring hands it to the new server
+        return diffReaders(before, getRing(), false);
     }
 
     /**
@@ -228,73 +379,404 @@ public class Metadata {
             return Collections.emptyMap();
         }
 
-        // Remove server hash so that will not get self when getting successor
-        String serverHash = mappings.get(serverKey).getEndHash();
-        hashToAddr.remove(serverHash);
-        mappings.remove(serverKey);
-        String successorServerKey = getSuccessorServer(serverHash);
-        String predecessorServeryKey = getPredecessorServer(serverHash);
+        Ring before = getRing();
+        Change change = new Change(REMOVE, serverKey, null, 0);
+        apply(change);
+        record(change);
+
+        // Every server that starts reading a piece of the ring needs it copied from another replica
+        return diffReaders(before, getRing(), true);
+    }
 
-        if (successorServerKey == null) {
+    /**
+     * Changes the number of virtual nodes of a server, e.g. after its weight changed. Nodes are added or removed
+     * at the end of the server's sequence of positions, so the other nodes keep their place.
+     *
+     * @param serverKey server key of the form address:port
+     * @param nodes     new number of virtual nodes
+     * @return a map of servers and the data they need from other servers
+     */
+    public Map<String, HashRange> setVirtualNodes(String serverKey, int nodes) {
+        List<String> tokens = serverTokens.get(serverKey);
+        if (tokens == null || tokens.size() == Math.max(1, nodes)) {
             return Collections.emptyMap();
         }
 
-        // Update successor start hash
-        mappings.get(successorServerKey).setStartHash(mappings.get(predecessorServeryKey).getEndHash());
-        return updateReadStartWithRemovedNode(serverHash);
+        Ring before = getRing();
+        Change change = new Change(NODES, serverKey, tokens.get(0), nodes);
+        apply(change);
+        record(change);
+        return diffReaders(before, getRing(), true);
+    }
 
-//            // Update Replicas
-//            hashToAddr.get(predecessorServeryKey).setReplica1(successorServerKey);
-//            String prePredecessorServeryKey = getImmediatePredecessor(predecessorServeryKey).getKey();
-//            hashToAddr.get(prePredecessorServeryKey).setReplica2(successorServerKey);
+    /**
+     * Applies a membership change to the ring and the ranges.
+     */
+    private void apply(Change change) {
+        List<String> tokens = serverTokens.remove(change.server);
+        if (tokens != null) {
+            for (String token : tokens) {
+                hashToAddr.remove(token);
+            }
+        }
+        if (change.type.equals(REMOVE)) {
+            mappings.remove(change.server);
+        } else {
+            placeServer(change.server, change.hash, change.nodes);
+        }
+        ring = null;
+        rebuildRanges();
+        forgetSerialized();
     }
 
+    /**
+     * Advances the epoch past a change made to this metadata and keeps the change for deltas.
+     */
+    private void record(Change change) {
+        if (epoch == 0) {
+            // Nothing earlier to bring up to date
+            startEpoch();
+            return;
+        }
+        change.epoch = epoch + 1;
+        keep(change);
+    }
 
-    private Map<String, HashRange> updateReadStartWithRemovedNode(String removedHash) {
-        Map<String, HashRange> ret = new HashMap<>();
-        List<String> nextThreeSuccessors = getNextThreeSuccessors(removedHash);
+    private void keep(Change change) {
+        changes.add(change);
+        epoch = change.epoch;
+        while (changes.size() > MAX_CHANGES) {
+            baseEpoch = changes.remove(0).epoch;
+        }
+        forgetSerialized();
+    }
 
-        for (String successorServerKey:nextThreeSuccessors) {
-            HashRange successorHashRange = mappings.get(successorServerKey);
-            String oldReadStart = successorHashRange.getReadStartHash();
-            String readStartServerKey;
+    private void startEpoch() {
+        epoch = 1 + (ThreadLocalRandom.current().nextLong() >>> 2);
+        baseEpoch = epoch;
+        changes.clear();
+        forgetSerialized();
+    }
 
-            if (hashToAddr.containsKey(oldReadStart)) {
-                readStartServerKey = hashToAddr.get(oldReadStart);
-            } else {
-                // Server associated with this hash died, get immediate successor
-                readStartServerKey = getImmediateSuccessor(oldReadStart).getValue();
+    private void forgetSerialized() {
+        serializedForm = null;
+        deltas.clear();
+    }
+
+    /**
+     * Serializes the changes that bring metadata of an earlier epoch to the epoch of this metadata.
+     *
+     * @param since epoch of the metadata to update
+     * @return the delta, null if the changes since that epoch are no longer known
+     */
+    public String getDelta(long since) {
+        if (epoch == 0 || since < baseEpoch || since > epoch) {
+            return null;
+        }
+        String delta = deltas.get(since);
+        if (delta == null) {
+            List<Change> newer = new ArrayList<>();
+            for (Change change : changes) {
+                if (change.epoch > since) {
+                    newer.add(change);
+                }
             }
+            delta = new Gson().toJson(new Delta(since, epoch, newer));
+            deltas.put(since, delta);
+        }
+        return delta;
+    }
 
-            String newReadStartHash = mappings.get(readStartServerKey).getStartHash();
-            successorHashRange.setReadStartHash(newReadStartHash);
-            ret.put(successorServerKey, new HashRange(newReadStartHash, oldReadStart));
+    /**
+     * Serializes what metadata of the given epoch needs to catch up with this metadata: nothing if it is current, a
+     * delta if the changes since are known, the whole metadata otherwise.
+     *
+     * @param since epoch of the metadata to update, 0 if unknown
+     * @return delta or serialized metadata, null if there is nothing to update
+     */
+    public String getSerializedUpdate(long since) {
+        if (epoch != 0 && since == epoch) {
+            return null;
         }
+        String delta = getDelta(since);
+        return delta != null ? delta : getSerializedForm();
+    }
 
-        return ret;
+    /**
+     * Brings this metadata up to date with an update built by {@link #getSerializedUpdate}. This metadata is not
+     * changed.
+     *
+     * @param update delta, serialized metadata, or null or "null" if there is nothing to update
+     * @return the updated metadata, this metadata if there was nothing to update, null if the update is a delta
+     * from an epoch other than this metadata's
+     */
+    public Metadata applyUpdate(String update) {
+        if (update == null || update.equals("null")) {
+            return this;
+        }
+        JsonElement json = new JsonParser().parse(update);
+        if (!json.isJsonObject() || !json.getAsJsonObject().has("from")) {
+            return deserialize(json);
+        }
+        Delta delta = new Gson().fromJson(json, Delta.class);
+        if (epoch == 0 || delta.from != epoch) {
+            return null;
+        }
+        Metadata updated = new Metadata(this);
+        for (Change change : delta.changes) {
+            updated.apply(change);
+            updated.keep(change);
+        }
+        return updated;
     }
 
-    private Map<String, HashRange> updateReadStartWithAddedNode(String addedHash) {
+    /**
+     * Compares the readers of every piece of the ring before and after a change.
+     *
+     * @param gained true for the pieces servers start reading, false for the pieces they stop reading
+     * @return a map of servers and their pieces
+     */
+    private static Map<String, HashRange> diffReaders(Ring before, Ring after, boolean gained) {
         Map<String, HashRange> ret = new HashMap<>();
-        List<String> nextThreeSuccessors = getNextThreeSuccessors(addedHash);
-
-        for (String successorServerKey:nextThreeSuccessors) {
-            HashRange successorHashRange = mappings.get(successorServerKey);
-            String oldReadStart = successorHashRange.getReadStartHash();
-            String readStartServerKey = getImmediateSuccessor(oldReadStart).getValue();
-            String newReadStartHash = mappings.get(readStartServerKey).getEndHash();
-            successorHashRange.setReadStartHash(newReadStartHash);
-            ret.put(successorServerKey, new HashRange(oldReadStart,newReadStartHash));
+        if (before.servers.length == 0 || after.servers.length == 0) {
+            return ret;
         }
 
+        // Each piece between two positions of either ring lies within one range of both rings
+        TreeMap<String, String> positions = new TreeMap<>();
+        for (Ring ring : Arrays.asList(before, after)) {
+            for (int i = 0; i < ring.servers.length; i++) {
+                positions.put(ring.hashes[i], ring.servers[i]);
+            }
+        }
+        Ring pieces = new Ring(positions);
+        for (int i = 0; i < pieces.servers.length; i++) {
+            String end = pieces.hashes[i];
+            List<String> oldReaders = Arrays.asList(before.readers[before.successorIndex(end)]);
+            List<String> newReaders = Arrays.asList(after.readers[after.successorIndex(end)]);
+            List<String> from = gained ? newReaders : oldReaders;
+            List<String> to = gained ? oldReaders : newReaders;
+            for (String server : new LinkedHashSet<>(from)) {
+                if (!to.contains(server)) {
+                    ret.put(server, addSegment(ret.get(server), pieces.hashes[pieces.previous(i)], end));
+                }
+            }
+        }
         return ret;
     }
 
-    private List<String> getNextThreeSuccessors(String hash) {
-        Map.Entry<String, String> successor1 = getImmediateSuccessor(hash);
-        Map.Entry<String, String> successor2 = getImmediateSuccessor(successor1.getKey());
-        Map.Entry<String, String> successor3 = getImmediateSuccessor(successor2.getKey());
-        return Arrays.asList(successor1.getValue(), successor2.getValue(), successor3.getValue());
+    /**
+     * Puts the virtual nodes of a server on the ring.
+     */
+    private void placeServer(String serverKey, String serverHash, int nodes) {
+        List<String> tokens = new ArrayList<>();
+        tokens.add(serverHash);
+        for (int i = 1; i < Math.max(1, nodes); i++) {
+            tokens.add(HashRange.getMd5Hash(serverKey + "#" + i));
+        }
+        for (String token : tokens) {
+            hashToAddr.put(token, serverKey);
+        }
+        serverTokens.put(serverKey, tokens);
+        ring = null;
+    }
+
+    /**
+     * Recomputes the range of every virtual node from the ring. A node's range starts at its predecessor, its read
+     * range extends back over the preceding ranges the server is a replica of.
+     */
+    private void rebuildRanges() {
+        Ring ring = getRing();
+        int size = ring.servers.length;
+        Map<String, Integer> indexes = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            indexes.put(ring.hashes[i], i);
+        }
+
+        mappings.clear();
+        for (Map.Entry<String, List<String>> entry : serverTokens.entrySet()) {
+            String serverKey = entry.getKey();
+            HashRange serverRange = null;
+            for (String token : entry.getValue()) {
+                Integer index = indexes.get(token);
+                if (index == null || !ring.servers[index].equals(serverKey)) {
+                    // Position taken by another server
+                    continue;
+                }
+                int readFrom = index;
+                for (int steps = 1; steps < size
+                        && Arrays.asList(ring.readers[ring.previous(readFrom)]).contains(serverKey); steps++) {
+                    readFrom = ring.previous(readFrom);
+                }
+                HashRange range = new HashRange(ring.hashes[ring.previous(index)], token,
+                        ring.hashes[ring.previous(readFrom)]);
+                if (serverRange == null) {
+                    serverRange = range;
+                } else {
+                    serverRange.addVirtualRange(range);
+                }
+            }
+            if (serverRange != null) {
+                mappings.put(serverKey, serverRange);
+            }
+        }
+    }
+
+    /**
+     * Appends (start, end] to the range, merging it into the last range if it continues it.
+     */
+    private static HashRange addSegment(HashRange range, String start, String end) {
+        if (range == null) {
+            return new HashRange(start, end);
+        }
+        List<HashRange> ranges = range.getRanges();
+        if (ranges.size() == 1 && range.getEndHash().equals(start)) {
+            range.setEndHash(end);
+        } else {
+            range.addVirtualRange(new HashRange(start, end));
+        }
+        return range;
+    }
+
+    private Ring getRing() {
+        Ring current = ring;
+        if (current == null) {
+            current = new Ring(hashToAddr);
+            ring = current;
+        }
+        return current;
+    }
+
+    /**
+     * Immutable snapshot of the server positions in ring order.
+     */
+    private static class Ring {
+        private final String[] hashes;
+        private final long[] highs;
+        private final long[] lows;
+        private final String[] servers;
+        // Coordinator and replicas of the range ending at each position
+        private final String[][] readers;
+        private final List<List<String>> readerLists;
+        private final List<List<String>> backupLists;
+        // False if a server hash is not hex, lookups then compare strings
+        private final boolean hexPositions;
+
+        Ring(TreeMap<String, String> hashToAddr) {
+            int size = hashToAddr.size();
+            hashes = new String[size];
+            highs = new long[size];
+            lows = new long[size];
+            servers = new String[size];
+            boolean hex = true;
+            for (String hash : hashToAddr.keySet()) {
+                hex &= HashRange.isPosition(hash);
+            }
+            int i = 0;
+            for (Map.Entry<String, String> entry : hashToAddr.entrySet()) {
+                int j = i;
+                if (hex) {
+                    // Insertion sort, the entries are in string order which matches for hashes of equal length
+                    long high = HashRange.positionHigh(entry.getKey());
+                    long low = HashRange.positionLow(entry.getKey());
+                    while (j > 0 && HashRange.comparePositions(highs[j - 1], lows[j - 1], high, low) > 0) {
+                        hashes[j] = hashes[j - 1];
+                        highs[j] = highs[j - 1];
+                        lows[j] = lows[j - 1];
+                        servers[j] = servers[j - 1];
+                        j--;
+                    }
+                    highs[j] = high;
+                    lows[j] = low;
+                }
+                hashes[j] = entry.getKey();
+                servers[j] = entry.getValue();
+                i++;
+            }
+            hexPositions = hex;
+
+            int distinctServers = new HashSet<>(Arrays.asList(servers)).size();
+            readers = new String[size][];
+            readerLists = new ArrayList<>(size);
+            backupLists = new ArrayList<>(size);
+            for (i = 0; i < size; i++) {
+                readers[i] = findReaders(i, Math.min(READABLE_SERVERS, distinctServers));
+                List<String> readerList = Collections.unmodifiableList(Arrays.asList(readers[i]));
+                readerLists.add(readerList);
+                backupLists.add(readerList.subList(1, READABLE_SERVERS));
+            }
+        }
+
+        /**
+         * Walks the ring from the position for the next distinct servers. With fewer servers than readers, the
+         * servers found are repeated.
+         */
+        private String[] findReaders(int index, int distinct) {
+            String[] found = new String[READABLE_SERVERS];
+            int count = 0;
+            for (int step = 0; count < distinct; step++) {
+                String server = servers[(index + step) % servers.length];
+                if (!Arrays.asList(found).subList(0, count).contains(server)) {
+                    found[count++] = server;
+                }
+            }
+            for (; count < READABLE_SERVERS; count++) {
+                found[count] = found[count % distinct];
+            }
+            return found;
+        }
+
+        /**
+         * @return index of the first server at or after the MD5 hash of the key, wrapping around to the first server
+         */
+        int keyIndex(String key) {
+            if (!hexPositions) {
+                return successorIndex(HashRange.getMd5Hash(key));
+            }
+            byte[] digest = Hashing.md5(key);
+            return successorIndex(Hashing.toLong(digest, 0), Hashing.toLong(digest, 8));
+        }
+
+        /**
+         * @return index of the first server at or after the hash, wrapping around to the first server
+         */
+        int successorIndex(String hash) {
+            if (hexPositions && HashRange.isPosition(hash)) {
+                return successorIndex(HashRange.positionHigh(hash), HashRange.positionLow(hash));
+            }
+            int from = 0;
+            int to = servers.length;
+            while (from < to) {
+                int middle = (from + to) >>> 1;
+                if (hashes[middle].compareTo(hash) < 0) {
+                    from = middle + 1;
+                } else {
+                    to = middle;
+                }
+            }
+            return from == servers.length ? 0 : from;
+        }
+
+        /**
+         * @return index of the first server at or after the position, wrapping around to the first server
+         */
+        int successorIndex(long high, long low) {
+            int from = 0;
+            int to = servers.length;
+            while (from < to) {
+                int middle = (from + to) >>> 1;
+                if (HashRange.comparePositions(highs[middle], lows[middle], high, low) < 0) {
+                    from = middle + 1;
+                } else {
+                    to = middle;
+                }
+            }
+            return from == servers.length ? 0 : from;
+        }
+
+        int previous(int index) {
+            return (index + servers.length - 1) % servers.length;
+        }
     }
 
     /**
@@ -358,9 +840,7 @@ public class Metadata {
      * @param range new HashRange for the server
      */
     public void setHashRange(String hostName, Integer port, HashRange range) {
-        String serverKey = String.format("%s:%s", hostName, port);
-        mappings.put(serverKey, range);
-        hashToAddr.put(range.getEndHash(), serverKey);
+        setHashRange(String.format("%s:%s", hostName, port), range);
     }
 
     /**
@@ -371,7 +851,20 @@ public class Metadata {
      */
     public void setHashRange(String addressAndPort, HashRange range) {
         mappings.put(addressAndPort, range);
-        hashToAddr.put(range.getEndHash(), addressAndPort);
+        List<String> tokens = new ArrayList<>();
+        for (HashRange node : range.getRanges()) {
+            tokens.add(node.getEndHash());
+            hashToAddr.put(node.getEndHash(), addressAndPort);
+        }
+        serverTokens.put(addressAndPort, tokens);
+        ring = null;
+        if (epoch != 0) {
+            // A hand-set range cannot be replayed, metadata of earlier epochs gets the whole metadata
+            epoch++;
+            baseEpoch = epoch;
+            changes.clear();
+        }
+        forgetSerialized();
     }
 
 
@@ -381,7 +874,16 @@ public class Metadata {
      * @return string representation of metadata
      */
     public String getSerializedForm() {
-        return new Gson().toJson(mappings);
+        String serialized = serializedForm;
+        if (serialized == null) {
+            if (epoch == 0) {
+                serialized = new Gson().toJson(mappings);
+            } else {
+                serialized = new Gson().toJson(new Snapshot(epoch, baseEpoch, mappings, changes));
+            }
+            serializedForm = serialized;
+        }
+        return serialized;
     }
 
     /**
@@ -391,11 +893,80 @@ public class Metadata {
      * @return metadata based on input map
      */
     public static Metadata deserialize(String serializedMap) {
+        return deserialize(new JsonParser().parse(serializedMap));
+    }
+
+    private static Metadata deserialize(JsonElement json) {
+        if (json.isJsonObject()) {
+            JsonObject object = json.getAsJsonObject();
+            if (object.has("epoch") && object.has("mappings") && object.get("mappings").isJsonObject()) {
+                Snapshot snapshot = new Gson().fromJson(json, Snapshot.class);
+                Metadata metadata = new Metadata(snapshot.mappings);
+                metadata.epoch = snapshot.epoch;
+                metadata.baseEpoch = snapshot.base;
+                if (snapshot.changes != null) {
+                    metadata.changes.addAll(snapshot.changes);
+                }
+                return metadata;
+            }
+        }
+        // Metadata without epoch is the map of server keys to ranges
         Type type = new TypeToken<Map<String, HashRange>>(){}.getType();
-        Map<String, HashRange> mappings = new Gson().fromJson(serializedMap, type);
+        Map<String, HashRange> mappings = new Gson().fromJson(json, type);
         return new Metadata(mappings);
     }
 
+    /**
+     * A membership change, replayed by metadata of earlier epochs.
+     */
+    private static class Change {
+        private long epoch;
+        private String type;
+        private String server;
+        // First position of the server
+        private String hash;
+        private int nodes;
+
+        Change(String type, String server, String hash, int nodes) {
+            this.type = type;
+            this.server = server;
+            this.hash = hash;
+            this.nodes = nodes;
+        }
+    }
+
+    /**
+     * Serialized form of versioned metadata.
+     */
+    private static class Snapshot {
+        private long epoch;
+        private long base;
+        private Map<String, HashRange> mappings;
+        private List<Change> changes;
+
+        Snapshot(long epoch, long base, Map<String, HashRange> mappings, List<Change> changes) {
+            this.epoch = epoch;
+            this.base = base;
+            this.mappings = mappings;
+            this.changes = changes;
+        }
+    }
+
+    /**
+     * Serialized form of the changes from one epoch to a later one.
+     */
+    private static class Delta {
+        private long from;
+        private long epoch;
+        private List<Change> changes;
+
+        Delta(long from, long epoch, List<Change> changes) {
+            this.from = from;
+            this.epoch = epoch;
+            this.changes = changes;
+        }
+    }
+
 //    public class Servers {
 //        private String coordinator;
 //
@@ -0,0 +1,11 @@
+package common;
+
+/**
+ * How many servers holding a key must agree on its value before a client accepts a read.
+ */
+public enum ReadConsistency {
+    /** Read from one server picked at random, verified asynchronously by a sample of integrity checks */
+    ONE,
+    /** Read from every server holding the key and accept the value once two of them agree */
+    QUORUM
+}
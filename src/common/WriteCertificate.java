@@ -0,0 +1,115 @@
+package common;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+/**
+ * A write signed by the client that issued it, so replicas can tell a write relayed by the coordinator from one the
+ * coordinator forged. A certificate is an HMAC-SHA256 over (clientId, sequence, key, value) under a key the admin
+ * derives for every client from a secret shared with the servers, written as clientId:sequence:mac.
+ */
+public class WriteCertificate {
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private final String clientId;
+    private final long sequence;
+    private final String mac;
+
+    private WriteCertificate(String clientId, long sequence, String mac) {
+        this.clientId = clientId;
+        this.sequence = sequence;
+        this.mac = mac;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Derives the key a client signs its writes with.
+     *
+     * @param secret   secret shared by the admin and the servers
+     * @param clientId identifier of the client, without ':' or ','
+     * @return hex key of the client
+     */
+    public static String deriveClientKey(String secret, String clientId) {
+        return hmac(secret.getBytes(StandardCharsets.UTF_8), clientId.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Signs a write.
+     *
+     * @param clientKey hex key of the client, see {@link #deriveClientKey}
+     * @param clientId  identifier of the client
+     * @param sequence  number of the write, increasing for every write of the client
+     * @param key       key written
+     * @param value     value as sent to the server, "null" for deletes
+     * @return certificate in its serialized form
+     */
+    public static String sign(String clientKey, String clientId, long sequence, String key, String value) {
+        return clientId + ":" + sequence + ":" + computeMac(clientKey, clientId, sequence, key, value);
+    }
+
+    /**
+     * Parses a serialized certificate.
+     *
+     * @return the certificate, null if it is malformed
+     */
+    public static WriteCertificate parse(String certificate) {
+        String[] fields = certificate.split(":");
+        if (fields.length != 3) {
+            return null;
+        }
+        try {
+            return new WriteCertificate(fields[0], Long.parseLong(fields[1]), fields[2]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the certificate in its serialized form, see {@link #parse}
+     */
+    @Override
+    public String toString() {
+        return clientId + ":" + sequence + ":" + mac;
+    }
+
+    /**
+     * Checks that the certificate was issued for this write by the client it names.
+     *
+     * @param secret secret shared by the admin and the servers
+     * @param key    key written
+     * @param value  value written, "null" for deletes
+     */
+    public boolean verify(String secret, String key, String value) {
+        String expected = computeMac(deriveClientKey(secret, clientId), clientId, sequence, key, value);
+        // Constant time comparison
+        return MessageDigest.isEqual(expected.getBytes(StandardCharsets.US_ASCII), mac.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static String computeMac(String clientKey, String clientId, long sequence, String key, String value) {
+        // Length prefixes keep the fields from running into each other
+        String signed = clientId.length() + ":" + clientId + sequence + ":" + key.length() + ":" + key
+                + value.length() + ":" + value;
+        return hmac(clientKey.getBytes(StandardCharsets.US_ASCII), signed.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String hmac(byte[] key, byte[] data) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(key, ALGORITHM));
+            return Hashing.toHex(mac.doFinal(data));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        }
+    }
+}
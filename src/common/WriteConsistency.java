@@ -0,0 +1,29 @@
+package common;
+
+/**
+ * How many replicas must acknowledge a write before the responsible server replies to the client.
+ */
+public enum WriteConsistency {
+    /** Reply once the responsible server stored the write, replicas catch up asynchronously */
+    ONE,
+    /** Reply once a majority of all copies, the responsible server's included, stored the write */
+    QUORUM,
+    /** Reply once every replica stored the write */
+    ALL;
+
+    /**
+     * @param replicas number of distinct replicas of the key, not counting the responsible server
+     * @return number of replica acknowledgements to wait for
+     */
+    public int getRequiredReplicaAcks(int replicas) {
+        switch (this) {
+            case QUORUM:
+                // Majority of replicas + 1 copies, minus the copy on the responsible server
+                return (replicas + 1) / 2;
+            case ALL:
+                return replicas;
+            default:
+                return 0;
+        }
+    }
+}
@@ -6,17 +6,24 @@ public interface KVMessage {
 		GET, 			/* Get - request */
 		GET_ERROR, 		/* requested tuple (i.e. value) not found */
 		GET_SUCCESS, 	/* requested tuple (i.e. value) found */
+		DATA_CORRUPTED,	/* requested tuple failed its checksum on disk, it is being repaired from a replica */
 		PUT, 			/* Put - request */
 		PUT_SUCCESS, 	/* Put - request successful, tuple inserted */
 		PUT_UPDATE, 	/* Put - request successful, i.e. value updated */
 		PUT_ERROR, 		/* Put - request not successful */
 		DELETE_SUCCESS, /* Delete - request successful */
 		DELETE_ERROR, 	/* Delete - request successful */
+		GET_DIGEST,		/* Get digest - request and reply, MD5 hex digest of the value, "null" if the key does not exist */
+		MULTI_GET,		/* Batch get - request and reply, keys/values serialized as JSON */
+		MULTI_PUT,		/* Batch put - request and reply, key-value pairs/statuses serialized as JSON */
+		GET_METADATA,	/* Get metadata - request and reply, the metadata or the delta since the epoch of the request */
 		FAILED,
 		SERVER_STOPPED,         /* Server is stopped, no requests are processed */
 		SERVER_WRITE_LOCK,      /* Server locked for out, only get possible */
 		SERVER_NOT_RESPONSIBLE,  /* Request not successful, server not responsible for key */
+		SERVER_BUSY,		/* Server serves as many connections as it may, the connection is closed, retry later */
 		ADMIN_INIT_KVSERVER,			/* Admin - indicates the message is from admin */
+		ADMIN_WRITE_CERTIFICATE_SECRET,	/* Secret the servers verify client write certificates with */
 		ADMIN_START,
 		ADMIN_STOP,
 		ADMIN_SHUTDOWN,
@@ -24,9 +31,11 @@ public interface KVMessage {
 		ADMIN_UNLOCKWRITE,
 		ADMIN_MOVEDATA,
 		ADMIN_COPYDATA,
+		ADMIN_TRANSFER_STATUS,	/* Running MOVEDATA/COPYDATA transfers of a server and the keys they sent, serialized as JSON */
 		ADMIN_UPDATE,
 		ADMIN_FILETRANSFER,
 		ADMIN_FILETRANSFER_COMPLETE,
+		ADMIN_BULK_TRANSFER,	/* Records of a range follow, byte length as key and number of records as value */
 		ADMIN_SERVER_DEAD,
 		ADMIN_SERVER_COMPROMISED,
 		SERVER_HEART_BEAT,
@@ -34,9 +43,17 @@ public interface KVMessage {
 		ADMIN_DELETEDATA,
 		ADMIN_PIN,
 		ADMIN_REPLICATION,
+		ADMIN_REPLICATION_BATCH,	/* Coalesced replicated writes of one coordinator, serialized as JSON */
+		ADMIN_REPLICATION_SYNC,		/* Asks a replica for the last sequence it applied from a replication log */
+		ADMIN_REPLICATION_ACK,		/* Last sequence a replica applied from a replication log */
+		ADMIN_MERKLE_NODES,		/* Merkle tree node hashes of a range on a replica, node ids and hashes serialized as JSON */
+		ADMIN_MERKLE_BUCKET,	/* Value digest per key of one Merkle tree leaf bucket on a replica */
+		ADMIN_MERKLE_REPAIR,	/* Key value pairs rewritten on a replica by anti-entropy, "null" deletes */
+		REPLICATION_TIMEOUT,	/* Write stored by the responsible server, but too few replicas acknowledged it in time */
 		CLIENT_PUT_INTEGRITY_CHECK,
 		CLIENT_SERVER_COMPROMISED,
 		CLIENT_GET_INTEGRITY_CHECK,
+		CLIENT_GET_INTEGRITY_CHECK_BATCH,	/* Sampled get integrity checks of one client for one replica, serialized as JSON */
 		CLIENT_TRUE_GET,
 		SUBSCRIBE,
 		SUBSCRIBE_SUCCESS,
@@ -65,6 +82,12 @@ public interface KVMessage {
 	 */
 	public String getValue();
 
+	/**
+	 * @return epoch of the metadata the sender of a client request routed it with,
+	 * 		0 if the sender did not say.
+	 */
+	public long getEpoch();
+
 	/**
 	 * @return the value2 that is associated with this message,
 	 * 		null if not value2 is associated.
@@ -8,20 +8,35 @@ public class Message implements KVMessage {
 
     private static final char LINE_FEED = 0x0A;
     private static final char CARRIAGE_RETURN = 0x0D;
+    // Metadata shorter than this is escaped on every message
+    private static final int CACHED_METADATA_LENGTH = 256;
+
+    // Last long metadata escaped and its escaped form. Servers send the same cached metadata string with every
+    // redirect, so it is escaped once rather than per reply.
+    private static volatile String[] escapedMetadata = new String[2];
 
     private StatusType status;
     private String key;
     private String value;
     private String metadata;
+    private long epoch;
     private String serializedMsg;
     private byte[] bytes;
 
     public Message(StatusType pStatus, String pKey, String pValue, String pMetadata) {
+        this(pStatus, pKey, pValue, pMetadata, 0);
+    }
+
+    /**
+     * @param pEpoch epoch of the metadata the sender routed the request with, 0 if unknown
+     */
+    public Message(StatusType pStatus, String pKey, String pValue, String pMetadata, long pEpoch) {
         status = pStatus;
         key = pKey;
         value = pValue;
         metadata = pMetadata;
-        serializedMsg = serialize(pStatus, pKey, pValue, pMetadata);
+        epoch = pEpoch;
+        serializedMsg = serialize(pStatus, pKey, pValue, pMetadata, pEpoch);
         bytes = toByteArray(serializedMsg);
     }
 
@@ -43,6 +58,11 @@ public class Message implements KVMessage {
     @Override
     public String getMetadata() { return metadata; }
 
+    @Override
+    public long getEpoch() {
+        return epoch;
+    }
+
     @Override
     /**
      * Returns an array of bytes that represent the ASCII coded message content.
@@ -64,16 +84,31 @@ public class Message implements KVMessage {
         return serializedMsg;
     }
 
-    private String serialize(StatusType statusType, String key, String value, String metadata) {
+    private String serialize(StatusType statusType, String key, String value, String metadata, long epoch) {
         String escapedKey = StringEscapeUtils.escapeJson(key);
         String escapedValue = StringEscapeUtils.escapeJson(value);
-        String escapedMetadata = StringEscapeUtils.escapeJson(metadata);
+        String escapedMetadata = escapeMetadata(metadata);
         String serialized_string = "{\"statusType\":" + "\"" + statusType.toString()+ "\"," +
                 "\"arg1\":" + "\"" + escapedKey + "\"," + "\"arg2\":" + "\"" + escapedValue + "\","
-                + "\"arg3\":" + "\"" + escapedMetadata + "\"}";
+                + "\"arg3\":" + "\"" + escapedMetadata + "\""
+                // Left out unless set, so receivers that do not read it see the same messages as before
+                + (epoch != 0 ? ",\"epoch\":" + epoch : "") + "}";
         return serialized_string;
     }
 
+    private static String escapeMetadata(String metadata) {
+        String[] cached = escapedMetadata;
+        // Same instance, equals() would compare the whole string
+        if (metadata != null && metadata == cached[0]) {
+            return cached[1];
+        }
+        String escaped = StringEscapeUtils.escapeJson(metadata);
+        if (metadata != null && metadata.length() >= CACHED_METADATA_LENGTH) {
+            escapedMetadata = new String[]{metadata, escaped};
+        }
+        return escaped;
+    }
+
     private byte[] toByteArray(String s){
         byte[] bytes = s.getBytes();
         byte[] ctrBytes = new byte[]{LINE_FEED};
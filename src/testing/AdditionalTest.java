@@ -2,22 +2,62 @@ package testing;
 
 import app_admin.AdminStore;
 import app_server.AbstractCachedStorage;
+import app_server.BulkTransfer;
 import app_server.FifoCachedStorage;
+import app_server.FileTransferRunnable;
 import app_server.LfuCachedStorage;
 import app_server.LruCachedStorage;
+import app_server.MerkleTree;
+import app_server.RangeTransfer;
+import app_server.RecordChecksum;
+import app_server.ReplicatedWrite;
+import app_server.ServerExecutors;
+import app_server.WelcomeThread;
+import app_server.WriteReplicationRunnable;
+import client.ConnectionPool;
+import client.IntegrityCheckScheduler;
+import client.LatencyTracker;
+import client.SocketStreams;
 import client.Store;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import common.GetIntegrityCheck;
 import common.HashRange;
+import common.Hashing;
 import common.Metadata;
+import common.ReadConsistency;
+import common.WriteCertificate;
+import common.WriteConsistency;
 import common.messages.KVMessage;
+import common.messages.Message;
 import junit.framework.TestCase;
 import org.apache.log4j.Logger;
 import org.junit.Test;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class AdditionalTest extends TestCase {
 
@@ -470,6 +510,215 @@ public class AdditionalTest extends TestCase {
         assertFalse(range.isInRange("FFF"));
     }
 
+    @Test
+    public void testRingPositionsMatchHexOrder() {
+        // Positions compare unsigned, the upper half of the ring is not negative
+        HashRange range = new HashRange("7FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF", "80000000000000000000000000000001");
+        assertTrue(range.isInRange("80000000000000000000000000000000"));
+        assertFalse(range.isInRange("00000000000000000000000000000000"));
+
+        List<String> servers = Arrays.asList("127.0.0.1:50000", "127.0.0.1:50001", "127.0.0.1:50002",
+                "127.0.0.1:50003", "127.0.0.1:50004");
+        Metadata metadata = new Metadata(servers);
+        java.util.TreeMap<String, String> hashes = new java.util.TreeMap<>();
+        for (String server : servers) {
+            hashes.put(HashRange.getMd5Hash(server), server);
+        }
+        for (int i = 0; i < 200; i++) {
+            String keyHash = HashRange.getMd5Hash("ringKey" + i);
+            Map.Entry<String, String> expected = hashes.ceilingEntry(keyHash);
+            String successor = expected == null ? hashes.firstEntry().getValue() : expected.getValue();
+            assertEquals(successor, metadata.getSuccessorServer(keyHash));
+            assertEquals(successor, metadata.getReadableServers(keyHash).get(0));
+            assertTrue(metadata.getHashRange(successor).isInRange(keyHash));
+        }
+    }
+
+    @Test
+    public void testHashingMatchesMessageDigest() throws Exception {
+        assertEquals("D41D8CD98F00B204E9800998ECF8427E", Hashing.md5Hex(""));
+        assertEquals("900150983CD24FB0D6963F7D28E17F72", Hashing.md5Hex("abc"));
+
+        StringBuilder longValue = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            longValue.append("\u00e9\u20ac\ud83d\ude00x");
+        }
+        for (String input : Arrays.asList("k\u00e9y", "\u20ac", "\ud83d\ude00", longValue.toString())) {
+            byte[] expected = java.security.MessageDigest.getInstance("MD5").digest(input.getBytes("UTF-8"));
+            assertEquals(Hashing.toHex(expected), Hashing.md5Hex(input));
+        }
+
+        HashRange range = new HashRange("40000000000000000000000000000000", "C0000000000000000000000000000000",
+                "00000000000000000000000000000000");
+        for (int i = 0; i < 100; i++) {
+            String key = "hashedKey" + i;
+            assertEquals(range.isInRange(HashRange.getMd5Hash(key)), range.isKeyInRange(key));
+            assertEquals(range.isInReadRange(HashRange.getMd5Hash(key)), range.isKeyInReadRange(key));
+        }
+    }
+
+    @Test
+    public void testVirtualNodesBalanceLoadAndSpreadMovement() {
+        List<String> servers = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            servers.add("10.0.0." + i + ":50000");
+        }
+        Metadata metadata = Metadata.deserialize(new Metadata(servers, 64).getSerializedForm());
+        assertEquals(64, metadata.getVirtualNodes());
+
+        int keys = 16000;
+        Map<String, Integer> load = new HashMap<>();
+        for (int i = 0; i < keys; i++) {
+            String key = "virtualKey" + i;
+            String keyHash = HashRange.getMd5Hash(key);
+            List<String> readers = metadata.getReadableServers(keyHash);
+            assertEquals(3, new HashSet<>(readers).size());
+            assertEquals(readers.get(0), metadata.getSuccessorServer(keyHash));
+            for (String server : servers) {
+                assertEquals(server.equals(readers.get(0)), metadata.getHashRange(server).isKeyInRange(key));
+                assertEquals(readers.contains(server), metadata.getHashRange(server).isKeyInReadRange(key));
+            }
+            Integer count = load.get(readers.get(0));
+            load.put(readers.get(0), count == null ? 1 : count + 1);
+        }
+        for (int count : load.values()) {
+            assertTrue(count < 1.5 * keys / servers.size());
+        }
+
+        // The new server takes its keys from many servers, each key from a server that stops reading it
+        String newServer = "10.0.0.8:50000";
+        Metadata before = Metadata.deserialize(metadata.getSerializedForm());
+        Map<String, HashRange> donors = metadata.addNewServer(newServer, HashRange.getMd5Hash(newServer));
+        assertTrue(donors.size() > 3);
+        for (int i = 0; i < keys; i++) {
+            String keyHash = HashRange.getMd5Hash("virtualKey" + i);
+            List<String> oldReaders = before.getReadableServers(keyHash);
+            List<String> newReaders = metadata.getReadableServers(keyHash);
+            for (String server : oldReaders) {
+                boolean donated = donors.containsKey(server) && donors.get(server).isInRange(keyHash);
+                assertEquals(!newReaders.contains(server), donated);
+            }
+        }
+    }
+
+    @Test
+    public void testPlacementTableLookupByKey() {
+        List<String> servers = Arrays.asList("10.0.2.1:50000", "10.0.2.2:50000", "10.0.2.3:50000", "10.0.2.4:50000");
+        Metadata metadata = new Metadata(servers, 16);
+        for (int i = 0; i < 1000; i++) {
+            String key = "placedKey" + i;
+            String keyHash = HashRange.getMd5Hash(key);
+            assertEquals(metadata.getSuccessorServer(keyHash), metadata.getWritableServerForKey(key));
+            assertSame(metadata.getReadableServers(keyHash), metadata.getReadableServersForKey(key));
+            assertSame(metadata.getBackups(keyHash), metadata.getBackupsForKey(key));
+            assertEquals(metadata.getReadableServersForKey(key).subList(1, 3), metadata.getBackupsForKey(key));
+        }
+        try {
+            metadata.getBackupsForKey("placedKey0").set(0, "10.0.2.5:50000");
+            fail("Placement lists are shared and must not be modifiable");
+        } catch (UnsupportedOperationException e) {
+        }
+    }
+
+    @Test
+    public void testWeightedServersCarryProportionalKeys() {
+        String light = "10.0.1.1:50000";
+        String medium = "10.0.1.2:50000";
+        String heavy = "10.0.1.3:50000";
+        String other = "10.0.1.4:50000";
+        Metadata metadata = new Metadata(32);
+        metadata.addNewServer(light, HashRange.getMd5Hash(light), 32);
+        metadata.addNewServer(medium, HashRange.getMd5Hash(medium), 32);
+        metadata.addNewServer(heavy, HashRange.getMd5Hash(heavy), 96);
+        metadata.addNewServer(other, HashRange.getMd5Hash(other), 32);
+        assertEquals(96, metadata.getVirtualNodes(heavy));
+
+        int keys = 12000;
+        Map<String, Integer> load = new HashMap<>();
+        for (int i = 0; i < keys; i++) {
+            String coordinator = metadata.getSuccessorServer(HashRange.getMd5Hash("weightedKey" + i));
+            Integer count = load.get(coordinator);
+            load.put(coordinator, count == null ? 1 : count + 1);
+        }
+        assertTrue(load.get(heavy) > 2 * load.get(light));
+        assertTrue(load.get(heavy) > 2 * load.get(other));
+
+        // Lowering the weight hands pieces to the other servers, which copy them from the previous holders
+        Metadata before = Metadata.deserialize(metadata.getSerializedForm());
+        Map<String, HashRange> receivers = metadata.setVirtualNodes(heavy, 32);
+        assertEquals(32, metadata.getVirtualNodes(heavy));
+        assertFalse(receivers.containsKey(heavy));
+        for (int i = 0; i < keys; i++) {
+            String keyHash = HashRange.getMd5Hash("weightedKey" + i);
+            List<String> oldReaders = before.getReadableServers(keyHash);
+            for (String server : metadata.getReadableServers(keyHash)) {
+                boolean received = receivers.containsKey(server) && receivers.get(server).isInRange(keyHash);
+                assertEquals(!oldReaders.contains(server), received);
+            }
+        }
+    }
+
+    @Test
+    public void testMetadataDeltaBringsEarlierEpochUpToDate() {
+        List<String> servers = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            servers.add("10.0.2." + i + ":50000");
+        }
+        Metadata metadata = new Metadata(servers, 8);
+        Metadata old = Metadata.deserialize(metadata.getSerializedForm());
+        assertEquals(metadata.getEpoch(), old.getEpoch());
+        assertNull(metadata.getSerializedUpdate(old.getEpoch()));
+
+        String added = "10.0.2.9:50000";
+        metadata.addNewServer(added, HashRange.getMd5Hash(added), 8);
+        metadata.removeServer(servers.get(2));
+        metadata.setVirtualNodes(servers.get(4), 16);
+        assertEquals(old.getEpoch() + 3, metadata.getEpoch());
+
+        // The delta replays the changes on the old metadata, which ends up routing like the new one
+        String update = metadata.getSerializedUpdate(old.getEpoch());
+        assertTrue(update.length() < metadata.getSerializedForm().length());
+        Metadata updated = old.applyUpdate(update);
+        assertEquals(metadata.getEpoch(), updated.getEpoch());
+        assertEquals(metadata.getServers(), updated.getServers());
+        for (int i = 0; i < 1000; i++) {
+            String key = "deltaKey" + i;
+            assertEquals(metadata.getReadableServersForKey(key), updated.getReadableServersForKey(key));
+        }
+        assertFalse(old.hasServer(added));
+
+        // A delta cannot be applied to metadata of another epoch, an unknown epoch gets the whole metadata
+        assertNull(new Metadata(servers, 8).applyUpdate(update));
+        Metadata unknown = new Metadata(servers, 8);
+        Metadata full = unknown.applyUpdate(metadata.getSerializedUpdate(unknown.getEpoch()));
+        assertEquals(metadata.getEpoch(), full.getEpoch());
+        assertEquals(metadata.getServers(), full.getServers());
+        assertSame(full, full.applyUpdate(metadata.getSerializedUpdate(full.getEpoch())));
+    }
+
+    @Test
+    public void testSerializedMetadataBuiltOnce() {
+        List<String> servers = Arrays.asList("10.0.3.1:50000", "10.0.3.2:50000", "10.0.3.3:50000");
+        Metadata metadata = new Metadata(servers, 8);
+        long since = metadata.getEpoch();
+        String serialized = metadata.getSerializedForm();
+        assertSame(serialized, metadata.getSerializedForm());
+
+        String added = "10.0.3.4:50000";
+        metadata.addNewServer(added, HashRange.getMd5Hash(added), 8);
+        String updated = metadata.getSerializedForm();
+        assertNotSame(serialized, updated);
+        assertTrue(Metadata.deserialize(updated).hasServer(added));
+        assertSame(metadata.getSerializedUpdate(since), metadata.getSerializedUpdate(since));
+
+        // Redirects built from the cached metadata carry it unchanged
+        KVMessage first = new Message(KVMessage.StatusType.SERVER_NOT_RESPONSIBLE, null, null, updated);
+        KVMessage second = new Message(KVMessage.StatusType.SERVER_NOT_RESPONSIBLE, "key", null, updated);
+        JsonObject json = new JsonParser().parse(second.getSerializedMsg()).getAsJsonObject();
+        assertEquals(updated, json.get("arg3").getAsString());
+        assertTrue(first.getSerializedMsg().endsWith(json.get("arg3").toString() + "}"));
+    }
+
     @Test
     public void testHashRangeInRangeRegularWrappedAround() {
         HashRange range = new HashRange("DEF", "ABC");
@@ -751,6 +1000,1029 @@ public class AdditionalTest extends TestCase {
         assertEquals(response.getStatus(), KVMessage.StatusType.GET_ERROR);
     }
 
+    @Test
+    public void testMultiPutMultiGet() {
+        Store client = new Store("127.0.0.1", 50000);
+        Map<String, String> entries = new HashMap<>();
+        for (int i = 0; i < 20; i++) {
+            entries.put("batchKey" + i, "batchValue" + i);
+        }
+
+        Map<String, KVMessage.StatusType> statuses = null;
+        Map<String, String> values = null;
+        Exception ex = null;
+        try {
+            client.connect();
+            statuses = client.multiPut(entries);
+            values = client.multiGet(Arrays.asList("batchKey0", "batchKey19", "missingBatchKey"));
+        } catch (Exception e) {
+            ex = e;
+        } finally {
+            client.disconnect();
+        }
+
+        assertNull(ex);
+        assertEquals(20, statuses.size());
+        for (KVMessage.StatusType status : statuses.values()) {
+            assertTrue(status == KVMessage.StatusType.PUT_SUCCESS || status == KVMessage.StatusType.PUT_UPDATE);
+        }
+        assertEquals(2, values.size());
+        assertEquals("batchValue0", values.get("batchKey0"));
+        assertEquals("batchValue19", values.get("batchKey19"));
+    }
+
+    @Test
+    public void testReplicationBatchApplied() {
+        // Client port 1 skips the put integrity check with the client
+        List<ReplicatedWrite> writes = Arrays.asList(
+                new ReplicatedWrite(1, "replicatedKey1", "replicatedValue1", "127.0.0.1:1"),
+                new ReplicatedWrite(2, "replicatedKey2", "replicatedValue2", "127.0.0.1:1"));
+        KVMessage batch = new Message(KVMessage.StatusType.ADMIN_REPLICATION_BATCH, null,
+                new Gson().toJson(writes), "127.0.0.1:50000,testReplicationLog");
+        // Replayed after a reconnect, must not overwrite the newer value
+        KVMessage replay = new Message(KVMessage.StatusType.ADMIN_REPLICATION_BATCH, null,
+                new Gson().toJson(Arrays.asList(new ReplicatedWrite(1, "replicatedKey1", "staleValue", "127.0.0.1:1"))),
+                "127.0.0.1:50000,testReplicationLog");
+
+        Store client = new Store("127.0.0.1", 50000);
+        Map<String, String> values = null;
+        String ack = null;
+        String replayAck = null;
+        Exception ex = null;
+        try {
+            Socket socket = new Socket("127.0.0.1", 50000);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            socket.getOutputStream().write(batch.getBytes());
+            socket.getOutputStream().flush();
+            ack = reader.readLine();
+            socket.getOutputStream().write(replay.getBytes());
+            socket.getOutputStream().flush();
+            replayAck = reader.readLine();
+            socket.close();
+
+            client.connect();
+            values = client.multiGet(Arrays.asList("replicatedKey1", "replicatedKey2"));
+        } catch (Exception e) {
+            ex = e;
+        } finally {
+            client.disconnect();
+        }
+
+        assertNull(ex);
+        assertTrue(ack.contains("ADMIN_REPLICATION_ACK") && ack.contains("\"arg1\":\"2\""));
+        assertTrue(replayAck.contains("\"arg1\":\"2\""));
+        assertEquals("replicatedValue1", values.get("replicatedKey1"));
+        assertEquals("replicatedValue2", values.get("replicatedKey2"));
+    }
+
+    @Test
+    public void testQuorumReadAndDigest() {
+        Store client = new Store("127.0.0.1", 50000);
+        client.setReadConsistency(ReadConsistency.QUORUM);
+        KVMessage value = null;
+        String digestReply = null;
+        Exception ex = null;
+        try {
+            client.connect();
+            client.put("quorumKey", "quorumValue");
+            // A single server cannot form a quorum on its own, the read falls back to it
+            value = client.get("quorumKey");
+
+            Socket socket = new Socket("127.0.0.1", 50000);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            socket.getOutputStream().write(new Message(KVMessage.StatusType.GET_DIGEST, "quorumKey", null, null).getBytes());
+            socket.getOutputStream().flush();
+            digestReply = reader.readLine();
+            socket.close();
+        } catch (Exception e) {
+            ex = e;
+        } finally {
+            client.disconnect();
+        }
+
+        assertNull(ex);
+        assertEquals("quorumValue", value.getValue());
+        assertTrue(digestReply.contains("GET_DIGEST") && digestReply.contains(HashRange.getMd5Hash("quorumValue")));
+    }
+
+    @Test
+    public void testLatencyTrackerPicksHedgeDelayAndFastestServer() {
+        LatencyTracker tracker = new LatencyTracker();
+        List<String> servers = Arrays.asList("127.0.0.1:1", "127.0.0.1:2", "127.0.0.1:3");
+        assertEquals(-1, tracker.getPercentileNanos(95));
+        for (int i = 1; i <= 100; i++) {
+            tracker.record(i % 2 == 0 ? "127.0.0.1:1" : "127.0.0.1:2", i % 2 == 0 ? 1000 : 100000);
+        }
+
+        assertEquals(1000, tracker.getPercentileNanos(50));
+        assertEquals(100000, tracker.getPercentileNanos(95));
+        // Servers never read from are measured first
+        assertEquals("127.0.0.1:3", tracker.pickFastest(servers, null));
+        assertEquals("127.0.0.1:1", tracker.pickFastest(servers, "127.0.0.1:3"));
+
+        // Reads are spread over the servers close to the fastest, never sent to a slow one
+        tracker.record("127.0.0.1:3", 1100);
+        Set<String> picked = new HashSet<>();
+        for (int i = 0; i < 200; i++) {
+            picked.add(tracker.pickFastest(servers, null));
+        }
+        assertEquals(new HashSet<>(Arrays.asList("127.0.0.1:1", "127.0.0.1:3")), picked);
+    }
+
+    @Test
+    public void testSlowReadHedgedAndFailsWhenBothServersFail() throws Exception {
+        ServerSocket primary = new ServerSocket(0);
+        ServerSocket secondary = new ServerSocket(0);
+        String primaryKey = "127.0.0.1:" + primary.getLocalPort();
+        String secondaryKey = "127.0.0.1:" + secondary.getLocalPort();
+        String metadata = new Metadata(Arrays.asList(primaryKey, secondaryKey)).getSerializedUpdate(0);
+        AtomicLong primaryDelay = new AtomicLong(0);
+        AtomicLong secondaryDelay = new AtomicLong(5);
+        AtomicBoolean failing = new AtomicBoolean(false);
+        AtomicInteger primaryGets = new AtomicInteger();
+        AtomicInteger secondaryGets = new AtomicInteger();
+        startFakeReadServer(primary, metadata, primaryDelay, failing, primaryGets);
+        startFakeReadServer(secondary, metadata, secondaryDelay, failing, secondaryGets);
+
+        Store store = new Store("127.0.0.1", primary.getLocalPort());
+        store.setIntegrityCheckSampleRate(0);
+        store.setHedgePercentile(95);
+        try {
+            store.connect();
+            // Learn that the primary is the faster server
+            for (int i = 0; i < 40; i++) {
+                assertEquals("hedgedValue", store.get("hedgedKey").getValue());
+            }
+
+            // The primary stalls, every read is answered by the hedge well before the primary replies
+            primaryDelay.set(2000);
+            int hedgedBefore = secondaryGets.get();
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < 10; i++) {
+                assertEquals("hedgedValue", store.get("hedgedKey").getValue());
+            }
+            assertTrue(System.currentTimeMillis() - start < 1000);
+            assertEquals(hedgedBefore + 10, secondaryGets.get());
+
+            // Both requests fail, the servers are dropped instead of a reply being made up
+            primaryDelay.set(300);
+            secondaryDelay.set(0);
+            failing.set(true);
+            hedgedBefore = secondaryGets.get();
+            Exception ex = null;
+            try {
+                store.get("hedgedKey");
+            } catch (IllegalStateException e) {
+                ex = e;
+            }
+            assertNotNull(ex);
+            assertTrue(secondaryGets.get() > hedgedBefore);
+        } finally {
+            store.disconnect();
+            primary.close();
+            secondary.close();
+        }
+    }
+
+    /**
+     * Serves the metadata and answers every GET after a delay, or drops the connection while failing.
+     */
+    private static void startFakeReadServer(final ServerSocket listener, final String metadata, final AtomicLong delay,
+                                            final AtomicBoolean failing, final AtomicInteger gets) {
+        new Thread() {
+            @Override
+            public void run() {
+                while (!listener.isClosed()) {
+                    try {
+                        final Socket socket = listener.accept();
+                        new Thread() {
+                            @Override
+                            public void run() {
+                                try (Socket connection = socket) {
+                                    while (true) {
+                                        JsonObject message = new JsonParser().parse(readLine(connection.getInputStream()))
+                                                .getAsJsonObject();
+                                        String status = message.get("statusType").getAsString();
+                                        KVMessage reply;
+                                        if (status.equals(KVMessage.StatusType.GET_METADATA.name())) {
+                                            reply = new Message(KVMessage.StatusType.GET_METADATA, null, null, metadata);
+                                        } else if (status.equals(KVMessage.StatusType.GET.name())) {
+                                            gets.incrementAndGet();
+                                            Thread.sleep(delay.get());
+                                            if (failing.get()) {
+                                                return;
+                                            }
+                                            reply = new Message(KVMessage.StatusType.GET_SUCCESS,
+                                                    message.get("arg1").getAsString(), "hedgedValue", null);
+                                        } else {
+                                            continue;
+                                        }
+                                        connection.getOutputStream().write(reply.getBytes());
+                                        connection.getOutputStream().flush();
+                                    }
+                                } catch (IOException | InterruptedException e) {
+                                    // Client went away or the test is over
+                                }
+                            }
+                        }.start();
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            }
+        }.start();
+    }
+
+    @Test
+    public void testReplicationResumesOnSameChannelAfterReconnect() throws Exception {
+        AtomicLong applied = new AtomicLong();
+        List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        List<Socket> connections = Collections.synchronizedList(new ArrayList<Socket>());
+        ServerSocket replica = bindReplica(0);
+        int port = replica.getLocalPort();
+        startFakeReplica(replica, applied, received, new HashMap<String, String>(), connections);
+        WriteReplicationRunnable channel = new WriteReplicationRunnable("127.0.0.1:50000", "127.0.0.1:" + port);
+        channel.start();
+        try {
+            assertTrue(awaitAck(channel, channel.replicate("reconnectKey1", "value1", "127.0.0.1:1", null)));
+
+            // The replica restarts, the channel reconnects and resumes after the write it applied
+            replica.close();
+            for (Socket connection : connections) {
+                connection.close();
+            }
+            replica = bindReplica(port);
+            startFakeReplica(replica, applied, received, new HashMap<String, String>(), connections);
+            assertTrue(awaitAck(channel, channel.replicate("reconnectKey2", "value2", "127.0.0.1:1", null)));
+            assertTrue(awaitAck(channel, channel.replicate("reconnectKey3", "value3", "127.0.0.1:1", null)));
+
+            assertEquals(Arrays.asList("reconnectKey1", "reconnectKey2", "reconnectKey3"), received);
+            assertEquals(2, connections.size());
+        } finally {
+            channel.close();
+            replica.close();
+        }
+    }
+
+    @Test
+    public void testConcurrentPutsReplicatedInStoredOrder() throws Exception {
+        ServerSocket[] replicas = {bindReplica(0), bindReplica(0)};
+        List<String> replicaKeys = new ArrayList<>();
+        List<Map<String, String>> replicaValues = new ArrayList<>();
+        List<AtomicLong> replicaApplied = new ArrayList<>();
+        for (ServerSocket replica : replicas) {
+            replicaKeys.add("127.0.0.1:" + replica.getLocalPort());
+            replicaValues.add(new HashMap<String, String>());
+            replicaApplied.add(new AtomicLong());
+            startFakeReplica(replica, replicaApplied.get(replicaApplied.size() - 1),
+                    Collections.synchronizedList(new ArrayList<String>()), replicaValues.get(replicaValues.size() - 1),
+                    Collections.synchronizedList(new ArrayList<Socket>()));
+        }
+        List<String> servers = new ArrayList<>(replicaKeys);
+        servers.add("127.0.0.1:50000");
+        Metadata previous = WelcomeThread.metadata;
+        Metadata metadata = new Metadata(servers);
+        String orderedKey = null;
+        for (int i = 0; orderedKey == null; i++) {
+            if (metadata.getWritableServerForKey("orderedKey" + i).equals("127.0.0.1:50000")) {
+                orderedKey = "orderedKey" + i;
+            }
+        }
+        final String key = orderedKey;
+        WelcomeThread.metadata = metadata;
+        try {
+            // Writes of the same key racing on separate connections
+            final CountDownLatch done = new CountDownLatch(8);
+            for (int t = 0; t < 8; t++) {
+                final int writer = t;
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try (Socket socket = new Socket("127.0.0.1", 50000)) {
+                            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                            for (int i = 0; i < 25; i++) {
+                                socket.getOutputStream().write(new Message(KVMessage.StatusType.PUT, key,
+                                        "value" + writer + "-" + i, "127.0.0.1:1").getBytes());
+                                socket.getOutputStream().flush();
+                                reader.readLine();
+                            }
+                        } catch (IOException e) {
+                            logger.error("testConcurrentPutsReplicatedInStoredOrder: writer failed", e);
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                }.start();
+            }
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+
+            String stored = WelcomeThread.getCachedStorage().get(key).getValue();
+            for (int r = 0; r < replicas.length; r++) {
+                WriteReplicationRunnable channel = WelcomeThread.getReplicationChannel(replicaKeys.get(r));
+                long deadline = System.currentTimeMillis() + 10000;
+                while (replicaApplied.get(r).get() < channel.getLoggedSequence() && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                assertEquals(channel.getLoggedSequence(), replicaApplied.get(r).get());
+                synchronized (replicaValues.get(r)) {
+                    assertEquals(stored, replicaValues.get(r).get(key));
+                }
+            }
+        } finally {
+            WelcomeThread.metadata = previous;
+            for (int r = 0; r < replicas.length; r++) {
+                WelcomeThread.getReplicationChannel(replicaKeys.get(r)).close();
+                replicas[r].close();
+            }
+            WelcomeThread.getCachedStorage().delete(key);
+        }
+    }
+
+    @Test
+    public void testConcurrentCertifiedPutsOfClientNotReported() throws Exception {
+        ServerSocket[] replicas = {bindReplica(0), bindReplica(0)};
+        List<String> replicaKeys = new ArrayList<>();
+        List<Map<String, String>> replicaValues = new ArrayList<>();
+        List<List<String>> replicaCertificates = new ArrayList<>();
+        List<AtomicLong> replicaApplied = new ArrayList<>();
+        for (ServerSocket replica : replicas) {
+            replicaKeys.add("127.0.0.1:" + replica.getLocalPort());
+            replicaValues.add(new HashMap<String, String>());
+            replicaCertificates.add(new ArrayList<String>());
+            replicaApplied.add(new AtomicLong());
+            startFakeReplica(replica, replicaApplied.get(replicaApplied.size() - 1),
+                    Collections.synchronizedList(new ArrayList<String>()), replicaValues.get(replicaValues.size() - 1),
+                    replicaCertificates.get(replicaCertificates.size() - 1),
+                    Collections.synchronizedList(new ArrayList<Socket>()));
+        }
+        List<String> servers = new ArrayList<>(replicaKeys);
+        servers.add("127.0.0.1:50000");
+        Metadata previous = WelcomeThread.metadata;
+        Metadata metadata = new Metadata(servers);
+        String certifiedKey = null;
+        for (int i = 0; certifiedKey == null; i++) {
+            if (metadata.getWritableServerForKey("concurrentCertifiedKey" + i).equals("127.0.0.1:50000")) {
+                certifiedKey = "concurrentCertifiedKey" + i;
+            }
+        }
+        final String key = certifiedKey;
+        final String clientKey = WriteCertificate.deriveClientKey("testSecret", "concurrentClient");
+        // Certificates are kept on disk, client sequences start from the clock
+        final long clientSequence = System.currentTimeMillis() * 1000;
+        long forgedWrites = WelcomeThread.getForgedWrites();
+        WelcomeThread.setWriteCertificateSecret("testSecret");
+        WelcomeThread.metadata = metadata;
+        try {
+            // One client's writes of the same key signed in order, but racing on separate connections
+            final CountDownLatch done = new CountDownLatch(8);
+            for (int t = 0; t < 8; t++) {
+                final int writer = t;
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try (Socket socket = new Socket("127.0.0.1", 50000)) {
+                            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                            for (int i = 0; i < 25; i++) {
+                                long sequence = clientSequence + i * 8 + writer;
+                                String certificate = WriteCertificate.sign(clientKey, "concurrentClient", sequence,
+                                        key, "value" + sequence);
+                                socket.getOutputStream().write(new Message(KVMessage.StatusType.PUT, key,
+                                        "value" + sequence, "127.0.0.1:1,," + certificate).getBytes());
+                                socket.getOutputStream().flush();
+                                reader.readLine();
+                            }
+                        } catch (IOException e) {
+                            logger.error("testConcurrentCertifiedPutsOfClientNotReported: writer failed", e);
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                }.start();
+            }
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+
+            // The client's last signed write stays, earlier ones arriving after it are not stored
+            String stored = WelcomeThread.getCachedStorage().get(key).getValue();
+            assertEquals("value" + (clientSequence + 24 * 8 + 7), stored);
+            for (int r = 0; r < replicas.length; r++) {
+                WriteReplicationRunnable channel = WelcomeThread.getReplicationChannel(replicaKeys.get(r));
+                long deadline = System.currentTimeMillis() + 10000;
+                while (replicaApplied.get(r).get() < channel.getLoggedSequence() && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                assertEquals(channel.getLoggedSequence(), replicaApplied.get(r).get());
+                synchronized (replicaValues.get(r)) {
+                    assertEquals(stored, replicaValues.get(r).get(key));
+                    // Every logged write is newer than the one before, a replica never skips one
+                    long last = 0;
+                    for (String certificate : replicaCertificates.get(r)) {
+                        long sequence = WriteCertificate.parse(certificate).getSequence();
+                        assertTrue(sequence > last);
+                        last = sequence;
+                    }
+                }
+            }
+            assertEquals(forgedWrites, WelcomeThread.getForgedWrites());
+        } finally {
+            WelcomeThread.metadata = previous;
+            WelcomeThread.setWriteCertificateSecret(null);
+            for (int r = 0; r < replicas.length; r++) {
+                WelcomeThread.getReplicationChannel(replicaKeys.get(r)).close();
+                replicas[r].close();
+            }
+            WelcomeThread.getCachedStorage().delete(key);
+        }
+    }
+
+    private static ServerSocket bindReplica(int port) throws IOException {
+        ServerSocket listener = new ServerSocket();
+        listener.setReuseAddress(true);
+        listener.bind(new InetSocketAddress("127.0.0.1", port));
+        return listener;
+    }
+
+    private static boolean awaitAck(WriteReplicationRunnable channel, long sequence) {
+        return WriteReplicationRunnable.awaitAcks(Collections.singletonMap(channel, sequence), 1, 5000);
+    }
+
+    /**
+     * Applies replicated writes like a replica, remembering the last sequence across restarts.
+     */
+    private static void startFakeReplica(final ServerSocket listener, final AtomicLong applied, final List<String> received,
+                                         final Map<String, String> values, final List<Socket> connections) {
+        startFakeReplica(listener, applied, received, values, new ArrayList<String>(), connections);
+    }
+
+    /**
+     * Applies replicated writes like a replica, also keeping the certificate of every write in the order received.
+     */
+    private static void startFakeReplica(final ServerSocket listener, final AtomicLong applied, final List<String> received,
+                                         final Map<String, String> values, final List<String> certificates,
+                                         final List<Socket> connections) {
+        new Thread() {
+            @Override
+            public void run() {
+                while (!listener.isClosed()) {
+                    try (Socket socket = listener.accept()) {
+                        connections.add(socket);
+                        while (true) {
+                            JsonObject message = new JsonParser().parse(readLine(socket.getInputStream())).getAsJsonObject();
+                            String status = message.get("statusType").getAsString();
+                            if (status.equals(KVMessage.StatusType.ADMIN_REPLICATION.name())) {
+                                String[] fields = message.get("arg3").getAsString().split(",");
+                                received.add(message.get("arg1").getAsString());
+                                synchronized (values) {
+                                    values.put(message.get("arg1").getAsString(), message.get("arg2").getAsString());
+                                    certificates.add(fields.length > 4 ? fields[4] : null);
+                                }
+                                applied.set(Long.parseLong(fields[3]));
+                            } else if (status.equals(KVMessage.StatusType.ADMIN_REPLICATION_BATCH.name())) {
+                                for (ReplicatedWrite write : new Gson().fromJson(message.get("arg2").getAsString(),
+                                        ReplicatedWrite[].class)) {
+                                    received.add(write.getKey());
+                                    synchronized (values) {
+                                        values.put(write.getKey(), write.getValue());
+                                        certificates.add(write.getCertificate());
+                                    }
+                                    applied.set(write.getSequence());
+                                }
+                            }
+                            socket.getOutputStream().write(new Message(KVMessage.StatusType.ADMIN_REPLICATION_ACK,
+                                    String.valueOf(applied.get()), null, null).getBytes());
+                            socket.getOutputStream().flush();
+                        }
+                    } catch (IOException e) {
+                        // Connection closed by the test or the coordinator, take the next one
+                    }
+                }
+            }
+        }.start();
+    }
+
+    @Test
+    public void testForgedReplicatedWriteRejected() {
+        String clientKey = WriteCertificate.deriveClientKey("testSecret", "testClient");
+        // Certificates are kept on disk, client sequences start from the clock
+        long clientSequence = System.currentTimeMillis() * 1000;
+        // The coordinator relays the first write as signed and rewrites the value of the second
+        List<ReplicatedWrite> writes = Arrays.asList(
+                new ReplicatedWrite(1, "certifiedKey", "certifiedValue", "127.0.0.1:1",
+                        WriteCertificate.sign(clientKey, "testClient", clientSequence, "certifiedKey", "certifiedValue")),
+                new ReplicatedWrite(2, "forgedKey", "COMPROMISED!", "127.0.0.1:1",
+                        WriteCertificate.sign(clientKey, "testClient", clientSequence + 1, "forgedKey", "clientValue")));
+        KVMessage batch = new Message(KVMessage.StatusType.ADMIN_REPLICATION_BATCH, null,
+                new Gson().toJson(writes), "127.0.0.1:50000,testCertificateLog");
+
+        Store client = new Store("127.0.0.1", 50000);
+        Map<String, String> values = null;
+        String ack = null;
+        Exception ex = null;
+        long forgedWrites = WelcomeThread.getForgedWrites();
+        WelcomeThread.setWriteCertificateSecret("testSecret");
+        try {
+            Socket socket = new Socket("127.0.0.1", 50000);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            socket.getOutputStream().write(batch.getBytes());
+            socket.getOutputStream().flush();
+            ack = reader.readLine();
+            socket.close();
+
+            client.connect();
+            values = client.multiGet(Arrays.asList("certifiedKey", "forgedKey"));
+        } catch (Exception e) {
+            ex = e;
+        } finally {
+            client.disconnect();
+            WelcomeThread.setWriteCertificateSecret(null);
+        }
+
+        assertNull(ex);
+        assertTrue(ack.contains("\"arg1\":\"2\""));
+        assertEquals("certifiedValue", values.get("certifiedKey"));
+        assertFalse(values.containsKey("forgedKey"));
+        assertEquals(forgedWrites + 1, WelcomeThread.getForgedWrites());
+    }
+
+    @Test
+    public void testReplayedCertifiedWriteRejected() {
+        String clientKey = WriteCertificate.deriveClientKey("testSecret", "replayClient");
+        String otherKey = WriteCertificate.deriveClientKey("testSecret", "otherClient");
+        long clientSequence = System.currentTimeMillis() * 1000;
+        String oldCertificate = WriteCertificate.sign(clientKey, "replayClient", clientSequence, "replayKey", "oldValue");
+        WelcomeThread.setWriteCertificateSecret("testSecret");
+        try {
+            List<ReplicatedWrite> unverified = WelcomeThread.applyReplicatedWrites("127.0.0.1:50000,testReplayLog",
+                    Arrays.asList(
+                            new ReplicatedWrite(1, "replayKey", "oldValue", "127.0.0.1:1", oldCertificate),
+                            new ReplicatedWrite(2, "replayKey", "newValue", "127.0.0.1:1", WriteCertificate.sign(
+                                    clientKey, "replayClient", clientSequence + 1, "replayKey", "newValue"))));
+            assertTrue(unverified.isEmpty());
+
+            // The coordinator replays the older write to roll the value back
+            long forgedWrites = WelcomeThread.getForgedWrites();
+            unverified = WelcomeThread.applyReplicatedWrites("127.0.0.1:50000,testReplayLog", Arrays.asList(
+                    new ReplicatedWrite(3, "replayKey", "oldValue", "127.0.0.1:1", oldCertificate)));
+            assertTrue(unverified.isEmpty());
+            assertEquals("newValue", WelcomeThread.getCachedStorage().get("replayKey").getValue());
+            // The client's concurrent writes can reach an honest coordinator in this order too, it is not reported
+            assertEquals(forgedWrites, WelcomeThread.getForgedWrites());
+
+            // Sequences of different clients cannot be ordered, the write is checked with its client instead
+            ReplicatedWrite other = new ReplicatedWrite(4, "replayKey", "otherValue", "127.0.0.1:1",
+                    WriteCertificate.sign(otherKey, "otherClient", clientSequence, "replayKey", "otherValue"));
+            unverified = WelcomeThread.applyReplicatedWrites("127.0.0.1:50000,testReplayLog", Arrays.asList(other));
+            assertEquals(1, unverified.size());
+            assertEquals("otherValue", WelcomeThread.getCachedStorage().get("replayKey").getValue());
+        } finally {
+            WelcomeThread.setWriteCertificateSecret(null);
+        }
+    }
+
+    @Test
+    public void testMerkleRepairVerifiedAndKeepsNewerWrites() {
+        String logKey = "127.0.0.1:50000,testRepairLog";
+        // A write applied from the log after the repair values were read is not undone
+        WelcomeThread.applyReplicatedWrites(logKey, Arrays.asList(
+                new ReplicatedWrite(1, "inflightKey", "newValue", "127.0.0.1:1")));
+        assertEquals(1, WelcomeThread.applyRepairs(logKey, Arrays.asList(
+                new ReplicatedWrite(0, "inflightKey", "staleValue", null),
+                new ReplicatedWrite(1, "repairedKey", "repairedValue", null))));
+        assertEquals("newValue", WelcomeThread.getCachedStorage().get("inflightKey").getValue());
+        assertEquals("repairedValue", WelcomeThread.getCachedStorage().get("repairedKey").getValue());
+
+        String clientKey = WriteCertificate.deriveClientKey("testSecret", "repairClient");
+        long clientSequence = System.currentTimeMillis() * 1000;
+        WelcomeThread.setWriteCertificateSecret("testSecret");
+        try {
+            // The coordinator pushes a value the client did not write
+            assertEquals(0, WelcomeThread.applyRepairs(logKey, Arrays.asList(new ReplicatedWrite(1, "certifiedRepairKey",
+                    "COMPROMISED!", null, WriteCertificate.sign(clientKey, "repairClient", clientSequence,
+                    "certifiedRepairKey", "clientValue")))));
+            assertEquals(KVMessage.StatusType.GET_ERROR, WelcomeThread.getCachedStorage().get("certifiedRepairKey").getStatus());
+
+            assertEquals(1, WelcomeThread.applyRepairs(logKey, Arrays.asList(new ReplicatedWrite(1, "certifiedRepairKey",
+                    "clientValue", null, WriteCertificate.sign(clientKey, "repairClient", clientSequence,
+                    "certifiedRepairKey", "clientValue")))));
+            assertEquals("clientValue", WelcomeThread.getCachedStorage().get("certifiedRepairKey").getValue());
+
+            // The coordinator's value was overwritten without certificate, the repair is ordered by its log sequence
+            assertEquals(1, WelcomeThread.applyRepairs(logKey, Arrays.asList(
+                    new ReplicatedWrite(1, "certifiedRepairKey", "uncertifiedValue", null))));
+            assertEquals("uncertifiedValue", WelcomeThread.getCachedStorage().get("certifiedRepairKey").getValue());
+        } finally {
+            WelcomeThread.setWriteCertificateSecret(null);
+        }
+    }
+
+    @Test
+    public void testRepairCertificateMatchesValue() {
+        String clientKey = WriteCertificate.deriveClientKey("testSecret", "matchClient");
+        long clientSequence = System.currentTimeMillis() * 1000;
+        String certificate = WriteCertificate.sign(clientKey, "matchClient", clientSequence, "matchKey", "certifiedValue");
+        String deleteCertificate = WriteCertificate.sign(clientKey, "matchClient", clientSequence + 1, "matchKey", "null");
+        WelcomeThread.setWriteCertificateSecret("testSecret");
+        try {
+            assertTrue(WelcomeThread.recordWriteCertificate("matchKey", "certifiedValue", certificate));
+            assertEquals(certificate, WelcomeThread.getWriteCertificate("matchKey", "certifiedValue"));
+            assertNull(WelcomeThread.getWriteCertificate("matchKey", "otherValue"));
+
+            // Overwritten without certificate, the certificate no longer belongs to the key
+            assertTrue(WelcomeThread.recordWriteCertificate("matchKey", "uncertifiedValue", null));
+            assertNull(WelcomeThread.getWriteCertificate("matchKey", "uncertifiedValue"));
+            assertNull(WelcomeThread.getWriteCertificate("matchKey", "certifiedValue"));
+
+            // A certified delete is repaired with its own certificate
+            assertTrue(WelcomeThread.recordWriteCertificate("matchKey", "null", deleteCertificate));
+            assertEquals(deleteCertificate, WelcomeThread.getWriteCertificate("matchKey", "null"));
+        } finally {
+            WelcomeThread.recordWriteCertificate("matchKey", "null", null);
+            WelcomeThread.setWriteCertificateSecret(null);
+        }
+    }
+
+    @Test
+    public void testWriteConsistencyAll() {
+        assertEquals(0, WriteConsistency.ONE.getRequiredReplicaAcks(2));
+        assertEquals(1, WriteConsistency.QUORUM.getRequiredReplicaAcks(2));
+        assertEquals(2, WriteConsistency.ALL.getRequiredReplicaAcks(2));
+
+        Store client = new Store("127.0.0.1", 50000);
+        client.setWriteConsistency(WriteConsistency.ALL);
+        KVMessage response = null;
+        Exception ex = null;
+        try {
+            client.connect();
+            response = client.put("consistencyKey", "consistencyValue");
+        } catch (Exception e) {
+            ex = e;
+        } finally {
+            client.disconnect();
+        }
+
+        // The test server is its own replica, so the reply only comes after the replication channel acknowledged
+        assertNull(ex);
+        assertTrue(response.getStatus() == KVMessage.StatusType.PUT_SUCCESS || response.getStatus() == KVMessage.StatusType.PUT_UPDATE);
+    }
+
+    @Test
+    public void testIntegrityChecksSampledAndCapped() {
+        IntegrityCheckScheduler never = new IntegrityCheckScheduler(new ConnectionPool(), 0);
+        IntegrityCheckScheduler sampled = new IntegrityCheckScheduler(new ConnectionPool(), 0.25);
+        for (int i = 0; i < 1000; i++) {
+            never.schedule("10.0.0.1:50000", Arrays.asList("10.0.0.2:50000"), "key" + i, "value");
+            sampled.schedule("10.0.0.1:50000", Arrays.asList("10.0.0.2:50000"), "key" + i, "value");
+        }
+        assertEquals(0, never.getPendingCount());
+        assertTrue(sampled.getPendingCount() > 150 && sampled.getPendingCount() < 350);
+
+        // Reported checks ignore the sample rate, one per distinct replica, until the queue is full
+        never.report("10.0.0.1:50000", Arrays.asList("10.0.0.2:50000", "10.0.0.3:50000", "10.0.0.2:50000"), "key", "null");
+        assertEquals(2, never.getPendingCount());
+        for (int i = 0; i < 6000; i++) {
+            never.report("10.0.0.1:50000", Arrays.asList("10.0.0.2:50000", "10.0.0.3:50000"), "key" + i, "null");
+        }
+        assertEquals(10000, never.getPendingCount());
+    }
+
+    @Test
+    public void testIntegrityChecksSentInBatches() throws Exception {
+        final ServerSocket replica = new ServerSocket(0);
+        final List<Integer> batchSizes = new ArrayList<>();
+        final CountDownLatch received = new CountDownLatch(3);
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try (Socket socket = replica.accept()) {
+                    while (received.getCount() > 0) {
+                        JsonObject message = new JsonParser().parse(readLine(socket.getInputStream())).getAsJsonObject();
+                        assertEquals(KVMessage.StatusType.CLIENT_GET_INTEGRITY_CHECK_BATCH.name(),
+                                message.get("statusType").getAsString());
+                        synchronized (batchSizes) {
+                            batchSizes.add(new JsonParser().parse(message.get("arg2").getAsString()).getAsJsonArray().size());
+                        }
+                        received.countDown();
+                    }
+                } catch (IOException e) {
+                    logger.error("testIntegrityChecksSentInBatches: replica failed", e);
+                }
+            }
+        };
+        reader.start();
+        IntegrityCheckScheduler scheduler = new IntegrityCheckScheduler(new ConnectionPool(), 1);
+        try {
+            String replicaKey = "127.0.0.1:" + replica.getLocalPort();
+            for (int i = 0; i < 450; i++) {
+                scheduler.schedule("10.0.0.1:50000", Arrays.asList(replicaKey), "key" + i, "value" + i);
+            }
+            scheduler.start();
+            assertTrue(received.await(5, TimeUnit.SECONDS));
+            synchronized (batchSizes) {
+                assertEquals(Arrays.asList(200, 200, 50), batchSizes);
+            }
+            assertEquals(0, scheduler.getPendingCount());
+        } finally {
+            scheduler.close();
+            replica.close();
+        }
+    }
+
+    @Test
+    public void testUnknownWriteConsistencyFails() throws Exception {
+        try (Socket socket = new Socket("127.0.0.1", 50000)) {
+            socket.getOutputStream().write(new Message(KVMessage.StatusType.PUT, "unknownConsistencyKey", "value",
+                    "127.0.0.1:1,SOME").getBytes());
+            socket.getOutputStream().flush();
+            JsonObject reply = new JsonParser().parse(readLine(socket.getInputStream())).getAsJsonObject();
+            assertEquals(KVMessage.StatusType.FAILED.name(), reply.get("statusType").getAsString());
+
+            // The connection is still served
+            socket.getOutputStream().write(new Message(KVMessage.StatusType.GET, "unknownConsistencyKey", null, null).getBytes());
+            socket.getOutputStream().flush();
+            reply = new JsonParser().parse(readLine(socket.getInputStream())).getAsJsonObject();
+            assertEquals(KVMessage.StatusType.GET_ERROR.name(), reply.get("statusType").getAsString());
+        }
+    }
+
+    @Test
+    public void testConnectionPoolReusesConnection() {
+        ConnectionPool pool = new ConnectionPool();
+        try {
+            SocketStreams first = pool.acquire("127.0.0.1:50000");
+            assertFalse(first.isReused());
+            pool.release(first);
+
+            SocketStreams second = pool.acquire("127.0.0.1:50000");
+            assertSame(first, second);
+            assertTrue(second.isReused());
+
+            // Invalidated connections are never handed out again
+            pool.invalidate(second);
+            SocketStreams third = pool.acquire("127.0.0.1:50000");
+            assertNotSame(second, third);
+            pool.release(third);
+        } catch (IOException e) {
+            fail("Cannot connect to test server: " + e.getMessage());
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testGetMetadata() {
+        String reply = null;
+        Exception ex = null;
+        try {
+            Socket socket = new Socket("127.0.0.1", 50000);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            socket.getOutputStream().write(new Message(KVMessage.StatusType.GET_METADATA, null, null, null).getBytes());
+            socket.getOutputStream().flush();
+            reply = reader.readLine();
+            socket.close();
+        } catch (IOException e) {
+            ex = e;
+        }
+
+        assertNull(ex);
+        JsonObject json = new JsonParser().parse(reply).getAsJsonObject();
+        assertEquals(KVMessage.StatusType.GET_METADATA.name(), json.get("statusType").getAsString());
+        assertTrue(Metadata.deserialize(json.get("arg3").getAsString()).hasServer("127.0.0.1:50000"));
+    }
+
+    @Test
+    public void testTurnedAwayConnectionReadsServerBusy() {
+        String reply = null;
+        Exception ex = null;
+        try {
+            ServerSocket listener = new ServerSocket(0);
+            Socket socket = new Socket("127.0.0.1", listener.getLocalPort());
+            ServerExecutors.turnAway(listener.accept());
+            listener.close();
+
+            // The request sent meanwhile is read and discarded, the reply still arrives
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            socket.getOutputStream().write(new Message(KVMessage.StatusType.GET, "busyKey", null, null).getBytes());
+            socket.getOutputStream().flush();
+            reply = reader.readLine();
+            assertNull(reader.readLine());
+            socket.close();
+        } catch (IOException e) {
+            ex = e;
+        }
+
+        assertNull(ex);
+        JsonObject json = new JsonParser().parse(reply).getAsJsonObject();
+        assertEquals(KVMessage.StatusType.SERVER_BUSY.name(), json.get("statusType").getAsString());
+    }
+
+    @Test
+    public void testRangeTransferReportsProgressAndCompletion() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        RangeTransfer.Task task = new RangeTransfer.Task() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public long getKeysSent() {
+                return 42;
+            }
+
+            @Override
+            public boolean isFailed() {
+                return false;
+            }
+        };
+        RangeTransfer.start(KVMessage.StatusType.ADMIN_COPYDATA, "10.0.4.1:50000", task, new RangeTransfer.Listener() {
+            @Override
+            public void transferDone(RangeTransfer transfer) {
+                done.countDown();
+            }
+        });
+
+        String status = RangeTransfer.getStatus();
+        assertTrue(status.contains("\"destination\":\"10.0.4.1:50000\""));
+        assertTrue(status.contains("\"keysSent\":42"));
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertFalse(RangeTransfer.getStatus().contains("10.0.4.1:50000"));
+    }
+
+    @Test
+    public void testBulkTransferMergesRecordsInOneStep() throws Exception {
+        LruCachedStorage storage = new LruCachedStorage(10, "127.0.0.1", 50099);
+        storage.put("bulkKey1", "oldValue");
+        storage.put("bulkKey2", "keptValue");
+
+        File sent = File.createTempFile("range", null);
+        File received = File.createTempFile("bulk", null);
+        Files.write(sent.toPath(), Arrays.asList(
+                RecordChecksum.toLine("bulkKey1", "newValue"),
+                RecordChecksum.toLine("bulkKey3", "value,3"),
+                "bulkKey4,corrupted,0"), StandardCharsets.UTF_8);
+        ServerSocket listener = new ServerSocket(0);
+        try {
+            Socket socket = BulkTransfer.connect("127.0.0.1", listener.getLocalPort());
+            Socket accepted = listener.accept();
+            BulkTransfer.sendFile(socket, socket.getOutputStream(), sent);
+            BulkTransfer.receiveFile(accepted.getInputStream(), sent.length(), received);
+            socket.close();
+            accepted.close();
+            assertTrue(Arrays.equals(Files.readAllBytes(sent.toPath()), Files.readAllBytes(received.toPath())));
+
+            assertEquals(2, storage.putRecords(received));
+            assertEquals("newValue", storage.get("bulkKey1").getValue());
+            assertEquals("keptValue", storage.get("bulkKey2").getValue());
+            assertEquals("value,3", storage.get("bulkKey3").getValue());
+            assertEquals(KVMessage.StatusType.GET_ERROR, storage.get("bulkKey4").getStatus());
+        } finally {
+            listener.close();
+            sent.delete();
+            received.delete();
+            new File("127.0.0.150099" + File.separator + "Data").delete();
+            new File("127.0.0.150099").delete();
+        }
+    }
+
+    @Test
+    public void testMovedRangeKeptWhenDestinationFails() throws Exception {
+        Store client = new Store("127.0.0.1", 50000);
+        client.connect();
+        client.put("transferKey", "transferValue");
+
+        // Stores nothing and answers the completion with FAILED
+        final ServerSocket destination = new ServerSocket(0);
+        Thread receiver = new Thread() {
+            @Override
+            public void run() {
+                try (Socket socket = destination.accept()) {
+                    InputStream input = socket.getInputStream();
+                    while (true) {
+                        JsonObject message = new JsonParser().parse(readLine(input)).getAsJsonObject();
+                        String status = message.get("statusType").getAsString();
+                        if (status.equals(KVMessage.StatusType.ADMIN_BULK_TRANSFER.name())) {
+                            long length = Long.parseLong(message.get("arg1").getAsString());
+                            for (long i = 0; i < length; i++) {
+                                input.read();
+                            }
+                        } else if (status.equals(KVMessage.StatusType.ADMIN_FILETRANSFER_COMPLETE.name())) {
+                            socket.getOutputStream().write(new Message(KVMessage.StatusType.FAILED, null, null, null).getBytes());
+                            socket.getOutputStream().flush();
+                            return;
+                        }
+                    }
+                } catch (IOException e) {
+                    logger.error("testMovedRangeKeptWhenDestinationFails: receiver failed", e);
+                }
+            }
+        };
+        receiver.start();
+        try {
+            String everything = "00000000000000000000000000000000";
+            FileTransferRunnable transfer = new FileTransferRunnable(
+                    BulkTransfer.connect("127.0.0.1", destination.getLocalPort()), new HashRange(everything, everything, everything));
+            transfer.run();
+            receiver.join(5000);
+
+            assertTrue(transfer.isFailed());
+            assertTrue(transfer.getKeysSent() >= 1);
+            assertEquals("transferValue", client.get("transferKey").getValue());
+        } finally {
+            destination.close();
+            client.put("transferKey", "null");
+            client.disconnect();
+        }
+    }
+
+    private static String readLine(InputStream input) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int read;
+        while ((read = input.read()) != '\n') {
+            if (read == -1) {
+                throw new IOException("Connection closed");
+            }
+            line.append((char) read);
+        }
+        return line.toString();
+    }
+
+    @Test
+    public void testMovedRecordsRemovedUnlessRewritten() throws Exception {
+        LruCachedStorage storage = new LruCachedStorage(10, "127.0.0.1", 50097);
+        try {
+            storage.put("movedKey", "movedValue");
+            storage.put("rewrittenKey", "sentValue");
+            storage.put("keptKey", "keptValue");
+            Map<String, String> moved = new HashMap<>();
+            moved.put("movedKey", RecordChecksum.compute("movedKey", "movedValue"));
+            moved.put("rewrittenKey", RecordChecksum.compute("rewrittenKey", "sentValue"));
+            // Written after the range was sent
+            storage.put("rewrittenKey", "newerValue");
+
+            assertEquals(1, storage.removeRecords(moved));
+            assertEquals(KVMessage.StatusType.GET_ERROR, storage.get("movedKey").getStatus());
+            assertEquals("newerValue", storage.get("rewrittenKey").getValue());
+            assertEquals("keptValue", storage.get("keptKey").getValue());
+        } finally {
+            new File("127.0.0.150097" + File.separator + "Data").delete();
+            new File("127.0.0.150097").delete();
+        }
+    }
+
+    @Test
+    public void testConcurrentPutAndBatchKeepAllWrites() throws Exception {
+        final LruCachedStorage storage = new LruCachedStorage(1, "127.0.0.1", 50098);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int writer = t;
+            writers.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < 20; i++) {
+                        if (writer == 0) {
+                            Map<String, String> batch = new HashMap<>();
+                            batch.put("batchKey" + i, "value" + i);
+                            storage.putAll(batch);
+                        } else {
+                            storage.put("key" + writer + "-" + i, "value" + i);
+                        }
+                    }
+                }
+            });
+        }
+        try {
+            for (Thread writer : writers) {
+                writer.start();
+            }
+            start.countDown();
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            List<String> keys = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                keys.add("batchKey" + i);
+                for (int writer = 1; writer < 4; writer++) {
+                    keys.add("key" + writer + "-" + i);
+                }
+            }
+            assertEquals(keys.size(), storage.getAll(keys).size());
+        } finally {
+            new File("127.0.0.150098" + File.separator + "Data").delete();
+            new File("127.0.0.150098").delete();
+        }
+    }
+
     @Test
     public void testMultipleClients() {
         Store client1 = new Store("127.0.0.1", 50000);
@@ -976,4 +2248,87 @@ public class AdditionalTest extends TestCase {
         assertEquals(KVMessage.StatusType.DELETE_ERROR, actualMessage.getStatus());
     }
 
+    @Test
+    public void testMerkleTreeFindsDifferingBucket() {
+        Map<String, String> entries = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            entries.put("merkleKey" + i, "merkleValue" + i);
+        }
+        MerkleTree tree = new MerkleTree(entries);
+        assertEquals(tree.getNodeHash(MerkleTree.ROOT), new MerkleTree(new HashMap<>(entries)).getNodeHash(MerkleTree.ROOT));
+
+        entries.put("merkleKey7", "changedValue");
+        MerkleTree changedTree = new MerkleTree(entries);
+        assertFalse(tree.getNodeHash(MerkleTree.ROOT).equals(changedTree.getNodeHash(MerkleTree.ROOT)));
+        int differingLeaves = 0;
+        for (int leaf = MerkleTree.LEAVES; leaf < 2 * MerkleTree.LEAVES; leaf++) {
+            if (!tree.getNodeHash(leaf).equals(changedTree.getNodeHash(leaf))) {
+                differingLeaves++;
+                assertEquals(MerkleTree.getBucket("merkleKey7"), leaf - MerkleTree.LEAVES);
+            }
+        }
+        assertEquals(1, differingLeaves);
+    }
+
+    @Test
+    public void testDigestKeptBesideRecord() {
+        LruCachedStorage cache = new LruCachedStorage(3, "127.0.0.1", 50000);
+        cache.put("digestKey", "digestValue");
+        assertEquals(GetIntegrityCheck.digestOf("digestValue"), cache.getDigest("digestKey"));
+
+        cache.put("digestKey", "updatedValue");
+        assertEquals(GetIntegrityCheck.digestOf("updatedValue"), cache.getDigest("digestKey"));
+
+        cache.delete("digestKey");
+        assertNull(cache.getDigest("digestKey"));
+    }
+
+    @Test
+    public void testDigestStoredInRecord() throws IOException {
+        LruCachedStorage cache = new LruCachedStorage(3, "127.0.0.1", 50096);
+        File dataFile = new File(System.getProperty("user.dir") + File.separator + "127.0.0.150096" + File.separator + "Data");
+        try {
+            cache.put("digestKey", "digestValue");
+            assertEquals(RecordChecksum.toLine("digestKey", "digestValue"),
+                    new String(Files.readAllBytes(dataFile.toPath()), StandardCharsets.UTF_8).trim());
+            assertTrue(RecordChecksum.toLine("digestKey", "digestValue")
+                    .endsWith("," + GetIntegrityCheck.digestOf("digestValue")));
+
+            // Evicted from the cache, the digest is read from the record, also after rewrites that bypass the storage
+            cache.put("evictingKey1", "evictingValue");
+            cache.put("evictingKey2", "evictingValue");
+            cache.put("evictingKey3", "evictingValue");
+            Files.write(dataFile.toPath(), (RecordChecksum.toLine("digestKey", "rewrittenValue")
+                    + System.getProperty("line.separator")).getBytes(StandardCharsets.UTF_8));
+            assertEquals(GetIntegrityCheck.digestOf("rewrittenValue"), cache.getDigest("digestKey"));
+            Files.write(dataFile.toPath(), new byte[0]);
+            assertNull(cache.getDigest("digestKey"));
+
+            // Records written before digests were kept
+            Files.write(dataFile.toPath(), "digestKey,oldValue\n".getBytes(StandardCharsets.UTF_8));
+            assertEquals(GetIntegrityCheck.digestOf("oldValue"), cache.getDigest("digestKey"));
+        } finally {
+            dataFile.delete();
+            dataFile.getParentFile().delete();
+        }
+    }
+
+    @Test
+    public void testCorruptRecordDetected() throws IOException {
+        LruCachedStorage cache = new LruCachedStorage(1, "127.0.0.1", 50099);
+        cache.put("checkedKey", "checkedValue");
+        // Evicts checkedKey from the cache so the next get reads the record from disk
+        cache.put("otherKey", "otherValue");
+
+        // Flip the stored value without updating its checksum
+        File dataFile = new File(System.getProperty("user.dir") + File.separator + "127.0.0.150099" + File.separator + "Data");
+        String data = new String(Files.readAllBytes(dataFile.toPath()), "UTF-8");
+        Files.write(dataFile.toPath(), data.replace("checkedValue", "checkedValuf").getBytes("UTF-8"));
+
+        assertEquals(KVMessage.StatusType.DATA_CORRUPTED, cache.get("checkedKey").getStatus());
+        assertFalse(cache.getAll(Arrays.asList("checkedKey")).containsKey("checkedKey"));
+        cache.delete("checkedKey");
+        cache.delete("otherKey");
+    }
+
 }
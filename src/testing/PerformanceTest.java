@@ -1,17 +1,27 @@
 package testing;
 
 import app_admin.AdminStore;
+import app_server.ServerExecutors;
 import client.Store;
+import common.HashRange;
+import common.Hashing;
 import junit.framework.TestCase;
 import logger.LogSetup;
 import org.apache.log4j.Level;
 import org.junit.Test;
 
 import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class PerformanceTest extends TestCase {
@@ -245,6 +255,143 @@ public class PerformanceTest extends TestCase {
         }
     }
 
+    @Test
+    public void testHashingBenchmark() throws Exception {
+        int rounds = 1000000;
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            keys.add("benchmarkKey" + i);
+        }
+        HashRange range = new HashRange("40000000000000000000000000000000", "C0000000000000000000000000000000");
+
+        // Warm up both paths before measuring
+        for (int i = 0; i < rounds; i++) {
+            legacyMd5Hash(keys.get(i % keys.size()));
+            range.isKeyInRange(keys.get(i % keys.size()));
+        }
+
+        long start = System.nanoTime();
+        int inRange = 0;
+        for (int i = 0; i < rounds; i++) {
+            if (range.isInRange(legacyMd5Hash(keys.get(i % keys.size())))) {
+                inRange++;
+            }
+        }
+        long legacyNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            Hashing.md5Hex(keys.get(i % keys.size()));
+        }
+        long hexNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        int keyInRange = 0;
+        for (int i = 0; i < rounds; i++) {
+            if (range.isKeyInRange(keys.get(i % keys.size()))) {
+                keyInRange++;
+            }
+        }
+        long positionNanos = System.nanoTime() - start;
+
+        System.out.println(String.format("Provider lookup per hash and hex routing: %d ns/op", legacyNanos / rounds));
+        System.out.println(String.format("Thread-local hex hash: %d ns/op", hexNanos / rounds));
+        System.out.println(String.format("Thread-local hash and position routing: %d ns/op", positionNanos / rounds));
+        assertEquals(inRange, keyInRange);
+    }
+
+    @Test
+    public void testThreadModeBenchmark() throws Exception {
+        int connections = Integer.getInteger("kv.benchmarkConnections", 2000);
+        int rounds = 20;
+        long platformNanos = serveBlockingConnections(false, connections, rounds);
+        System.out.println(String.format("Platform threads, %d connections: %d ms", connections, platformNanos / 1000000));
+        long virtualNanos;
+        try {
+            virtualNanos = serveBlockingConnections(true, connections, rounds);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads need Java 21 or later, skipped");
+            return;
+        }
+        System.out.println(String.format("Virtual threads, %d connections: %d ms", connections, virtualNanos / 1000000));
+    }
+
+    /**
+     * Serves connections the way the server does, one blocking thread per connection from a pool of the given
+     * mode, and has every connection echo a line a number of times while all of them are open.
+     *
+     * @return time from the first connect until the last connection was closed
+     */
+    private static long serveBlockingConnections(boolean virtual, int connections, int rounds) throws Exception {
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(0, connections, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), ServerExecutors.threadFactory(virtual ? "bench-virtual" : "bench", virtual));
+        final ServerSocket listener = new ServerSocket(0, connections);
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = listener.accept();
+                        pool.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                                    OutputStream output = socket.getOutputStream();
+                                    String line;
+                                    while ((line = reader.readLine()) != null) {
+                                        output.write((line + "\n").getBytes());
+                                        output.flush();
+                                    }
+                                    socket.close();
+                                } catch (IOException e) {
+                                    // Closed by the client
+                                }
+                            }
+                        });
+                    }
+                } catch (IOException e) {
+                    // Listener closed
+                }
+            }
+        });
+        acceptor.start();
+
+        long start = System.nanoTime();
+        List<Socket> sockets = new ArrayList<>();
+        List<BufferedReader> readers = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            Socket socket = new Socket("127.0.0.1", listener.getLocalPort());
+            sockets.add(socket);
+            readers.add(new BufferedReader(new InputStreamReader(socket.getInputStream())));
+        }
+        for (int round = 0; round < rounds; round++) {
+            for (Socket socket : sockets) {
+                socket.getOutputStream().write(("round" + round + "\n").getBytes());
+                socket.getOutputStream().flush();
+            }
+            for (BufferedReader reader : readers) {
+                assertEquals("round" + round, reader.readLine());
+            }
+        }
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        long nanos = System.nanoTime() - start;
+
+        listener.close();
+        pool.shutdown();
+        pool.awaitTermination(10, TimeUnit.SECONDS);
+        return nanos;
+    }
+
+    /**
+     * Hashing as done before {@link Hashing}: a digest looked up per call and a hex string built for every key.
+     */
+    private static String legacyMd5Hash(String input) throws NoSuchAlgorithmException {
+        return Hashing.toHex(MessageDigest.getInstance("MD5").digest(input.getBytes()));
+    }
+
     public class ClientRunnable implements Runnable {
 
         private List<String> keys;